@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.grass;
+
+import com.jme3.material.Material;
+import com.jme3.material.MaterialDef;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+import com.jme3.shader.VarType;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.image.ColorSpace;
+import com.jme3.util.BufferUtils;
+import forester.grass.GrassLayer.MeshType;
+import forester.grass.algorithms.GPAImportance;
+import forester.grass.algorithms.GPAUniform;
+import forester.grass.algorithms.GrassPlantingAlgorithm;
+import forester.image.DensityMap;
+import forester.paging.GeometryPagingManager;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the throughput of the uniform (rejection sampling) and the 
+ * importance sampling planting algorithms on sparse and dense density maps.
+ * <br/><br/>
+ * The maps are clustered blobs covering 5%, 30% and 100% of a page. Each 
+ * page has 16 blocks, and 16384 candidates per block (density multiplier 4).
+ * <br/><br/>
+ * Usage: GrassPlantingBenchmark [mapSize] [densityMultiplier]. Runs 
+ * headless; newer JVMs need --add-opens java.base/java.nio=ALL-UNNAMED and
+ * --add-opens java.base/sun.nio.ch=ALL-UNNAMED for jME's BufferUtils.
+ * 
+ * @author Andreas
+ */
+public class GrassPlantingBenchmark {
+    
+    protected static final int PAGE_SIZE = 256;
+    protected static final int RESOLUTION = 4;
+    protected static final int WARMUP = 50;
+    protected static final int RUNS = 200;
+    
+    public static void main(String[] args) {
+        int mapSize = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+        int multiplier = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        
+        GeometryPagingManager manager = new GeometryPagingManager(PAGE_SIZE, RESOLUTION, PAGE_SIZE, new Node(), new Camera(64, 64));
+        GrassPage page = new GrassPage(0, 0, manager);
+        page.createBlocks();
+        GrassLayer layer = createLayer();
+        
+        float blockSize = PAGE_SIZE/(float) RESOLUTION;
+        int grassCount = (int) (blockSize*blockSize*multiplier);
+        float[] grassData = new float[grassCount*4];
+        
+        System.out.println("Map size " + mapSize + ", " + grassCount + " candidates per block.");
+        for (double coverage : new double[]{0.05, 0.3, 1.0}) {
+            DensityMap densityMap = createDensityMap(mapSize, coverage, 3);
+            GrassPlantingAlgorithm[] algorithms = {new GPAUniform(), new GPAImportance()};
+            for (GrassPlantingAlgorithm pa : algorithms) {
+                long patches = 0;
+                long start = 0;
+                for (int run = 0; run < WARMUP + RUNS; run++) {
+                    if (run == WARMUP) {
+                        start = System.nanoTime();
+                    }
+                    for (int i = 0; i < page.getBlocks().size(); i++) {
+                        GrassBlock block = (GrassBlock) page.getBlock(i);
+                        int count = pa.generateGrassData(page, block, layer, densityMap, grassData, grassCount);
+                        if (run >= WARMUP) {
+                            patches += count;
+                        }
+                    }
+                }
+                double sec = (System.nanoTime() - start)/1e9;
+                int blocks = RUNS*page.getBlocks().size();
+                System.out.printf("coverage %3.0f%%  %-14s patches/block %8.1f  blocks/s %8.0f  patches/s %6.2fM%n",
+                        coverage*100, pa.getClass().getSimpleName(), patches/(double) blocks, 
+                        blocks/sec, patches/sec/1e6);
+            }
+        }
+    }
+    
+    //A layer using a stand-in material (no assets needed).
+    protected static GrassLayer createLayer() {
+        MaterialDef def = new MaterialDef(null, "Grass");
+        def.addMaterialParamTexture(VarType.Texture2D, "ColorMap", ColorSpace.sRGB);
+        def.addMaterialParamTexture(VarType.Texture2D, "AlphaNoiseMap", ColorSpace.Linear);
+        Material mat = new Material(def);
+        Image image = new Image(Image.Format.RGBA8, 1, 1, BufferUtils.createByteBuffer(4), ColorSpace.Linear);
+        mat.setTexture("ColorMap", new Texture2D(image));
+        mat.setTexture("AlphaNoiseMap", new Texture2D(image));
+        GrassLayer layer = new GrassLayer(mat, MeshType.QUADS, null);
+        layer.setDensityTextureData(0, DensityMap.Channel.Red);
+        return layer;
+    }
+    
+    //Random round blobs of density 200/255, covering roughly the given fraction.
+    protected static DensityMap createDensityMap(int size, double coverage, long seed) {
+        Random rand = new Random(seed);
+        byte[] values = new byte[size*size];
+        int radius = size/16;
+        if (coverage >= 1) {
+            Arrays.fill(values, (byte) 200);
+        } else {
+            int blobs = (int) Math.max(1, coverage*size*size/(Math.PI*radius*radius));
+            for (int k = 0; k < blobs; k++) {
+                int cx = rand.nextInt(size), cz = rand.nextInt(size);
+                for (int z = Math.max(0, cz - radius); z < Math.min(size, cz + radius); z++) {
+                    for (int x = Math.max(0, cx - radius); x < Math.min(size, cx + radius); x++) {
+                        if ((x - cx)*(x - cx) + (z - cz)*(z - cz) < radius*radius) {
+                            values[x + z*size] = (byte) 200;
+                        }
+                    }
+                }
+            }
+        }
+        ByteBuffer buf = BufferUtils.createByteBuffer(size*size*4);
+        for (byte v : values) {
+            buf.put(v).put(v).put(v).put(v);
+        }
+        buf.flip();
+        return new DensityMap(new Texture2D(new Image(Image.Format.RGBA8, size, size, buf, ColorSpace.Linear)), PAGE_SIZE);
+    }
+    
+}//GrassPlantingBenchmark
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees;
+
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.material.Material;
+import com.jme3.material.MaterialDef;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Sphere;
+import com.jme3.shader.VarType;
+import forester.trees.datagrids.TreeDataList;
+import java.util.Random;
+
+/**
+ * Compares generation time and memory of static tree batches and 
+ * hardware-instanced tree blocks.
+ * <br/><br/>
+ * One block has 200 trees of a model with about 5000 vertices. Memory is the 
+ * size of the vertex and index buffers (static), or of the instance data 
+ * (instanced - the model buffers are shared by all blocks).
+ * <br/><br/>
+ * Usage: TreeBatchingBenchmark [numTrees]. Runs headless; newer JVMs need 
+ * --add-opens java.base/java.nio=ALL-UNNAMED and 
+ * --add-opens java.base/sun.nio.ch=ALL-UNNAMED for jME's BufferUtils.
+ * 
+ * @author Andreas
+ */
+public class TreeBatchingBenchmark {
+    
+    protected static final int WARMUP = 30;
+    protected static final int RUNS = 50;
+    
+    public static void main(String[] args) {
+        int numTrees = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        
+        Sphere sphere = new Sphere(72, 72, 1f);
+        sphere.setBound(new BoundingSphere());
+        sphere.updateBound();
+        Geometry model = new Geometry("Tree", sphere);
+        //Stand-in material, with the parameter needed for instancing.
+        MaterialDef def = new MaterialDef(null, "Tree");
+        def.addMaterialParam(VarType.Boolean, "UseInstancing", null);
+        model.setMaterial(new Material(def));
+        
+        Random rand = new Random(1);
+        TreeDataList list = new TreeDataList(0, 0, numTrees);
+        for (int i = 0; i < numTrees; i++) {
+            list.add(rand.nextFloat()*64 - 32, rand.nextFloat()*5, rand.nextFloat()*64 - 32, 
+                    0.8f + rand.nextFloat()*0.4f, rand.nextFloat()*6.28f);
+        }
+        TreeGeometryGenerator gen = new TreeGeometryGenerator();
+        Node blockNode = new Node("Block");
+        blockNode.setLocalTranslation(100, 0, -50);
+        
+        Geometry batch = null;
+        Geometry instanced = null;
+        for (int i = 0; i < WARMUP; i++) {
+            batch = gen.generateStaticGeometry(model, list, false);
+            instanced = generateInstanced(gen, model, list, blockNode);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            batch = gen.generateStaticGeometry(model, list, false);
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            instanced = generateInstanced(gen, model, list, blockNode);
+        }
+        long t2 = System.nanoTime();
+        
+        long instanceBytes = ((InstancedTreeGeometry) instanced).getTransformUserInstanceData().getData().capacity()*4L;
+        System.out.println("Model vertices: " + sphere.getVertexCount() + ", trees: " + numTrees);
+        System.out.printf("static:    %8.3f ms/block, %10d bytes%n", (t1 - t0)/1e6/RUNS, getByteSize(batch.getMesh()));
+        System.out.printf("instanced: %8.3f ms/block, %10d bytes instance data (+%d bytes model buffers, shared)%n", 
+                (t2 - t1)/1e6/RUNS, instanceBytes, getByteSize(sphere));
+    }
+    
+    //Generating includes the first instance buffer update, done when the
+    //block is attached.
+    protected static Geometry generateInstanced(TreeGeometryGenerator gen, Geometry model, TreeDataList list, Node blockNode) {
+        Geometry geom = gen.generateInstancedGeometry(model, list, 0, list.size());
+        blockNode.attachChild(geom);
+        blockNode.updateGeometricState();
+        blockNode.detachChild(geom);
+        return geom;
+    }
+    
+    protected static long getByteSize(Mesh mesh) {
+        long bytes = 0;
+        for (VertexBuffer vb : mesh.getBufferList()) {
+            bytes += vb.getData().capacity()*(long) vb.getFormat().getComponentSize();
+        }
+        return bytes;
+    }
+    
+}//TreeBatchingBenchmark
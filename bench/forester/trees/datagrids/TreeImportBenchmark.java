@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees.datagrids;
+
+import forester.trees.TreeLayer;
+import com.jme3.scene.Node;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Measures tree import throughput into a datagrid: adding trees one at a
+ * time (addTree), the bulk method (addTrees) with one and with all threads, 
+ * and streaming imports from CSV and binary files.
+ * <br/><br/>
+ * Trees are spread randomly over a 10x10 km area (256 m pages, resolution 4).
+ * <br/><br/>
+ * Usage: TreeImportBenchmark [numTrees]. The CSV and binary files are 
+ * written to the temp directory, and deleted afterwards.
+ * 
+ * @author Andreas
+ */
+public class TreeImportBenchmark {
+    
+    protected static final int PAGE_SIZE = 256;
+    protected static final int RESOLUTION = 4;
+    protected static final float AREA = 10000;
+    protected static final int RUNS = 3;
+    
+    public static void main(String[] args) throws IOException {
+        int numTrees = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        TreeLayer layer = new TreeLayer(new Node("Tree"), false);
+        
+        Random rand = new Random(5);
+        TreeDataList trees = new TreeDataList(0, 0, numTrees);
+        for (int i = 0; i < numTrees; i++) {
+            trees.add(rand.nextFloat()*AREA - AREA/2, rand.nextFloat()*50, rand.nextFloat()*AREA - AREA/2, 
+                    0.8f + rand.nextFloat()*0.4f, rand.nextFloat()*6.28f);
+        }
+        System.out.println(numTrees + " trees, " + numThreads + " threads.");
+        
+        for (int run = 0; run < RUNS; run++) {
+            DataGrid grid = new DataGrid(PAGE_SIZE, RESOLUTION);
+            long t = System.nanoTime();
+            for (int i = 0; i < numTrees; i++) {
+                grid.addTree(layer, new TreeData(trees.getTreeX(i), trees.getTreeY(i), trees.getTreeZ(i),
+                        trees.getScale(i), trees.getRot(i)));
+            }
+            report("addTree (per tree)", numTrees, t);
+            
+            grid = new DataGrid(PAGE_SIZE, RESOLUTION);
+            t = System.nanoTime();
+            grid.addTrees(layer, trees, 1);
+            report("addTrees, 1 thread", numTrees, t);
+            
+            grid = new DataGrid(PAGE_SIZE, RESOLUTION);
+            t = System.nanoTime();
+            grid.addTrees(layer, trees, numThreads);
+            report("addTrees, " + numThreads + " threads", numTrees, t);
+        }
+        
+        File csv = File.createTempFile("trees", ".csv");
+        File bin = File.createTempFile("trees", ".bin");
+        try {
+            writeCSV(csv, trees);
+            writeBinary(bin, trees);
+            for (int run = 0; run < RUNS; run++) {
+                TreeImporter importer = new TreeImporter(new DataGrid(PAGE_SIZE, RESOLUTION));
+                long t = System.nanoTime();
+                BufferedReader reader = new BufferedReader(new FileReader(csv));
+                try {
+                    importer.importCSV(layer, reader);
+                } finally {
+                    reader.close();
+                }
+                report("CSV import", numTrees, t);
+                
+                importer = new TreeImporter(new DataGrid(PAGE_SIZE, RESOLUTION));
+                t = System.nanoTime();
+                InputStream in = new FileInputStream(bin);
+                try {
+                    importer.importBinary(layer, in);
+                } finally {
+                    in.close();
+                }
+                report("binary import", numTrees, t);
+            }
+        } finally {
+            csv.delete();
+            bin.delete();
+        }
+    }
+    
+    protected static void report(String name, int numTrees, long start) {
+        double ms = (System.nanoTime() - start)/1e6;
+        System.out.printf("%-22s %8.0f ms  %6.2f M trees/s%n", name, ms, numTrees/ms/1e3);
+    }
+    
+    protected static void writeCSV(File file, TreeDataList trees) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            out.println("# x,y,z,scale,rot");
+            for (int i = 0; i < trees.size(); i++) {
+                out.println(trees.getTreeX(i) + "," + trees.getTreeY(i) + "," + trees.getTreeZ(i) 
+                        + "," + trees.getScale(i) + "," + trees.getRot(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    protected static void writeBinary(File file, TreeDataList trees) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (int i = 0; i < trees.size(); i++) {
+                out.writeFloat(trees.getTreeX(i));
+                out.writeFloat(trees.getTreeY(i));
+                out.writeFloat(trees.getTreeZ(i));
+                out.writeFloat(trees.getScale(i));
+                out.writeFloat(trees.getRot(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+}//TreeImportBenchmark
@@ -36,7 +36,10 @@ import com.jme3.scene.Node;
 import com.jme3.terrain.Terrain;
 import com.jme3.terrain.geomipmap.TerrainQuad;
 import forester.grass.GrassLoader;
+import forester.image.DensityMapCache;
+import forester.image.DensityMapRegistry;
 import forester.random.FastRandom;
+import forester.random.RandomTable;
 import forester.trees.TreeLoader;
 import java.util.ArrayList;
 import java.util.logging.Level;
@@ -64,6 +67,11 @@ public final class Forester
     
     protected ArrayList<PageLoader> list;
     
+    //Decoded density maps, shared by all loaders.
+    protected static final int DENSITY_MAP_CACHE_SIZE = 32;
+    protected DensityMapRegistry densityMapRegistry = new DensityMapRegistry();
+    protected DensityMapCache densityMapCache = new DensityMapCache(DENSITY_MAP_CACHE_SIZE, densityMapRegistry);
+    
     protected static Forester instance;
     
     /**
@@ -236,6 +244,42 @@ public final class Forester
         return new FastRandom(seed);
     }
     
+    /**
+     * Sets the world seed. All grass and tree placement is derived from this
+     * seed (together with page, block and layer indices), so the same seed 
+     * always gives the same vegetation. Set it before any pages are loaded.
+     * 
+     * @param seed The world seed.
+     */
+    public void setWorldSeed(long seed){
+        RandomTable.setWorldSeed(seed);
+    }
+    
+    public long getWorldSeed(){
+        return RandomTable.getWorldSeed();
+    }
+    
+    /**
+     * Gets the density map cache. It is used by terrain based mapgrids, and
+     * can be shared by any other map providers.
+     * 
+     * @return The cache.
+     */
+    public DensityMapCache getDensityMapCache(){
+        return densityMapCache;
+    }
+    
+    /**
+     * Gets the density map registry. All density maps created by mapgrids
+     * (and the density map cache) are owned by the registry, so that maps 
+     * made from the same texture are shared.
+     * 
+     * @return The registry.
+     */
+    public DensityMapRegistry getDensityMapRegistry(){
+        return densityMapRegistry;
+    }
+    
     /**
      * Remove a Grass/Treeloader from the list.
      * 
@@ -42,8 +42,11 @@ import com.jme3.terrain.Terrain;
 import com.jme3.terrain.geomipmap.TerrainQuad;
 import forester.RectBounds;
 import forester.grass.GrassLayer.MeshType;
+import forester.grass.algorithms.GrassCountEstimator;
+import forester.grass.algorithms.GrassPlantingAlgorithm;
 import forester.image.DensityMap;
 import java.nio.Buffer;
+import java.util.ArrayList;
 
 /**
  * This class contains a few methods for generating grass meshes.
@@ -52,9 +55,20 @@ import java.nio.Buffer;
  */
 public class GrassGeometryGenerator {
     
+    //The largest number of cells along each side of a slopemap.
+    protected static final int MAX_SLOPEMAP_SIZE = 128;
+    
     protected Terrain terrain;
     protected float terrainHeight;
     protected Vector2f hStore = new Vector2f();
+    //The (approximate) size of each slopemap cell, in world units.
+    protected float slopeMapCellSize = 1f;
+    //Grass data array, re-used between blocks.
+    protected float[] grassDataPool;
+    //Whether or not to split batches that need 32 bit indices.
+    protected boolean splitBatches = false;
+    //The largest number of vertices that can use 16 bit indices.
+    protected static final int MAX_SHORT_INDEX_VERTICES = 65536;
     
     public GrassGeometryGenerator(Terrain terrain){
         this.terrain = terrain;
@@ -69,13 +83,92 @@ public class GrassGeometryGenerator {
      * @param block The grassblock.
      * @param page The grass page.
      * @param densityMap The densitymap (or null).
-     * @return A batched grass geometry.
+     * @return A batched grass geometry, or null if the block has no grass.
      */
     public Geometry createGrassGeometry(GrassLayer layer,
                                         GrassBlock block,
                                         GrassPage page,
                                         DensityMap densityMap
                                         )
+    {
+        return createGrassGeometry(layer, block, page, densityMap, createSlopeMap(block));
+    }
+    
+    /**
+     * This method creates a grass geometry using a pre-calculated slopemap.
+     * The slopemap only depends on the block, so it can be shared by all 
+     * layers.
+     * 
+     * @param layer The grasslayer.
+     * @param block The grassblock.
+     * @param page The grass page.
+     * @param densityMap The densitymap (or null).
+     * @param slopeMap The slopemap of the block.
+     * @return A batched grass geometry, or null if the block has no grass.
+     */
+    public Geometry createGrassGeometry(GrassLayer layer,
+                                        GrassBlock block,
+                                        GrassPage page,
+                                        DensityMap densityMap,
+                                        SlopeMap slopeMap
+                                        )
+    {
+        int grassCount = plantGrass(layer, block, page, densityMap, slopeMap);
+        
+        //No need to create a geometry if there's no grass data.
+        if(grassCount == 0){
+            return null;
+        }
+        return createGeometry(layer, createGrassMesh(layer, block, grassDataPool, 0, grassCount));
+    }
+    
+    /**
+     * This method creates the grass geometries of a block. If batch splitting
+     * is enabled, and the grass would need more then 65536 vertices, it is 
+     * split into several geometries that each use 16 bit indices. Otherwise 
+     * the list contains (at most) one geometry.
+     * 
+     * @param layer The grasslayer.
+     * @param block The grassblock.
+     * @param page The grass page.
+     * @param densityMap The densitymap (or null).
+     * @param slopeMap The slopemap of the block.
+     * @return A list of batched grass geometries (empty if the block has 
+     * no grass).
+     */
+    public ArrayList<Geometry> createGrassGeometries(   GrassLayer layer,
+                                                        GrassBlock block,
+                                                        GrassPage page,
+                                                        DensityMap densityMap,
+                                                        SlopeMap slopeMap
+                                                    )
+    {
+        ArrayList<Geometry> geoms = new ArrayList<Geometry>(1);
+        int grassCount = plantGrass(layer, block, page, densityMap, slopeMap);
+        
+        int batchSize = grassCount;
+        if(splitBatches){
+            batchSize = MAX_SHORT_INDEX_VERTICES/getVerticesPerPatch(layer.getMeshType());
+        }
+        for(int start = 0; start < grassCount; start += batchSize){
+            int count = Math.min(batchSize, grassCount - start);
+            geoms.add(createGeometry(layer, createGrassMesh(layer, block, grassDataPool, start, count)));
+        }
+        return geoms;
+    }
+    
+    /**
+     * Runs the planting algorithm of the layer, and removes patches on
+     * steep ground. The grass data is stored in the pooled array.
+     * 
+     * @return The number of grass patches.
+     */
+    protected int plantGrass(   GrassLayer layer,
+                                GrassBlock block,
+                                GrassPage page,
+                                DensityMap densityMap,
+                                SlopeMap slopeMap
+                            )
     {
         RectBounds bounds = block.getBounds();
         //Calculate the area of the page
@@ -86,52 +179,185 @@ public class GrassGeometryGenerator {
         //and other stuff.
         int grassCount = (int) (area * layer.getDensityMultiplier());
         
+        GrassPlantingAlgorithm pa = layer.getPlantingAlgorithm();
+        //Get an estimate of the final amount of grass from the density map. 
+        //If it's 0 there is no need to run the planting algorithm at all.
+        //Algorithms that can't estimate get room for the initial amount.
+        int estimate = grassCount;
+        if(pa instanceof GrassCountEstimator){
+            estimate = ((GrassCountEstimator) pa).estimateGrassCount(page, block, layer, densityMap, grassCount);
+        }
+        
+        if(estimate <= 0){
+            return 0;
+        }
         //Each "grass data point" consists of coords (x,z), scale and rotation-angle.
         //That makes 4 data points per patch of grass.
-        float[] grassData = new float[grassCount*4];
-        
+        float[] grassData = getGrassDataArray(estimate*4);
+
         //The planting algorithm returns the final amount of grass.
-        grassCount = layer.getPlantingAlgorithm().generateGrassData(page, block, layer, densityMap, grassData, grassCount);
+        grassCount = pa.generateGrassData(page, block, layer, densityMap, grassData, grassCount);
         
+        //Remove the patches that are on too steep ground.
+        return cullSteepGrass(layer, slopeMap, grassData, grassCount);
+    }
+    
+    /**
+     * Creates a grass mesh of the type used by the layer.
+     * 
+     * @param layer The grass-layer.
+     * @param block The grassblock.
+     * @param grassData The grassdata array.
+     * @param start The first patch to use.
+     * @param grassCount The number of patches to use.
+     * @return The mesh.
+     */
+    protected Mesh createGrassMesh(GrassLayer layer, GrassBlock block, float[] grassData, int start, int grassCount){
         Mesh grassMesh = new Mesh();
         
         MeshType meshType = layer.getMeshType();
         
-        //No need running this if there's no grass data.
-        if(grassCount != 0)
-        {
-            if(meshType == MeshType.QUADS){
-                grassMesh = generateGrass_QUADS(layer,block,grassData,grassCount);
-            } else if(meshType == MeshType.CROSSQUADS){
-                grassMesh = generateGrass_CROSSQUADS(layer,block,grassData,grassCount);
-            } else if(meshType == MeshType.BILLBOARDS){
-                grassMesh = generateGrass_BILLBOARDS(layer,block,grassData,grassCount);
-            }
+        if(meshType == MeshType.QUADS){
+            grassMesh = generateGrass_QUADS(layer,block,grassData,start,grassCount);
+        } else if(meshType == MeshType.CROSSQUADS){
+            grassMesh = generateGrass_CROSSQUADS(layer,block,grassData,start,grassCount);
+        } else if(meshType == MeshType.BILLBOARDS){
+            grassMesh = generateGrass_BILLBOARDS(layer,block,grassData,start,grassCount);
         }
-        
+        return grassMesh;
+    }
+    
+    protected Geometry createGeometry(GrassLayer layer, Mesh grassMesh){
         grassMesh.setStatic();
         grassMesh.updateCounts();
         Geometry geom = new Geometry();
         geom.setMesh(grassMesh);
         geom.setMaterial(layer.getMaterial().clone());
         geom.setQueueBucket(Bucket.Transparent);
-        
         return geom;
     }
     
+    /**
+     * Gets the smallest index format for a mesh. The largest index is 
+     * numVertices - 1, so 65536 vertices still fit in 16 bit indices.
+     * 
+     * @param numVertices The number of vertices.
+     * @return The index format.
+     */
+    protected static Format getIndexFormat(int numVertices){
+        if (numVertices > MAX_SHORT_INDEX_VERTICES) {
+            return Format.UnsignedInt;
+        } else if (numVertices > 256) {
+            return Format.UnsignedShort;
+        }
+        return Format.UnsignedByte;
+    }
+    
+    /**
+     * Gets the number of vertices used for each grass patch.
+     * 
+     * @param meshType The mesh type.
+     * @return The number of vertices.
+     */
+    protected static int getVerticesPerPatch(MeshType meshType){
+        return (meshType == MeshType.CROSSQUADS) ? 8 : 4;
+    }
+    
+    /**
+     * Gets the (pooled) grass data array. The same array is re-used for
+     * every block, and is only re-allocated when a larger one is needed.
+     * 
+     * @param size The minimum size of the array.
+     * @return The grass data array.
+     */
+    protected float[] getGrassDataArray(int size){
+        if(grassDataPool == null || grassDataPool.length < size){
+            grassDataPool = new float[size];
+        }
+        return grassDataPool;
+    }
+    
+    /**
+     * Creates a slopemap for the given block by sampling the terrain
+     * heights in a regular grid.
+     * 
+     * @param block The grassblock.
+     * @return The slopemap.
+     */
+    public SlopeMap createSlopeMap(GrassBlock block){
+        RectBounds bounds = block.getBounds();
+        float width = bounds.getWidth();
+        
+        int size = (int) FastMath.ceil(width/slopeMapCellSize);
+        size = Math.min(Math.max(size, 1), MAX_SLOPEMAP_SIZE);
+        
+        float cellSize = width/size;
+        float xMin = bounds.getxMin();
+        float zMin = bounds.getzMin();
+        
+        int stride = size + 1;
+        float[] heights = new float[stride*stride];
+        int hIt = 0;
+        for(int j = 0; j < stride; j++){
+            for(int i = 0; i < stride; i++){
+                heights[hIt++] = getTerrainHeight(xMin + i*cellSize, zMin + j*cellSize);
+            }
+        }
+        return new SlopeMap(bounds, size, heights);
+    }
+    
+    /**
+     * Removes all grass patches that are located on ground steeper then the
+     * maximum terrain slope of the layer. The remaining patches are moved to
+     * the beginning of the array, and the number of rejected patches is
+     * added to the statistics of the layer.
+     * 
+     * @param layer The grasslayer.
+     * @param slopeMap The slopemap of the block.
+     * @param grassData The grassdata array.
+     * @param grassCount The number of patches in the array.
+     * @return The number of remaining patches.
+     */
+    protected int cullSteepGrass(GrassLayer layer, SlopeMap slopeMap, float[] grassData, int grassCount){
+        if(slopeMap == null || grassCount == 0){
+            return grassCount;
+        }
+        float maxSlope = layer.getMaxTerrainSlope();
+        
+        int inIt = 0;
+        int outIt = 0;
+        for(int i = 0; i < grassCount; i++, inIt += 4){
+            if(slopeMap.getSlope(grassData[inIt], grassData[inIt + 1]) >= maxSlope){
+                continue;
+            }
+            if(outIt != inIt){
+                grassData[outIt] = grassData[inIt];
+                grassData[outIt + 1] = grassData[inIt + 1];
+                grassData[outIt + 2] = grassData[inIt + 2];
+                grassData[outIt + 3] = grassData[inIt + 3];
+            }
+            outIt += 4;
+        }
+        int newCount = outIt/4;
+        layer.addSlopeRejected(grassCount - newCount);
+        return newCount;
+    }
+    
     /**
      * Method for creating a static quad mesh.
      *
      * @param layer The grass-layer.
      * @param block The grassblock.
      * @param grassData The grassdata array. See the createGrassGeometry method.
+     * @param start The first patch in the grassdata array to use.
      * @param grassCount The initial grass-count. See the createGrassGeometry method.
      * 
      * @return A static quad mesh.
      */
     protected Mesh generateGrass_QUADS( GrassLayer layer,
                                         GrassBlock block,
-                                        float[] grassData, 
+                                        float[] grassData,
+                                        int start,
                                         int grassCount
                                       )
     {
@@ -148,14 +374,7 @@ public class GrassGeometryGenerator {
         float[] texCoords = new float[grassCount*8];
         
         //Slim the mesh down a little.
-        Format form = Format.UnsignedShort;
-        if (grassCount*4 > 65535) {
-            form = Format.UnsignedInt;
-        } else if (grassCount*4 > 255){ 
-            form = Format.UnsignedShort;
-        } else {
-            form = Format.UnsignedByte;
-        }
+        Format form = getIndexFormat(grassCount*4);
         
         Buffer data = VertexBuffer.createBuffer(form, 1, grassCount*6);           
         VertexBuffer iBuf = new VertexBuffer(VertexBuffer.Type.Index);
@@ -171,7 +390,7 @@ public class GrassGeometryGenerator {
         
         //A bunch of array iterators.
         //Grass data iterator
-        int gIt = 0;
+        int gIt = start*4;
         //position,texcoord, angle and color iterators
         int pIt = 0;
         int tIt = 0;
@@ -181,8 +400,6 @@ public class GrassGeometryGenerator {
         float cX = bounds.getCenter().x;
         float cZ = bounds.getCenter().z;
         
-        float maxSlope = layer.getMaxTerrainSlope();
-        
         //Generating quads
         for(int i = 0; i < grassCount; i++)
         {
@@ -207,20 +424,11 @@ public class GrassGeometryGenerator {
             float y1 = getTerrainHeight(x1,z1);
             float y2 = getTerrainHeight(x2,z2);
             
-            // Check the angle between y1 and y2. If too steep, collapse the quad.
-            float tanDYDX = FastMath.abs((y2 - y1)/(x2 - x1));
+            //Steep ground has already been culled, so every quad is a proper one.
+            float y1h = y1 + scaleY;
+            float y2h = y2 + scaleY;
             
-            float y1h = y1;
-            float y2h = y2;
-            
-            float tC = 0;
-            
-            //If angle is within bounds, generate a proper quad.
-            if(tanDYDX < maxSlope){
-                y1h = y1 + scaleY;
-                y2h = y2 + scaleY;
-                tC = 1;
-            }            
+            float tC = 1;
                         
             // ******************** Adding vertices ********************** 
             
@@ -300,12 +508,14 @@ public class GrassGeometryGenerator {
      * @param layer The grass-layer.
      * @param block The grassblock.
      * @param grassData The grassdata array. See the createGrassGeometry method.
+     * @param start The first patch in the grassdata array to use.
      * @param grassCount The initial grass-count. See the createGrassGeometry method.
      * @return A static cross-quad mesh.
      */
     protected Mesh generateGrass_CROSSQUADS(GrassLayer layer,
                                             GrassBlock block,
-                                            float[] grassData, 
+                                            float[] grassData,
+                                            int start,
                                             int grassCount
                                             )
     {
@@ -324,14 +534,7 @@ public class GrassGeometryGenerator {
         float[] normals = new float[grassCount*24];
         
         //Slim the mesh down a little.
-        Format form = Format.UnsignedShort;
-        if (grassCount*4 > 65535) {
-            form = Format.UnsignedInt;
-        } else if (grassCount*4 > 255){ 
-            form = Format.UnsignedShort;
-        } else {
-            form = Format.UnsignedByte;
-        }
+        Format form = getIndexFormat(grassCount*8);
         
         Buffer data = VertexBuffer.createBuffer(form, 1, grassCount*12);           
         VertexBuffer iBuf = new VertexBuffer(VertexBuffer.Type.Index);
@@ -347,7 +550,7 @@ public class GrassGeometryGenerator {
         
         //A bunch of array iterators.
         //Grass data iterator
-        int gIt = 0;
+        int gIt = start*4;
         //position, texcoord and angle iterators
         int pIt = 0;
         int tIt = 0;
@@ -357,7 +560,6 @@ public class GrassGeometryGenerator {
         float cX = bounds.getCenter().x;
         float cZ = bounds.getCenter().z;
         
-        float maxSlope = layer.getMaxTerrainSlope();
         //Generating quads
         for(int i = 0; i < grassCount; i++)
         {
@@ -386,29 +588,14 @@ public class GrassGeometryGenerator {
             float y3 = getTerrainHeight(x3,z3);
             float y4 = getTerrainHeight(x4,z4);
             
-            // Check the angles. If too steep, collapse the quad.
-            float tanDYDX1 = FastMath.abs((y2 - y1)/(x2 - x1));
-            float tanDYDX2 = FastMath.abs((y4 - y3)/(x4 - x3));
-            
-            float y1h = y1;
-            float y2h = y2;
-            float y3h = y3;
-            float y4h = y4;
-            
-            float tC = 0;
-            
-            //If angles are within bounds, generate a crossquad.
-            if( tanDYDX1 < maxSlope && tanDYDX2 < maxSlope ){
-                y1h = y1 + scaleY;
-                y2h = y2 + scaleY;
-                y3h = y3 + scaleY;
-                y4h = y4 + scaleY;
-                tC = 1;
-            }
-            
-            
-            
+            //Steep ground has already been culled, so every crossquad is a 
+            //proper one.
+            float y1h = y1 + scaleY;
+            float y2h = y2 + scaleY;
+            float y3h = y3 + scaleY;
+            float y4h = y4 + scaleY;
             
+            float tC = 1;
             
             //************Generate the first quad**************
             
@@ -541,12 +728,14 @@ public class GrassGeometryGenerator {
      * @param layer The grasslayer.
      * @param block The grassblock.
      * @param grassData The grassdata array. See the createGrassGeometry method.
+     * @param start The first patch in the grassdata array to use.
      * @param grassCount The initial grass-count. See the createGrassGeometry method.
      * @return A billboarded quad mesh.
      */
     protected Mesh generateGrass_BILLBOARDS(    GrassLayer layer,
                                                 GrassBlock block,
-                                                float[] grassData, 
+                                                float[] grassData,
+                                                int start,
                                                 int grassCount
                                            )
     {
@@ -564,14 +753,7 @@ public class GrassGeometryGenerator {
         float[] texCoords2 = new float[grassCount*8];
                 
         //Slim the mesh down a little.
-        Format form = Format.UnsignedShort;
-        if (grassCount*4 > 65535) {
-            form = Format.UnsignedInt;
-        } else if (grassCount*4 > 255){ 
-            form = Format.UnsignedShort;
-        } else {
-            form = Format.UnsignedByte;
-        }
+        Format form = getIndexFormat(grassCount*4);
         
         Buffer data = VertexBuffer.createBuffer(form, 1, grassCount*6);           
         VertexBuffer iBuf = new VertexBuffer(VertexBuffer.Type.Index);
@@ -587,7 +769,7 @@ public class GrassGeometryGenerator {
         
         //A bunch of array iterators.
         //Grass data iterator
-        int gIt = 0;
+        int gIt = start*4;
         //position, texcoord and color iterators
         int pIt = 0;
         int tIt = 0;
@@ -679,6 +861,40 @@ public class GrassGeometryGenerator {
         return mesh;
     }
     
+    public float getSlopeMapCellSize() {
+        return slopeMapCellSize;
+    }
+
+    /**
+     * Sets the size of slopemap cells (in world units). Smaller cells gives
+     * more accurate slope culling, but takes longer to calculate. The default
+     * value is 1.
+     * 
+     * @param slopeMapCellSize The cell size.
+     */
+    public void setSlopeMapCellSize(float slopeMapCellSize) {
+        if(slopeMapCellSize <= 0){
+            throw new RuntimeException("The slopemap cell size needs to be larger then 0.");
+        }
+        this.slopeMapCellSize = slopeMapCellSize;
+    }
+    
+    public boolean isSplitBatches() {
+        return splitBatches;
+    }
+
+    /**
+     * Sets whether or not blocks with too much grass for 16 bit indices 
+     * should be split into several geometries, each with less then 65536 
+     * vertices. Blocks that are small enough are never split. The default
+     * value is false.
+     * 
+     * @param splitBatches true to split large batches.
+     */
+    public void setSplitBatches(boolean splitBatches) {
+        this.splitBatches = splitBatches;
+    }
+    
     protected float getTerrainHeight(float x, float z){
         hStore.set(x, z);
         return terrain.getHeight(hStore) + terrainHeight;
@@ -39,6 +39,7 @@ import forester.MaterialSP;
 import forester.grass.algorithms.GPAUniform;
 import forester.grass.algorithms.GrassPlantingAlgorithm;
 import forester.image.DensityMap.Channel;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The GrassLayer class contains data specific to each type of grass.
@@ -84,6 +85,12 @@ public class GrassLayer {
     
     protected int cmTexNum = 0;
     
+    //Statistics. The number of grass patches rejected due to terrain slope.
+    protected final AtomicLong slopeRejected = new AtomicLong();
+    
+    //Used when deriving random seeds.
+    protected int id;
+    
     /**
      * Don't use this constructor. Create new instances of this class only 
      * through the GrassLoaders addLayer-method.
@@ -226,6 +233,46 @@ public class GrassLayer {
         return maxTerrainSlope;
     }
     
+    /**
+     * Get the total number of grass patches that has been rejected because
+     * the terrain was too steep (since the layer was created, or since the
+     * last reset).
+     * 
+     * @return The number of rejected patches.
+     */
+    public long getSlopeRejectedCount(){
+        return slopeRejected.get();
+    }
+    
+    public void resetSlopeRejectedCount(){
+        slopeRejected.set(0);
+    }
+    
+    /**
+     * Internal method.
+     * 
+     * @param count The number of rejected patches to add. 
+     */
+    public void addSlopeRejected(int count){
+        slopeRejected.addAndGet(count);
+    }
+    
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Sets the id of the layer. The id is used (together with the world seed
+     * and page/block indices) to seed the planting algorithm. It is set by
+     * the grassloader when the layer is added. Layers with the same id and
+     * the same settings will place grass at the same locations.
+     * 
+     * @param id The id.
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+    
     public boolean isSwaying(){
         return swaying;
     }
@@ -39,8 +39,10 @@ import com.jme3.terrain.geomipmap.TerrainGrid;
 import forester.grass.GrassLayer.MeshType;
 import forester.grass.datagrids.MapGrid;
 import forester.grass.datagrids.MapProvider;
+import forester.grass.datagrids.MappedMapGrid;
 import forester.grass.datagrids.TerrainBasedMapGrid;
 import forester.image.DensityMap;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.concurrent.Callable;
@@ -131,6 +133,20 @@ public class GrassLoader extends GeometryPageLoader {
         return grid;
     }
     
+    /**
+     * Creates and returns a mapgrid that reads memory-mapped density map
+     * files from a directory.
+     * 
+     * @param directory The directory.
+     * @param numMaps The number of maps per page.
+     * @return The mapgrid.
+     */
+    public MappedMapGrid createMappedMapGrid(File directory, int numMaps) {
+        MappedMapGrid grid = new MappedMapGrid(directory, pagingManager.getPageSize(), numMaps);
+        this.mapProvider = grid;
+        return grid;
+    }
+    
     public TerrainBasedMapGrid createTerrainBasedMapGrid(){
         TerrainBasedMapGrid tbmg = new TerrainBasedMapGrid((TerrainGrid)terrain,pagingManager.getPageSize());
         return tbmg;
@@ -155,6 +171,7 @@ public class GrassLoader extends GeometryPageLoader {
      */
     public GrassLayer addLayer(Material material, MeshType type) {
         GrassLayer layer = new GrassLayer(material, type, this);
+        layer.setId(layers.size());
         layers.add(layer);
         return layer;
     }
@@ -187,6 +204,18 @@ public class GrassLoader extends GeometryPageLoader {
         this.binariesDir = binariesDir;
     }
 
+    /**
+     * Releases the density maps of a page, if the map provider keeps them
+     * per page. This is called when the page is unloaded.
+     * 
+     * @param page The page.
+     */
+    protected void releaseMaps(GrassPage page) {
+        if (mapProvider instanceof MappedMapGrid) {
+            ((MappedMapGrid) mapProvider).releaseMaps(page);
+        }
+    }
+    
     public MapProvider getMapProvider() {
         return mapProvider;
     }
@@ -198,6 +227,10 @@ public class GrassLoader extends GeometryPageLoader {
     public Terrain getTerrain() {
         return terrain;
     }
+
+    public GrassGeometryGenerator getGrassGenerator() {
+        return grassGen;
+    }
     
     protected class LoadTask implements Callable<Boolean> {
 
@@ -212,6 +245,11 @@ public class GrassLoader extends GeometryPageLoader {
 
             //Get the density and colormaps.
             HashMap<Integer,DensityMap> densityMaps = mapProvider.getMaps(page);
+            //The page may have been unloaded while the maps were read.
+            if (page.isUnloaded()) {
+                releaseMaps(page);
+                return false;
+            }
             if (densityMaps == null) {
                 return false;
             }
@@ -228,6 +266,9 @@ public class GrassLoader extends GeometryPageLoader {
                 GrassBlock block = (GrassBlock) b;
                 Node[] nodes = new Node[1];
                 nodes[0] = new Node("Grass");
+                //The slopemap only depends on the terrain, so it is shared
+                //by all layers.
+                SlopeMap slopeMap = grassGen.createSlopeMap(block);
 
                 for (int i = 0; i < layers.size(); i++) {
                     
@@ -238,15 +279,19 @@ public class GrassLoader extends GeometryPageLoader {
                         continue;
                     }
 
-                    Geometry geom = grassGen.createGrassGeometry(   layer,
-                                                                    block,
-                                                                    page,
-                                                                    densityMap
-                                                                );
-                    
-                    geom.setQueueBucket(Bucket.Transparent);
-                    geom.setShadowMode(layer.getShadowMode());
-                    nodes[0].attachChild(geom);
+                    //Blocks may be split into several batches. Nothing is 
+                    //planted in empty parts of the density map.
+                    ArrayList<Geometry> geoms = grassGen.createGrassGeometries( layer,
+                                                                                block,
+                                                                                page,
+                                                                                densityMap,
+                                                                                slopeMap
+                                                                              );
+                    for (Geometry geom : geoms) {
+                        geom.setQueueBucket(Bucket.Transparent);
+                        geom.setShadowMode(layer.getShadowMode());
+                        nodes[0].attachChild(geom);
+                    }
 
                 }//for each layer
                 block.setNodes(nodes);
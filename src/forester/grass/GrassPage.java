@@ -40,9 +40,29 @@ import forester.paging.interfaces.PagingManager;
  */
 public class GrassPage extends GeometryPage {
     
+    //Set when the page is unloaded, so that a running load task can
+    //release what it acquired.
+    protected volatile boolean unloaded;
+    
     public GrassPage(int x, int z, PagingManager manager) {
         super(x, z, manager);
     }
+    
+    @Override
+    public void unload() {
+        super.unload();
+        unloaded = true;
+        if (manager.getPageLoader() instanceof GrassLoader) {
+            ((GrassLoader) manager.getPageLoader()).releaseMaps(this);
+        }
+    }
+    
+    /**
+     * @return true if the page has been unloaded.
+     */
+    public boolean isUnloaded() {
+        return unloaded;
+    }
 
     @Override
     public GrassBlock createBlock(int x, int y, Vector3f center, PagingManager manager) {
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.grass;
+
+import forester.RectBounds;
+
+/**
+ * A grid of terrain slopes covering a single grass block. The slopes are
+ * calculated once per block (from the terrain heights at the grid corners),
+ * and is then used to reject grass patches on steep ground before any 
+ * geometry is generated.
+ * 
+ * @author Andreas
+ */
+public class SlopeMap {
+    
+    //The slope of each cell, stored as the tangent of the slope angle.
+    protected float[] slopes;
+    protected int size;
+    protected float xMin, zMin;
+    protected float cellSize;
+    protected float invCellSize;
+    
+    /**
+     * Creates a slopemap from a grid of terrain heights.
+     * 
+     * @param bounds The bounds of the block.
+     * @param size The number of cells along each side of the map.
+     * @param heights The terrain heights at the cell corners. The array
+     * contains (size + 1)^2 values, row by row (z), starting at the 
+     * xMin, zMin corner of the block.
+     */
+    public SlopeMap(RectBounds bounds, int size, float[] heights){
+        this.size = size;
+        this.xMin = bounds.getxMin();
+        this.zMin = bounds.getzMin();
+        this.cellSize = bounds.getWidth()/size;
+        this.invCellSize = 1f/cellSize;
+        slopes = new float[size*size];
+        
+        int stride = size + 1;
+        float f = 0.5f*invCellSize;
+        
+        for(int j = 0; j < size; j++){
+            for(int i = 0; i < size; i++){
+                float h00 = heights[i + j*stride];
+                float h10 = heights[i + 1 + j*stride];
+                float h01 = heights[i + (j + 1)*stride];
+                float h11 = heights[i + 1 + (j + 1)*stride];
+                //Average gradient over the cell.
+                float dX = (h10 - h00 + h11 - h01)*f;
+                float dZ = (h01 - h00 + h11 - h10)*f;
+                slopes[i + j*size] = (float) Math.sqrt(dX*dX + dZ*dZ);
+            }
+        }
+    }
+    
+    /**
+     * Get the slope at the given (world) xz-coordinates. Coordinates
+     * outside of the block are clamped to its edges.
+     * 
+     * @param x The x-coordinate.
+     * @param z The z-coordinate.
+     * @return The tangent of the slope angle.
+     */
+    public float getSlope(float x, float z){
+        int i = (int)((x - xMin)*invCellSize);
+        int j = (int)((z - zMin)*invCellSize);
+        i = (i < 0) ? 0 : (i >= size) ? size - 1 : i;
+        j = (j < 0) ? 0 : (j >= size) ? size - 1 : j;
+        return slopes[i + j*size];
+    }
+    
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public int getSize() {
+        return size;
+    }
+    
+}//SlopeMap
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.grass.algorithms;
+
+import forester.RectBounds;
+import forester.grass.GrassBlock;
+import forester.grass.GrassLayer;
+import forester.grass.GrassPage;
+import forester.image.DensityMap;
+import forester.image.DensityMap.Channel;
+import forester.random.FastRandom;
+
+/**
+ * A planting algorithm that samples the density map directly, instead of
+ * generating uniformly distributed points and rejecting most of them. 
+ * <br/><br/>
+ * The density map texels that covers the block are put in an alias table, 
+ * weighted by their (scaled) density and the area they cover. Points are 
+ * then generated by picking a texel from the table and a random location 
+ * inside that texel. Empty parts of the density map are skipped in groups
+ * of texels, using the max pyramid of the map. The expected amount 
+ * and distribution of grass is the same as with <code>GPAUniform</code> 
+ * (using unfiltered density values), but only accepted points are ever 
+ * generated. This is much faster when density maps are sparse, or when 
+ * the density multiplier is high compared to the density map resolution.
+ * For dense, high resolution maps, <code>GPAUniform</code> is usually faster,
+ * since every texel in the block has to be visited once.
+ * 
+ * @author Andreas
+ */
+public class GPAImportance extends GPAUniform {
+    
+    //The size of the texel groups used to skip empty parts of density maps.
+    protected static final int TEXEL_GROUP_SIZE = 8;
+    
+    public GPAImportance(){}
+    
+    public GPAImportance(float threshold){
+        super(threshold);
+    }
+    
+    @Override
+    public int generateGrassData(   GrassPage page,
+                                    GrassBlock block,
+                                    GrassLayer layer,
+                                    DensityMap densityMap,
+                                    float[] grassData, 
+                                    int grassCount
+                                ) 
+    {
+        RectBounds bounds = block.getBounds();
+        FastRandom rand = new FastRandom(getSeed(page, block, layer));
+        
+        Channel channel = layer.getDmChannel();
+        
+        //Block bounds in density map (page) coordinates.
+        float offsetX = page.getPageSize()*0.5f - page.getCenterPoint().x;
+        float offsetZ = page.getPageSize()*0.5f - page.getCenterPoint().z;
+        float xMin = bounds.getxMin() + offsetX;
+        float zMin = bounds.getzMin() + offsetZ;
+        float xMax = bounds.getxMax() + offsetX;
+        float zMax = bounds.getzMax() + offsetZ;
+        
+        //The texel grid covering the block.
+        float texelSize = 1f/densityMap.getScale();
+        int i0 = (int) Math.floor(xMin/texelSize);
+        int j0 = (int) Math.floor(zMin/texelSize);
+        int numX = (int) Math.ceil(xMax/texelSize) - i0;
+        int numZ = (int) Math.ceil(zMax/texelSize) - j0;
+        int numCells = numX*numZ;
+        
+        //Weight of each cell (acceptance probability times area).
+        float[] weights = new float[numCells];
+        float totalWeight = 0;
+        
+        //If zero density means no grass, empty regions of the density map 
+        //can be skipped. This is checked for groups of texels at a time, 
+        //using the max pyramid of the density map.
+        boolean skipEmpty = getAcceptance(0) <= 0;
+        int groupSize = skipEmpty ? TEXEL_GROUP_SIZE : Math.max(numX, numZ);
+        
+        for(int gj = 0; gj < numZ; gj += groupSize){
+            int gjEnd = Math.min(gj + groupSize, numZ);
+            for(int gi = 0; gi < numX; gi += groupSize){
+                int giEnd = Math.min(gi + groupSize, numX);
+                
+                if(skipEmpty && densityMap.isEmpty( Math.max((i0 + gi)*texelSize, xMin),
+                                                    Math.max((j0 + gj)*texelSize, zMin),
+                                                    Math.min((i0 + giEnd)*texelSize, xMax),
+                                                    Math.min((j0 + gjEnd)*texelSize, zMax),
+                                                    channel
+                                                  ))
+                {
+                    continue;
+                }
+                
+                for(int j = gj; j < gjEnd; j++){
+                    float z0 = Math.max((j0 + j)*texelSize, zMin);
+                    float z1 = Math.min((j0 + j + 1)*texelSize, zMax);
+                    for(int i = gi; i < giEnd; i++){
+                        float x0 = Math.max((i0 + i)*texelSize, xMin);
+                        float x1 = Math.min((i0 + i + 1)*texelSize, xMax);
+                        if(x1 <= x0 || z1 <= z0){
+                            continue;
+                        }
+                        //Sample at the center of the part of the texel that is 
+                        //inside the block.
+                        float d = densityMap.getDensityUnfiltered((x0 + x1)*0.5f, (z0 + z1)*0.5f, channel);
+                        float w = getAcceptance(d)*(x1 - x0)*(z1 - z0);
+                        weights[i + j*numX] = w;
+                        totalWeight += w;
+                    }
+                }
+            }
+        }
+        
+        if(totalWeight <= 0){
+            return 0;
+        }
+        
+        //The expected number of accepted points, if grassCount uniformly
+        //distributed points had been tested against the density map.
+        float expected = grassCount*totalWeight/(bounds.getWidth()*bounds.getHeight());
+        int count = (int)(expected + rand.unitRandom());
+        if(count > grassData.length/4){
+            logTruncated(layer, block, grassData.length/4);
+            count = grassData.length/4;
+        }
+        
+        //Build the alias table.
+        float[] prob = new float[numCells];
+        int[] alias = new int[numCells];
+        buildAliasTable(weights, totalWeight, prob, alias);
+        
+        int iIt = 0;
+        for(int n = 0; n < count; n++){
+            //Pick a cell.
+            float u = rand.unitRandom()*numCells;
+            int cell = Math.min((int)u, numCells - 1);
+            if(u - cell >= prob[cell]){
+                cell = alias[cell];
+            }
+            int i = cell % numX;
+            int j = cell / numX;
+            
+            //Pick a point inside the (clipped) cell.
+            float x0 = Math.max((i0 + i)*texelSize, xMin);
+            float x1 = Math.min((i0 + i + 1)*texelSize, xMax);
+            float z0 = Math.max((j0 + j)*texelSize, zMin);
+            float z1 = Math.min((j0 + j + 1)*texelSize, zMax);
+            
+            float x = x0 + rand.unitRandom()*(x1 - x0);
+            float z = z0 + rand.unitRandom()*(z1 - z0);
+            
+            grassData[iIt++] = x - offsetX;
+            grassData[iIt++] = z - offsetZ;
+            grassData[iIt++] = rand.unitRandom();
+            // (-pi/2, pi/2]
+            grassData[iIt++] = (-0.5f + rand.unitRandom())*3.141593f;
+        }
+        return count;
+    }
+    
+    /**
+     * Builds an alias table (using Vose's method) for sampling indices
+     * in proportion to their weights.
+     * 
+     * @param weights The weights.
+     * @param totalWeight The sum of all weights.
+     * @param prob Stores the probability of keeping each index.
+     * @param alias Stores the alias of each index.
+     */
+    protected static void buildAliasTable(float[] weights, float totalWeight, float[] prob, int[] alias){
+        int n = weights.length;
+        //Work list. Small entries are stored from the start, large entries
+        //from the end.
+        int[] work = new int[n];
+        int small = 0;
+        int large = n;
+        float f = n/totalWeight;
+        
+        for(int i = 0; i < n; i++){
+            prob[i] = weights[i]*f;
+            alias[i] = i;
+            if(prob[i] < 1f){
+                work[small++] = i;
+            } else {
+                work[--large] = i;
+            }
+        }
+        
+        while(small > 0 && large < n){
+            int s = work[--small];
+            int l = work[large];
+            alias[s] = l;
+            prob[l] = (prob[l] + prob[s]) - 1f;
+            if(prob[l] < 1f){
+                large++;
+                work[small++] = l;
+            }
+        }
+        //Whatever remains has a probability of 1 (save rounding errors).
+        while(small > 0){
+            prob[work[--small]] = 1f;
+        }
+        while(large < n){
+            prob[work[large++]] = 1f;
+        }
+    }
+    
+}//GPAImportance
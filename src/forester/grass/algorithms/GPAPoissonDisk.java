@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.grass.algorithms;
+
+import com.jme3.math.FastMath;
+import forester.RectBounds;
+import forester.grass.GrassBlock;
+import forester.grass.GrassLayer;
+import forester.grass.GrassPage;
+import forester.image.DensityMap;
+import forester.image.DensityMap.Channel;
+import forester.random.FastRandom;
+import forester.random.RandomTable;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A planting algorithm that places grass-patches using blue noise (a 
+ * Poisson-disk distribution) instead of white noise. 
+ * <br/><br/>
+ * Patches are never closer to each other then the minimum distance, so they
+ * cover the ground much more evenly then uniformly distributed patches. This
+ * gives the same visual coverage with a lot less patches (and vertices). 
+ * <br/><br/>
+ * The points are taken from a periodic Poisson-disk tile, which is generated 
+ * once for each minimum distance (using a spatial hash grid) and then 
+ * repeated over the world. Each point is thinned against the density map 
+ * using a hash of its location in the pattern (and the layer seed), so the 
+ * result is the same every time a block is loaded, and there are no seams 
+ * or overlaps at block boundaries.
+ * 
+ * @author Andreas
+ */
+public class GPAPoissonDisk extends GPAUniform {
+    
+    //The number of points per square unit, times the minimum distance
+    //squared, of a maximal Poisson-disk set.
+    protected static final float PACKING = 0.69f;
+    //The number of hash grid cells along the side of a tile.
+    protected static final int TILE_CELLS = 64;
+    //The number of candidates tried around each point when filling a tile.
+    protected static final int CANDIDATES = 30;
+    
+    protected float minDistance = 0;
+    protected float coverage = 0.5f;
+    protected long seed = 0;
+    
+    //Pattern tiles by minimum distance, so that layers with different
+    //density multipliers can share the algorithm.
+    protected final HashMap<Float, PoissonDiskTile> tiles = new HashMap<Float, PoissonDiskTile>();
+    
+    public GPAPoissonDisk(){}
+    
+    public GPAPoissonDisk(float threshold){
+        super(threshold);
+    }
+    
+    /**
+     * @param threshold The density threshold.
+     * @param minDistance The minimum distance between grass-patches.
+     */
+    public GPAPoissonDisk(float threshold, float minDistance){
+        super(threshold);
+        setMinDistance(minDistance);
+    }
+    
+    @Override
+    public int generateGrassData(   GrassPage page,
+                                    GrassBlock block,
+                                    GrassLayer layer,
+                                    DensityMap densityMap,
+                                    float[] grassData, 
+                                    int grassCount
+                                ) 
+    {
+        PoissonDiskTile t = getTile(layer);
+        if(t == null){
+            return 0;
+        }
+        RectBounds bounds = block.getBounds();
+        Channel channel = layer.getDmChannel();
+        
+        float offsetX = page.getPageSize()*0.5f - page.getCenterPoint().x;
+        float offsetZ = page.getPageSize()*0.5f - page.getCenterPoint().z;
+        
+        float xMin = bounds.getxMin();
+        float zMin = bounds.getzMin();
+        float xMax = bounds.getxMax();
+        float zMax = bounds.getzMax();
+        
+        //Seed used for the whole layer, so that the pattern lines up 
+        //between blocks and pages.
+        long layerSeed = RandomTable.hash(RandomTable.getLayerSeed(RandomTable.GRASS, layer.getId()), seed);
+        
+        //The origin of the pattern.
+        float originX = unitValue(layerSeed, 0)*t.size;
+        float originZ = unitValue(layerSeed, 24)*t.size;
+        
+        int txMin = (int) Math.floor((xMin - originX)/t.size);
+        int txMax = (int) Math.floor((xMax - originX)/t.size);
+        int tzMin = (int) Math.floor((zMin - originZ)/t.size);
+        int tzMax = (int) Math.floor((zMax - originZ)/t.size);
+        
+        int iIt = 0;
+        int maxIt = grassData.length - 4;
+        
+        for(int tz = tzMin; tz <= tzMax; tz++){
+            float tileZ = originZ + tz*t.size;
+            int cjMin = Math.max((int) Math.floor((zMin - tileZ)/t.cellSize), 0);
+            int cjMax = Math.min((int) Math.floor((zMax - tileZ)/t.cellSize), t.cells - 1);
+            for(int tx = txMin; tx <= txMax; tx++){
+                float tileX = originX + tx*t.size;
+                int ciMin = Math.max((int) Math.floor((xMin - tileX)/t.cellSize), 0);
+                int ciMax = Math.min((int) Math.floor((xMax - tileX)/t.cellSize), t.cells - 1);
+                long tileHash = RandomTable.hash(RandomTable.hash(layerSeed, tx), tz);
+                
+                for(int cj = cjMin; cj <= cjMax; cj++){
+                    for(int ci = ciMin; ci <= ciMax; ci++){
+                        int cell = ci + cj*t.cells;
+                        float px = t.pointsX[cell];
+                        if(px != px){
+                            //Empty cell (NaN).
+                            continue;
+                        }
+                        float x = tileX + px;
+                        float z = tileZ + t.pointsZ[cell];
+                        //Half-open bounds, so that points on the border 
+                        //between two blocks are only planted once.
+                        if(x < xMin || x >= xMax || z < zMin || z >= zMax){
+                            continue;
+                        }
+                        
+                        long h = RandomTable.hash(tileHash, cell);
+                        float d = scaleDensity(densityMap.getDensityUnfiltered(x + offsetX, z + offsetZ, channel));
+                        if(unitValue(h, 0) + threshold >= d){
+                            continue;
+                        }
+                        if(iIt > maxIt){
+                            logTruncated(layer, block, grassData.length/4);
+                            return iIt/4;
+                        }
+                        grassData[iIt++] = x;
+                        grassData[iIt++] = z;
+                        grassData[iIt++] = unitValue(h, 24);
+                        // (-pi/2, pi/2]
+                        grassData[iIt++] = (-0.5f + unitValue(h, 40))*3.141593f;
+                    }
+                }
+            }
+        }
+        return iIt/4;
+    }
+    
+    @Override
+    public int estimateGrassCount(  GrassPage page,
+                                    GrassBlock block,
+                                    GrassLayer layer,
+                                    DensityMap densityMap,
+                                    int grassCount
+                                 )
+    {
+        PoissonDiskTile t = getTile(layer);
+        if(t == null || densityMap == null){
+            return 0;
+        }
+        RectBounds bounds = block.getBounds();
+        
+        float offsetX = page.getPageSize()*0.5f - page.getCenterPoint().x;
+        float offsetZ = page.getPageSize()*0.5f - page.getCenterPoint().z;
+        
+        float p = getMaxAcceptance( densityMap,
+                                    bounds.getxMin() + offsetX,
+                                    bounds.getzMin() + offsetZ,
+                                    bounds.getxMax() + offsetX,
+                                    bounds.getzMax() + offsetZ,
+                                    layer.getDmChannel()
+                                  );
+        if(p <= 0){
+            return 0;
+        }
+        //The number of points of the pattern in the block does not vary 
+        //much, since they are evenly spaced. The margin covers points along
+        //the borders.
+        float points = bounds.getWidth()*bounds.getHeight()*t.count/(t.size*t.size);
+        float border = 2f*(bounds.getWidth() + bounds.getHeight())/t.minDistance;
+        float expected = points*p;
+        return (int) (expected + 4f*FastMath.sqrt(expected) + border + 8f);
+    }
+    
+    /**
+     * Gets the minimum distance used for the given layer.
+     * 
+     * @param layer The grass-layer.
+     * @return The minimum distance, or 0 if no grass should be planted.
+     */
+    public float getMinDistance(GrassLayer layer){
+        if(minDistance > 0){
+            return minDistance;
+        }
+        float density = layer.getDensityMultiplier()*coverage;
+        if(density <= 0){
+            return 0;
+        }
+        return FastMath.sqrt(PACKING/density);
+    }
+    
+    /**
+     * Gets the pattern tile for the given layer. One tile is created and 
+     * kept for each minimum distance that is used.
+     * 
+     * @param layer The grass-layer.
+     * @return The tile, or null if no grass should be planted.
+     */
+    protected synchronized PoissonDiskTile getTile(GrassLayer layer){
+        float r = getMinDistance(layer);
+        if(r <= 0){
+            return null;
+        }
+        PoissonDiskTile tile = tiles.get(r);
+        if(tile == null){
+            tile = new PoissonDiskTile(r, TILE_CELLS, seed);
+            tiles.put(r, tile);
+        }
+        return tile;
+    }
+    
+    public float getMinDistance() {
+        return minDistance;
+    }
+    
+    /**
+     * Sets the minimum distance between grass-patches. If this is set to 0
+     * (default), the distance is derived from the density multiplier of
+     * the layer and the coverage value.
+     * 
+     * @param minDistance The minimum distance.
+     */
+    public void setMinDistance(float minDistance) {
+        if(minDistance < 0){
+            throw new RuntimeException("Minimum distance can't be negative.");
+        }
+        this.minDistance = minDistance;
+    }
+
+    public float getCoverage() {
+        return coverage;
+    }
+    
+    /**
+     * Sets the amount of patches used compared to GPAUniform, when the minimum
+     * distance is derived from the density multiplier. The default is 0.5,
+     * which gives about the same visual coverage as uniform placement 
+     * with twice the amount of patches.
+     * 
+     * @param coverage The coverage value.
+     */
+    public void setCoverage(float coverage) {
+        if(coverage <= 0){
+            throw new RuntimeException("Coverage must be larger then 0.");
+        }
+        this.coverage = coverage;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+    
+    /**
+     * Sets the seed of the pattern. The pattern is also offset and thinned
+     * differently for each layer (and world seed), so this is only needed 
+     * to change the shape of the pattern tile itself.
+     * 
+     * @param seed The seed.
+     */
+    public synchronized void setSeed(long seed) {
+        if(seed != this.seed){
+            tiles.clear();
+        }
+        this.seed = seed;
+    }
+    
+    /**
+     * Gets a value in [0,1) from 24 bits of a hash.
+     * 
+     * @param h The hash.
+     * @param shift The position of the bits.
+     * @return The value.
+     */
+    protected static float unitValue(long h, int shift){
+        return ((h >>> shift) & 0xFFFFFF)*0x1.0p-24f;
+    }
+    
+    /**
+     * A square, periodic Poisson-disk pattern. The points are stored in a
+     * hash grid where each cell is small enough to hold at most one point.
+     */
+    protected static class PoissonDiskTile {
+        
+        protected final float minDistance;
+        protected final long seed;
+        protected final int cells;
+        protected final float cellSize;
+        protected final float size;
+        //Point coordinates (relative to the tile), or NaN for empty cells.
+        protected final float[] pointsX;
+        protected final float[] pointsZ;
+        protected int count;
+        
+        protected PoissonDiskTile(float minDistance, int cells, long seed){
+            this.minDistance = minDistance;
+            this.seed = seed;
+            this.cells = cells;
+            this.cellSize = minDistance/FastMath.sqrt(2f);
+            this.size = cells*cellSize;
+            
+            pointsX = new float[cells*cells];
+            pointsZ = new float[cells*cells];
+            Arrays.fill(pointsX, Float.NaN);
+            Arrays.fill(pointsZ, Float.NaN);
+            
+            generate(new FastRandom(RandomTable.hash(seed, 3) | 1L));
+        }
+        
+        //Bridson's algorithm, using toroidal distances so that the tile
+        //can be repeated.
+        protected final void generate(FastRandom rand){
+            int[] active = new int[cells*cells];
+            int numActive = 0;
+            
+            int first = addPoint(rand.unitRandom()*size, rand.unitRandom()*size);
+            active[numActive++] = first;
+            
+            while(numActive > 0){
+                int a = (int) (rand.unitRandom()*numActive);
+                a = Math.min(a, numActive - 1);
+                int cell = active[a];
+                float px = pointsX[cell];
+                float pz = pointsZ[cell];
+                
+                boolean found = false;
+                for(int k = 0; k < CANDIDATES; k++){
+                    float angle = rand.unitRandom()*FastMath.TWO_PI;
+                    float dist = minDistance*(1f + rand.unitRandom());
+                    float x = wrap(px + FastMath.cos(angle)*dist);
+                    float z = wrap(pz + FastMath.sin(angle)*dist);
+                    if(isFree(x, z)){
+                        active[numActive++] = addPoint(x, z);
+                        found = true;
+                        break;
+                    }
+                }
+                if(!found){
+                    active[a] = active[--numActive];
+                }
+            }
+        }
+        
+        protected float wrap(float v){
+            v %= size;
+            if(v < 0){
+                v += size;
+            }
+            //Rounding may give v == size.
+            return (v >= size) ? 0 : v;
+        }
+        
+        protected int addPoint(float x, float z){
+            int ci = Math.min((int) (x/cellSize), cells - 1);
+            int cj = Math.min((int) (z/cellSize), cells - 1);
+            int cell = ci + cj*cells;
+            pointsX[cell] = x;
+            pointsZ[cell] = z;
+            count++;
+            return cell;
+        }
+        
+        protected boolean isFree(float x, float z){
+            int ci = Math.min((int) (x/cellSize), cells - 1);
+            int cj = Math.min((int) (z/cellSize), cells - 1);
+            float rSq = minDistance*minDistance;
+            float half = size*0.5f;
+            //Points within the minimum distance are at most two cells away.
+            for(int j = -2; j <= 2; j++){
+                int cz = (cj + j + cells) % cells;
+                for(int i = -2; i <= 2; i++){
+                    int cx = (ci + i + cells) % cells;
+                    int cell = cx + cz*cells;
+                    float ox = pointsX[cell];
+                    if(ox != ox){
+                        continue;
+                    }
+                    float dx = Math.abs(ox - x);
+                    float dz = Math.abs(pointsZ[cell] - z);
+                    if(dx > half){
+                        dx = size - dx;
+                    }
+                    if(dz > half){
+                        dz = size - dz;
+                    }
+                    if(dx*dx + dz*dz < rSq){
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }//PoissonDiskTile
+    
+}//GPAPoissonDisk
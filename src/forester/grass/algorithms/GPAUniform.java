@@ -34,22 +34,30 @@ import forester.grass.GrassLayer;
 import forester.grass.GrassBlock;
 import forester.grass.GrassPage;
 import forester.random.FastRandom;
+import forester.random.RandomTable;
 import forester.image.DensityMap;
 import forester.image.DensityMap.Channel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * The default planting algorithm.
  * 
  * @author Andreas
  */
-public class GPAUniform implements GrassPlantingAlgorithm {
+public class GPAUniform implements GrassPlantingAlgorithm, GrassCountEstimator {
 
     public enum Scaling {Linear, Quadratic, Linear_Inverted, Quadratic_Inverted}
     protected Scaling scaling = Scaling.Linear;
     
+    protected static final Logger log = Logger.getLogger(GPAUniform.class.getName());
+    
     protected float threshold = 0;
     protected boolean binary = false;
     
+    //The number of candidate points sampled at a time.
+    protected static final int BATCH_SIZE = 512;
+    
     public GPAUniform(){}
     
     public GPAUniform(float threshold){
@@ -68,51 +76,177 @@ public class GPAUniform implements GrassPlantingAlgorithm {
         RectBounds bounds = block.getBounds();
         //Populating the array of locations (and also getting the total amount
         //of quads).
-        FastRandom rand = new FastRandom();
+        FastRandom rand = new FastRandom(getSeed(page, block, layer));
         
         float width = bounds.getWidth();
         
         Channel channel = layer.getDmChannel();
         
-        float offsetX = bounds.getxMin() - page.getCenterPoint().x + page.getPageSize()*0.5f;
-        float offsetZ = bounds.getzMin() - page.getCenterPoint().z + page.getPageSize()*0.5f;
+        //Density map (page) coordinates of the block.
+        float offsetX = page.getPageSize()*0.5f - page.getCenterPoint().x;
+        float offsetZ = page.getPageSize()*0.5f - page.getCenterPoint().z;
+        float xMin = bounds.getxMin() + offsetX;
+        float zMin = bounds.getzMin() + offsetZ;
+        
+        //Candidates are generated and sampled in batches.
+        int batchSize = Math.min(grassCount, BATCH_SIZE);
+        float[] xs = new float[batchSize];
+        float[] zs = new float[batchSize];
+        float[] ds = new float[batchSize];
         
         //Iterator
         int iIt = 0;
+        //The array may be smaller then grassCount*4 if it was sized
+        //using the estimated grass count.
+        int maxIt = grassData.length - 4;
 
-        for (int i = 0; i < grassCount; i++) {
-            
-            float x = rand.unitRandom() * width;
-            float z = rand.unitRandom() * width;
-            float xx = x + offsetX;
-            float zz = z + offsetZ;
-            
-            float d = densityMap.getDensityUnfiltered(xx, zz, channel);
-            
-            if(scaling == Scaling.Quadratic){
-                d *= d;
-            } else if (scaling == Scaling.Linear_Inverted){
-                d = 1 - d;
-            } else if (scaling == Scaling.Quadratic_Inverted){
-                d = 1 - d*d;
+        for (int i = 0; i < grassCount; i += batchSize) {
+            int n = Math.min(batchSize, grassCount - i);
+            for (int k = 0; k < n; k++) {
+                xs[k] = xMin + rand.unitRandom() * width;
+                zs[k] = zMin + rand.unitRandom() * width;
             }
+            densityMap.getDensities(xs, zs, ds, n, channel, false);
             
-            if(binary){
-                d = (d < threshold) ? 0 : 1;
-            }
-            
-            if (rand.unitRandom() + threshold < d ) {
-                grassData[iIt++] = x + bounds.getxMin();
-                grassData[iIt++] = z + bounds.getzMin();
-                grassData[iIt++] = rand.unitRandom();
-                // (-pi/2, pi/2]
-                grassData[iIt++] = (-0.5f + rand.unitRandom())*3.141593f;
+            for (int k = 0; k < n; k++) {
+                float d = scaleDensity(ds[k]);
+                if (rand.unitRandom() + threshold < d ) {
+                    if (iIt > maxIt) {
+                        logTruncated(layer, block, grassData.length/4);
+                        return iIt/4;
+                    }
+                    grassData[iIt++] = xs[k] - offsetX;
+                    grassData[iIt++] = zs[k] - offsetZ;
+                    grassData[iIt++] = rand.unitRandom();
+                    // (-pi/2, pi/2]
+                    grassData[iIt++] = (-0.5f + rand.unitRandom())*3.141593f;
+                }
             }
         }
         //The iterator divided by four is the grass-count.
         return iIt/4;
     }
 
+    /**
+     * Gets the seed used when planting grass of a certain layer inside 
+     * a block.
+     * 
+     * @param page The page.
+     * @param block The block.
+     * @param layer The grass-layer.
+     * @return The seed.
+     */
+    protected long getSeed(GrassPage page, GrassBlock block, GrassLayer layer){
+        return RandomTable.getSeed( RandomTable.GRASS,
+                                    page.getX(), page.getZ(),
+                                    block.getX(), block.getZ(),
+                                    layer.getId()
+                                  );
+    }
+    
+    /**
+     * Applies the scaling and binary settings to a density value.
+     * 
+     * @param d The density value from the density map.
+     * @return The scaled density value.
+     */
+    protected float scaleDensity(float d){
+        if(scaling == Scaling.Quadratic){
+            d *= d;
+        } else if (scaling == Scaling.Linear_Inverted){
+            d = 1 - d;
+        } else if (scaling == Scaling.Quadratic_Inverted){
+            d = 1 - d*d;
+        }
+        
+        if(binary){
+            d = (d < threshold) ? 0 : 1;
+        }
+        return d;
+    }
+    
+    /**
+     * Gets the probability that a point with the given density value is
+     * planted.
+     * 
+     * @param d The density value from the density map.
+     * @return The probability (0 to 1).
+     */
+    protected float getAcceptance(float d){
+        return FastMath.clamp(scaleDensity(d) - threshold, 0, 1f);
+    }
+    
+    /**
+     * Gets an upper bound of the probability that a point is planted inside
+     * a rectangular area of a density map.
+     * 
+     * @param densityMap The density map.
+     * @param xMin The smallest x-coordinate of the area (page coordinates).
+     * @param zMin The smallest z-coordinate of the area.
+     * @param xMax The largest x-coordinate of the area.
+     * @param zMax The largest z-coordinate of the area.
+     * @param channel The colorchannel.
+     * @return The upper bound (0 to 1).
+     */
+    protected float getMaxAcceptance(DensityMap densityMap, float xMin, float zMin, float xMax, float zMax, Channel channel){
+        //The acceptance grows or shrinks with the density (depending on
+        //the scaling), so it is largest at either the min or max density.
+        //The min and max are taken over pyramid cells that cover the area,
+        //so this is never smaller then the true maximum. (The average is not
+        //used, since the cells may have a lower average then the area.)
+        float min = densityMap.getMinDensity(xMin, zMin, xMax, zMax, channel);
+        float max = densityMap.getMaxDensity(xMin, zMin, xMax, zMax, channel);
+        return Math.max(getAcceptance(min), getAcceptance(max));
+    }
+    
+    /**
+     * Logs a warning when the grass data array was too small for the
+     * planted grass, meaning some grass was dropped.
+     * 
+     * @param layer The grass-layer.
+     * @param block The block.
+     * @param capacity The number of patches that fit in the array.
+     */
+    protected void logTruncated(GrassLayer layer, GrassBlock block, int capacity){
+        log.log(Level.WARNING, "Grass data array full ({0} patches), grass was dropped in block {1} of layer {2}.", 
+                new Object[]{capacity, block, layer.getId()});
+    }
+    
+    @Override
+    public int estimateGrassCount(  GrassPage page,
+                                    GrassBlock block,
+                                    GrassLayer layer,
+                                    DensityMap densityMap,
+                                    int grassCount
+                                 )
+    {
+        if(densityMap == null || grassCount == 0){
+            return grassCount;
+        }
+        RectBounds bounds = block.getBounds();
+        
+        float offsetX = page.getPageSize()*0.5f - page.getCenterPoint().x;
+        float offsetZ = page.getPageSize()*0.5f - page.getCenterPoint().z;
+        
+        float p = getMaxAcceptance( densityMap,
+                                    bounds.getxMin() + offsetX,
+                                    bounds.getzMin() + offsetZ,
+                                    bounds.getxMax() + offsetX,
+                                    bounds.getzMax() + offsetZ,
+                                    layer.getDmChannel()
+                                  );
+        if(p <= 0){
+            return 0;
+        }
+        //p is an upper bound of the acceptance, so the expected count is
+        //never underestimated. Add a margin of four standard deviations 
+        //(roughly), so that the array is large enough for practically every 
+        //outcome.
+        float expected = grassCount*p;
+        int estimate = (int) (expected + 4f*FastMath.sqrt(expected) + 8f);
+        return Math.min(estimate, grassCount);
+    }
+    
     public Scaling getScaling() {
         return scaling;
     }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.grass.algorithms;
+
+import forester.grass.GrassLayer;
+import forester.grass.GrassBlock;
+import forester.grass.GrassPage;
+import forester.image.DensityMap;
+
+/**
+ * Optional interface for planting algorithms that can estimate how much 
+ * grass they will plant in a block. The grass generator uses the estimate
+ * to size the grass data array and to skip empty blocks. For algorithms
+ * that don't implement this, the array is sized for the initial number of
+ * grass patches.
+ * 
+ * @author Andreas
+ */
+public interface GrassCountEstimator {
+    
+    /**
+     * This should return an estimate of the largest number of grass patches
+     * the generateGrassData method will produce for the given block. It is 
+     * used to size the grass data array, and blocks with an estimate of 0 
+     * are skipped entirely. The estimate should be cheap, and must never be
+     * 0 unless the algorithm would not generate any patches at all.
+     * 
+     * @param page The grasspage.
+     * @param block The grassblock.
+     * @param layer The grasslayer.
+     * @param densityMap A density map (or null).
+     * @param grassCount The initial number of grass patches.
+     * @return The estimated (maximum) number of grass patches.
+     */
+    public int estimateGrassCount(  GrassPage page,
+                                    GrassBlock block,
+                                    GrassLayer layer,
+                                    DensityMap densityMap,
+                                    int grassCount
+                                 );
+}
@@ -29,8 +29,10 @@
 package forester.grass.datagrids;
 
 import com.jme3.texture.Texture;
+import forester.Forester;
 import forester.grass.GrassPage;
 import forester.image.DensityMap;
+import forester.image.DensityMapRegistry;
 import java.util.HashMap;
 import forester.paging.grid.GenericCell2D;
 import forester.paging.grid.Grid2D;
@@ -44,10 +46,13 @@ public class MapGrid implements MapProvider {
     
     protected Grid2D<MapCell> grid;
     protected int pageSize;
+    //Shared with other mapgrids, so that each texture is only decoded once.
+    protected DensityMapRegistry registry;
 
     public MapGrid(int pageSize) {
         this.pageSize = pageSize;
         grid = new Grid2D<MapCell>();
+        registry = Forester.getInstance().getDensityMapRegistry();
     }
     
     @Override
@@ -70,7 +75,24 @@ public class MapGrid implements MapProvider {
      * @param index The ordinal of the map (use 0 for first density map, 1 for second etc.).
      */
     public void addDensityMap(Texture tex, int x, int z, int index){
-        loadMapCell(x,z).addDensityMap(tex, index);
+        addDensityMap(tex, x, z, index, false, true);
+    }
+    
+    /**
+     * Adds a densitymap to the grid, with a given orientation. Density 
+     * maps are shared with other mapgrids, so their orientation can't be
+     * changed afterwards.
+     * 
+     * @param tex The texture.
+     * @param x The cell's x-index.
+     * @param z The cell's z-index.
+     * @param index The ordinal of the map.
+     * @param flipX Whether or not the map is flipped along the x-axis.
+     * @param flipZ Whether or not the map is flipped along the z-axis 
+     * (default).
+     */
+    public void addDensityMap(Texture tex, int x, int z, int index, boolean flipX, boolean flipZ){
+        loadMapCell(x,z).addDensityMap(tex, index, flipX, flipZ);
     }
     
     /**
@@ -84,6 +106,20 @@ public class MapGrid implements MapProvider {
         addDensityMap(tex,x,z,0);
     }
     
+    /**
+     * Removes a densitymap from the grid.
+     * 
+     * @param x The cell's x-index.
+     * @param z The cell's z-index.
+     * @param index The ordinal of the map.
+     */
+    public void removeDensityMap(int x, int z, int index){
+        MapCell mapCell = grid.getCell(x,z);
+        if(mapCell != null){
+            mapCell.removeDensityMap(index);
+        }
+    }
+    
     protected MapCell loadMapCell(int x, int z){
         MapCell mapCell = grid.getCell(x,z);
         if(mapCell == null){
@@ -105,10 +141,18 @@ public class MapGrid implements MapProvider {
             maps = new HashMap<Integer,DensityMap>();
         }
         
-        protected void addDensityMap(Texture tex, int idx){
-            DensityMap map = new DensityMap(tex,pageSize);
+        protected void addDensityMap(Texture tex, int idx, boolean flipX, boolean flipZ){
+            DensityMap map = registry.acquire(tex,pageSize,flipX,flipZ);
+            removeDensityMap(idx);
             maps.put(idx, map);
         }
+        
+        protected void removeDensityMap(int idx){
+            DensityMap old = maps.remove(idx);
+            if(old != null){
+                registry.release(old);
+            }
+        }
 
         @Override
         public boolean equals(Object obj) {
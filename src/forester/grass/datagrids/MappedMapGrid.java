@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.grass.datagrids;
+
+import forester.grass.GrassPage;
+import forester.image.DensityMap;
+import forester.image.MappedDensityMapStore;
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * A map provider that reads density maps from memory-mapped raw files
+ * (see MappedDensityMap), instead of textures. Files are only mapped when
+ * a page needs them, and released when the page is unloaded, so density 
+ * data is limited by disk space rather than memory.
+ * 
+ * @author Andreas
+ */
+public class MappedMapGrid implements MapProvider {
+    
+    protected MappedDensityMapStore store;
+    
+    /**
+     * @param directory The directory of the density map files.
+     * @param pageSize The pagesize.
+     * @param numMaps The number of maps per page.
+     */
+    public MappedMapGrid(File directory, int pageSize, int numMaps){
+        this(new MappedDensityMapStore(directory, pageSize, numMaps));
+    }
+    
+    public MappedMapGrid(MappedDensityMapStore store){
+        this.store = store;
+    }
+    
+    @Override
+    public HashMap<Integer, DensityMap> getMaps(GrassPage page) {
+        //Return null to set the page as being idle (no processing).
+        return store.getMaps(page.getX(), page.getZ());
+    }
+    
+    /**
+     * Releases the maps of a page. Called by the grassloader when the 
+     * page is unloaded.
+     * 
+     * @param page The page.
+     */
+    public void releaseMaps(GrassPage page) {
+        store.release(page.getX(), page.getZ());
+    }
+    
+    /**
+     * Sets the orientation of the density maps (see 
+     * MappedDensityMapStore.setOrientation).
+     * 
+     * @param flipX Whether or not the maps are flipped along the x-axis.
+     * @param flipZ Whether or not the maps are flipped along the z-axis.
+     */
+    public void setOrientation(boolean flipX, boolean flipZ) {
+        store.setOrientation(flipX, flipZ);
+    }
+    
+    public MappedDensityMapStore getStore() {
+        return store;
+    }
+    
+}//MappedMapGrid
@@ -32,8 +32,10 @@ import com.jme3.math.Vector3f;
 import com.jme3.terrain.geomipmap.TerrainGrid;
 import com.jme3.terrain.geomipmap.TerrainQuad;
 import com.jme3.texture.Texture;
+import forester.Forester;
 import forester.grass.GrassPage;
 import forester.image.DensityMap;
+import forester.image.DensityMapCache;
 import java.util.HashMap;
 
 /**
@@ -47,10 +49,15 @@ public class TerrainBasedMapGrid implements MapProvider{
     protected int pageSize;
     protected int numMaps = 1;
     protected boolean advancedTerrain = false;
+    //The orientation of the density maps.
+    protected boolean flipX = false, flipZ = true;
+    //Shared with other mapgrids, so that each alpha map is only decoded once.
+    protected DensityMapCache cache;
     
     public TerrainBasedMapGrid(TerrainGrid terrainGrid, int pageSize){
         this.terrainGrid = terrainGrid;
         this.pageSize = pageSize;
+        this.cache = Forester.getInstance().getDensityMapCache();
     }
     
     public TerrainBasedMapGrid(TerrainGrid terrainGrid, int pageSize, String alphaMapName){
@@ -83,22 +90,57 @@ public class TerrainBasedMapGrid implements MapProvider{
         HashMap<Integer, DensityMap> map = new HashMap<Integer,DensityMap>();
         
         for(int i = 0; i < numMaps; i++){
+            String name = alphaMapName;
             //If the TerrainLighting.j3md is used, get the alpha maps in order.
             if(advancedTerrain){
                 if(i == 0){
-                    alphaMapName = "AlphaMap";
+                    name = "AlphaMap";
                 } else if (i == 1){
-                    alphaMapName = "AlphaMap_1";
+                    name = "AlphaMap_1";
                 } else if (i == 2){
-                    alphaMapName = "AlphaMap_2";
+                    name = "AlphaMap_2";
                 }
             }
-            tex = quad.getMaterial().getTextureParam(alphaMapName).getTextureValue();
-            DensityMap dmap = new DensityMap(tex,pageSize);
+            tex = quad.getMaterial().getTextureParam(name).getTextureValue();
+            DensityMap dmap = null;
+            if(cache != null){
+                dmap = cache.get(terrainGrid, page.getX(), page.getZ(), name, tex, pageSize, flipX, flipZ);
+            } else {
+                dmap = new DensityMap(tex,pageSize);
+                dmap.flipX(flipX);
+                dmap.flipZ(flipZ);
+            }
             map.put(i, dmap);
         }
         
         return map;
     }
+
+    /**
+     * Sets the orientation of the density maps. The maps are shared through
+     * the density map cache, so use this rather then flipping the maps 
+     * returned by getMaps. The default is flipZ only.
+     * 
+     * @param flipX Whether or not the maps are flipped along the x-axis.
+     * @param flipZ Whether or not the maps are flipped along the z-axis.
+     */
+    public void setOrientation(boolean flipX, boolean flipZ) {
+        this.flipX = flipX;
+        this.flipZ = flipZ;
+    }
+    
+    public DensityMapCache getDensityMapCache() {
+        return cache;
+    }
+    
+    /**
+     * Sets the cache used for density maps. By default, the cache of the
+     * Forester instance is used. Set to null to disable caching.
+     * 
+     * @param cache The cache.
+     */
+    public void setDensityMapCache(DensityMapCache cache) {
+        this.cache = cache;
+    }
     
 }
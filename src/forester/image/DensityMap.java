@@ -31,9 +31,15 @@ package forester.image;
 import com.jme3.texture.Image;
 import com.jme3.texture.Texture;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class used for reading jME images.
+ * <br/><br/>
+ * Each channel that is sampled is decoded once into a plane of bytes (one
+ * byte per texel). Sampling then only reads from the plane, using absolute
+ * gets, so density maps can be sampled from several threads at once.
  * 
  * @author Andreas
  */
@@ -44,12 +50,22 @@ public class DensityMap {
     
     protected Image image;
     protected int imageSize;
-    protected ByteBuffer buf;
+    //Decoded channels, created on demand.
+    protected final AtomicReferenceArray<ByteBuffer> planes = new AtomicReferenceArray<ByteBuffer>(Channel.values().length);
+    //Min/max/mean pyramids, created on demand (or by createPyramids).
+    protected final AtomicReferenceArray<Pyramid> pyramids = new AtomicReferenceArray<Pyramid>(Channel.values().length);
     
     protected float scale;
     protected int pageSize;
     
     boolean flipX = false, flipZ = true;
+    //Maps owned by a DensityMapRegistry are shared, so their orientation
+    //is fixed when they are created.
+    boolean shared = false;
+    
+    //The largest number of cells along each side of the area that is
+    //read when computing an average.
+    protected static final int MAX_AVERAGE_CELLS = 8;
     
     public DensityMap(){}
     
@@ -68,16 +84,51 @@ public class DensityMap {
     protected final void setupImage(Image image){
         this.image = image;
         this.imageSize = image.getWidth();
-        this.buf = image.getData(0).duplicate();
+        //Check the format right away, rather then on the first lookup.
+        getChannelLayout(image.getFormat(), Channel.Red);
     }
     
     public void flipX(boolean flipX){
+        checkNotShared();
         this.flipX = flipX;
     }
     
     public void flipZ(boolean flipZ){
+        checkNotShared();
         this.flipZ = flipZ;
     }
+    
+    public boolean isFlipX(){
+        return flipX;
+    }
+    
+    public boolean isFlipZ(){
+        return flipZ;
+    }
+    
+    protected void checkNotShared(){
+        if(shared){
+            throw new RuntimeException("The orientation of a shared density map can't be changed. "
+                    + "Pass flipX/flipZ to the map provider (addDensityMap or setOrientation) instead.");
+        }
+    }
+    
+    /**
+     * Get the number of texels per world unit.
+     * 
+     * @return The scale.
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    public int getImageSize() {
+        return imageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
 
     /**
      * A method to get density values from a densitymap.
@@ -95,9 +146,9 @@ public class DensityMap {
         if(flipX){
             x = pageSize - x;
         }
-        int xx = max((int)(x*scale),0);
-        int zz = min((int)(z*scale),imageSize - 1);
-        return getValue(xx,zz,channel);
+        int xx = clamp((int)(x*scale),0,imageSize - 1);
+        int zz = clamp((int)(z*scale),0,imageSize - 1);
+        return byte2float(getPlane(channel).get(xx + zz*imageSize));
     }
     
     /**
@@ -116,32 +167,25 @@ public class DensityMap {
         if(flipX){
             x = pageSize - x;
         }
+        ByteBuffer plane = getPlane(channel);
         
-        float fracX = x - (int)x;
-        float fracZ = z - (int)z;
+        //Texel coordinates.
+        float tx = x*scale;
+        float tz = z*scale;
+        int ix = (int)Math.floor(tx);
+        int iz = (int)Math.floor(tz);
+        float fracX = tx - ix;
+        float fracZ = tz - iz;
         
-        int x0 = 0;
-        int x1 = 0;
-        int z0 = 0;
-        int z1 = 0;
+        int x0 = clamp(ix,0,imageSize - 1);
+        int x1 = clamp(ix + 1,0,imageSize - 1);
+        int z0 = clamp(iz,0,imageSize - 1)*imageSize;
+        int z1 = clamp(iz + 1,0,imageSize - 1)*imageSize;
         
-        if (fracX < 0.01){
-            x0 = x1 = clamp((int)(x*scale),0,imageSize - 1);
-        } else {
-            x0 = max((int)(x*scale),0);
-            x1 = min((int)((x + 1)*scale),imageSize - 1);
-        }
-        if (fracZ < 0.01){
-            z0 = z1 = clamp((int)(z*scale),0,imageSize - 1);
-        } else {
-            z0 = max((int)(z*scale),0);
-            z1 = min((int)((z + 1)*scale),pageSize - 1);
-        }
-        
-        float v00 = getValue(x0,z0,channel);
-        float v01 = getValue(x0,z1,channel);
-        float v10 = getValue(x1,z0,channel);
-        float v11 = getValue(x1,z1,channel);
+        float v00 = byte2float(plane.get(x0 + z0));
+        float v01 = byte2float(plane.get(x0 + z1));
+        float v10 = byte2float(plane.get(x1 + z0));
+        float v11 = byte2float(plane.get(x1 + z1));
         
         float dens = ( v00 * (1 - fracX) + v10 * fracX ) * (1 - fracZ) + 
                         (v01 * (1 - fracX) + v11 * fracX ) * fracZ;
@@ -149,104 +193,307 @@ public class DensityMap {
         return dens;
     }
     
+    /**
+     * Gets density values for many points at once. This is a lot faster then
+     * calling getDensityUnfiltered or getDensityBilinear for each point, since 
+     * flipping and scaling is set up only once.
+     * 
+     * @param x The x-coordinates.
+     * @param z The z-coordinates.
+     * @param result The array to store the density values in.
+     * @param count The number of points.
+     * @param channel The colorchannel to sample from.
+     * @param bilinear Whether or not to use bilinear filtering.
+     */
+    public void getDensities(float[] x, float[] z, float[] result, int count, Channel channel, boolean bilinear){
+        ByteBuffer plane = getPlane(channel);
+        //Texel coordinates are tx = ax + bx*x and tz = az + bz*z.
+        float ax = flipX ? pageSize*scale : 0;
+        float bx = flipX ? -scale : scale;
+        float az = flipZ ? pageSize*scale : 0;
+        float bz = flipZ ? -scale : scale;
+        int last = imageSize - 1;
+        
+        if(!bilinear){
+            for(int i = 0; i < count; i++){
+                int xx = clamp((int)(ax + bx*x[i]),0,last);
+                int zz = clamp((int)(az + bz*z[i]),0,last);
+                result[i] = (plane.get(xx + zz*imageSize) & 0xFF)*0.0039215f;
+            }
+            return;
+        }
+        
+        for(int i = 0; i < count; i++){
+            float tx = ax + bx*x[i];
+            float tz = az + bz*z[i];
+            int ix = (int)Math.floor(tx);
+            int iz = (int)Math.floor(tz);
+            float fracX = tx - ix;
+            float fracZ = tz - iz;
+            
+            int x0 = clamp(ix,0,last);
+            int x1 = clamp(ix + 1,0,last);
+            int z0 = clamp(iz,0,last)*imageSize;
+            int z1 = clamp(iz + 1,0,last)*imageSize;
+            
+            float v00 = plane.get(x0 + z0) & 0xFF;
+            float v01 = plane.get(x0 + z1) & 0xFF;
+            float v10 = plane.get(x1 + z0) & 0xFF;
+            float v11 = plane.get(x1 + z1) & 0xFF;
+            
+            result[i] = (( v00 * (1 - fracX) + v10 * fracX ) * (1 - fracZ) + 
+                         ( v01 * (1 - fracX) + v11 * fracX ) * fracZ) * 0.0039215f;
+        }
+    }
+    
+    /**
+     * Get the average density over a rectangular area. Small areas are
+     * read texel by texel. For larger areas, the mean values of a pyramid 
+     * level are used instead, weighted by how much of each cell is inside 
+     * the area, so the cost is about the same regardless of the size of the
+     * area. The result is then an approximation.
+     * 
+     * @param xMin The smallest x-coordinate of the area.
+     * @param zMin The smallest z-coordinate of the area.
+     * @param xMax The largest x-coordinate of the area.
+     * @param zMax The largest z-coordinate of the area.
+     * @param channel The colorchannel to sample from.
+     * @return The average density.
+     */
+    public float getAverageDensity(float xMin, float zMin, float xMax, float zMax, Channel channel){
+        //Flip
+        if(flipZ){
+            float temp = zMin;
+            zMin = pageSize - zMax;
+            zMax = pageSize - temp;
+        }
+        if(flipX){
+            float temp = xMin;
+            xMin = pageSize - xMax;
+            xMax = pageSize - temp;
+        }
+        //Texels (inclusive).
+        int x0 = clamp((int)(xMin*scale), 0, imageSize - 1);
+        int z0 = clamp((int)(zMin*scale), 0, imageSize - 1);
+        int x1 = clamp((int)Math.ceil(xMax*scale) - 1, x0, imageSize - 1);
+        int z1 = clamp((int)Math.ceil(zMax*scale) - 1, z0, imageSize - 1);
+        long texels = (long)(x1 - x0 + 1)*(z1 - z0 + 1);
+        
+        int span = max(x1 - x0, z1 - z0) + 1;
+        if(span <= MAX_AVERAGE_CELLS){
+            ByteBuffer plane = getPlane(channel);
+            long sum = 0;
+            for(int j = z0; j <= z1; j++){
+                for(int i = x0; i <= x1; i++){
+                    sum += plane.get(i + j*imageSize) & 0xFF;
+                }
+            }
+            return (sum / (float)texels) * 0.0039215f;
+        }
+        
+        Pyramid pyramid = getPyramid(channel);
+        int level = 1;
+        while(level < pyramid.getNumLevels() && (span >> level) > MAX_AVERAGE_CELLS){
+            level++;
+        }
+        ByteBuffer values = pyramid.mean[level - 1];
+        int size = pyramid.sizes[level - 1];
+        
+        long sum = 0;
+        for(int j = z0 >> level; j <= z1 >> level; j++){
+            //The number of texels of the cell row that are inside the area.
+            long rows = min((j + 1) << level, z1 + 1) - max(j << level, z0);
+            for(int i = x0 >> level; i <= x1 >> level; i++){
+                long cols = min((i + 1) << level, x1 + 1) - max(i << level, x0);
+                sum += (values.get(i + j*size) & 0xFF)*rows*cols;
+            }
+        }
+        return (sum / (float)texels) * 0.0039215f;
+    }
+    
+    /**
+     * Gets the largest density value in a rectangular area. The area is 
+     * expanded to the cells of a pyramid level, so the value is an upper
+     * bound (it is never smaller then the real maximum).
+     * 
+     * @param xMin The smallest x-coordinate of the area.
+     * @param zMin The smallest z-coordinate of the area.
+     * @param xMax The largest x-coordinate of the area.
+     * @param zMax The largest z-coordinate of the area.
+     * @param channel The colorchannel to sample from.
+     * @return The maximum density.
+     */
+    public float getMaxDensity(float xMin, float zMin, float xMax, float zMax, Channel channel){
+        return byte2float((byte)getRange(xMin, zMin, xMax, zMax, channel, true));
+    }
+    
+    /**
+     * Gets the smallest density value in a rectangular area. The area is 
+     * expanded to the cells of a pyramid level, so the value is a lower
+     * bound (it is never larger then the real minimum).
+     * 
+     * @param xMin The smallest x-coordinate of the area.
+     * @param zMin The smallest z-coordinate of the area.
+     * @param xMax The largest x-coordinate of the area.
+     * @param zMax The largest z-coordinate of the area.
+     * @param channel The colorchannel to sample from.
+     * @return The minimum density.
+     */
+    public float getMinDensity(float xMin, float zMin, float xMax, float zMax, Channel channel){
+        return byte2float((byte)getRange(xMin, zMin, xMax, zMax, channel, false));
+    }
+    
+    /**
+     * Checks if the density is 0 everywhere in a rectangular area.
+     * 
+     * @param xMin The smallest x-coordinate of the area.
+     * @param zMin The smallest z-coordinate of the area.
+     * @param xMax The largest x-coordinate of the area.
+     * @param zMax The largest z-coordinate of the area.
+     * @param channel The colorchannel to sample from.
+     * @return true if the area is empty.
+     */
+    public boolean isEmpty(float xMin, float zMin, float xMax, float zMax, Channel channel){
+        return getRange(xMin, zMin, xMax, zMax, channel, true) == 0;
+    }
+    
+    /**
+     * Creates the min/max/mean pyramids of the given channels right away,
+     * instead of on first use. This is best done when the map is loaded.
+     * 
+     * @param channels The channels.
+     */
+    public void createPyramids(Channel... channels){
+        for(Channel channel : channels){
+            getPyramid(channel);
+        }
+    }
+    
+    //Gets the raw max or min value (0 - 255) of an area.
+    protected int getRange(float xMin, float zMin, float xMax, float zMax, Channel channel, boolean max){
+        //Flip
+        if(flipZ){
+            float temp = zMin;
+            zMin = pageSize - zMax;
+            zMax = pageSize - temp;
+        }
+        if(flipX){
+            float temp = xMin;
+            xMin = pageSize - xMax;
+            xMax = pageSize - temp;
+        }
+        //Texels (inclusive).
+        int x0 = clamp((int)(xMin*scale), 0, imageSize - 1);
+        int z0 = clamp((int)(zMin*scale), 0, imageSize - 1);
+        int x1 = clamp((int)Math.ceil(xMax*scale) - 1, x0, imageSize - 1);
+        int z1 = clamp((int)Math.ceil(zMax*scale) - 1, z0, imageSize - 1);
+        
+        Pyramid pyramid = getPyramid(channel);
+        //Use the finest level where the area covers at most 3x3 cells.
+        int level = 1;
+        int span = max(x1 - x0, z1 - z0) + 1;
+        while(level < pyramid.getNumLevels() && (span >> level) > 1){
+            level++;
+        }
+        ByteBuffer values = max ? pyramid.max[level - 1] : pyramid.min[level - 1];
+        int size = pyramid.sizes[level - 1];
+        
+        int result = max ? 0 : 255;
+        for(int j = z0 >> level; j <= z1 >> level; j++){
+            for(int i = x0 >> level; i <= x1 >> level; i++){
+                int v = values.get(i + j*size) & 0xFF;
+                result = max ? max(result, v) : min(result, v);
+            }
+        }
+        return result;
+    }
+    
+    protected Pyramid getPyramid(Channel channel){
+        Pyramid pyramid = pyramids.get(channel.ordinal());
+        if(pyramid == null){
+            pyramids.compareAndSet(channel.ordinal(), null, createPyramid(channel));
+            pyramid = pyramids.get(channel.ordinal());
+        }
+        return pyramid;
+    }
+    
+    /**
+     * Creates the min/max/mean pyramid of a channel. Override this to load
+     * the pyramid instead of building it from the plane.
+     * 
+     * @param channel The colorchannel.
+     * @return The pyramid.
+     */
+    protected Pyramid createPyramid(Channel channel){
+        return new Pyramid(getPlane(channel), imageSize);
+    }
+    
     //Get values from the image. This method assumes the x and y
-    //vales are correct, and only deals with channels and pixel formats.
+    //vales are correct.
     protected float getValue(int x, int y, Channel channel){
-        int position = x + imageSize*y;
-        float f = 0;
-        switch (image.getFormat()){
+        return byte2float(getPlane(channel).get(x + imageSize*y));
+    }
+    
+    /**
+     * Gets the decoded plane of a channel (one byte per texel, row by row).
+     * The plane is decoded the first time this method is called. Only
+     * absolute gets should be used on the returned buffer.
+     * 
+     * @param channel The colorchannel.
+     * @return The plane.
+     */
+    protected ByteBuffer getPlane(Channel channel){
+        ByteBuffer plane = planes.get(channel.ordinal());
+        if(plane == null){
+            //Two threads may decode the same plane at the same time, but
+            //only one of them will be kept.
+            planes.compareAndSet(channel.ordinal(), null, decodePlane(channel));
+            plane = planes.get(channel.ordinal());
+        }
+        return plane;
+    }
+    
+    //Extracts a channel from the image.
+    protected ByteBuffer decodePlane(Channel channel){
+        int[] layout = getChannelLayout(image.getFormat(), channel);
+        int stride = layout[0];
+        int offset = layout[1];
+        
+        byte[] plane = new byte[imageSize*imageSize];
+        if(offset < 0){
+            //The image doesn't have this channel (alpha of RGB images).
+            Arrays.fill(plane, (byte)0xFF);
+        } else {
+            ByteBuffer data = image.getData(0);
+            for(int i = 0, pos = offset; i < plane.length; i++, pos += stride){
+                plane[i] = data.get(pos);
+            }
+        }
+        return ByteBuffer.wrap(plane);
+    }
+    
+    /**
+     * Gets the number of bytes per texel, and the position of a channel
+     * within the texel, for an image format.
+     * 
+     * @param format The image format.
+     * @param channel The colorchannel.
+     * @return An array with the stride and the offset. The offset is -1
+     * if the format doesn't contain the channel (which means it's always 1).
+     */
+    protected static int[] getChannelLayout(Image.Format format, Channel channel){
+        int c = channel.ordinal();
+        switch (format){
             case RGBA8:
-                //Choose channel.
-                switch(channel){
-                    case Red:
-                        buf.position(position*4);
-                        f = byte2float(buf.get());
-                    break;
-                    case Green:
-                        buf.position(position*4 + 1);
-                        f = byte2float(buf.get());
-                    break;
-                    case Blue:
-                        buf.position(position*4 + 2);
-                        f = byte2float(buf.get());
-                    break;
-                    case Alpha:
-                        buf.position(position*4 + 3);
-                        f = byte2float(buf.get());
-                    break;
-                    default:
-                        throw new UnsupportedOperationException("Image does not contain this channel.");
-                }
-                return f;
+                return new int[]{4, c};
             case ABGR8:
-                //Choose channel
-                switch(channel){
-                    case Red:
-                        buf.position(position*4 + 3);
-                        f = byte2float(buf.get());
-                    break;
-                    case Green:
-                        buf.position(position*4 + 2);
-                        f = byte2float(buf.get());
-                    break;
-                    case Blue:
-                        buf.position(position*4 + 1);
-                        f = byte2float(buf.get());
-                    break;
-                    case Alpha:
-                        buf.position(position*4);
-                        f = byte2float(buf.get());
-                    break;
-                    default:
-                        throw new UnsupportedOperationException("Image does not contain this channel.");
-                }
-                return f;
+                return new int[]{4, 3 - c};
             case RGB8:
-                //Choose channel.
-                switch(channel){
-                    case Red:
-                        buf.position(position*3);
-                        f = byte2float(buf.get());
-                    break;
-                    case Green:
-                        buf.position(position*3 + 1);
-                        f = byte2float(buf.get());
-                    break;
-                    case Blue:
-                        buf.position(position*3 + 2);
-                        f = byte2float(buf.get());
-                    break;
-                    case Alpha:
-                        f = 1;
-                    break;
-                    default:
-                        throw new UnsupportedOperationException("Image does not contain this channel.");
-                }
-                return f;
+                return new int[]{3, (channel == Channel.Alpha) ? -1 : c};
             case BGR8:
-                //Choose channel
-                switch(channel){
-                    case Red:
-                        buf.position(position*3 + 2);
-                        f = byte2float(buf.get());
-                    break;
-                    case Green:
-                        buf.position(position*3 + 1);
-                        f = byte2float(buf.get());
-                    break;
-                    case Blue:
-                        buf.position(position*3);
-                        f = byte2float(buf.get());
-                    break;
-                    case Alpha:
-                        f = 1;
-                    break;
-                    default:
-                        throw new UnsupportedOperationException("Image does not contain this channel.");
-                }
-                return f;
+                return new int[]{3, (channel == Channel.Alpha) ? -1 : 2 - c};
             default:
-                throw new UnsupportedOperationException("Image format: "+image.getFormat());
+                throw new UnsupportedOperationException("Image format: "+format);
         }
     }
     
@@ -266,4 +513,148 @@ public class DensityMap {
     protected static int min(int x, int val){
         return (x <= val) ? x : val;
     }
+    
+    /**
+     * Min, max and mean values of a channel, at successively halved 
+     * resolutions. Level n (stored at index n - 1) has one value for
+     * each 2^n x 2^n texels of the image. Only absolute gets should be 
+     * used on the buffers.
+     */
+    protected static class Pyramid {
+        
+        protected final int[] sizes;
+        protected final ByteBuffer[] min;
+        protected final ByteBuffer[] max;
+        protected final ByteBuffer[] mean;
+        
+        /**
+         * Builds a pyramid from a plane.
+         * 
+         * @param plane The plane.
+         * @param imageSize The image size.
+         */
+        protected Pyramid(ByteBuffer plane, int imageSize){
+            this(imageSize);
+            byte[] prevMin = null, prevMax = null, prevMean = null;
+            int prevSize = imageSize;
+            for(int l = 0; l < sizes.length; l++){
+                int size = sizes[l];
+                byte[] lMin = new byte[size*size];
+                byte[] lMax = new byte[size*size];
+                byte[] lMean = new byte[size*size];
+                
+                for(int j = 0; j < size; j++){
+                    for(int i = 0; i < size; i++){
+                        int lo = 255, hi = 0, sum = 0, n = 0;
+                        for(int jj = 2*j; jj < 2*j + 2 && jj < prevSize; jj++){
+                            for(int ii = 2*i; ii < 2*i + 2 && ii < prevSize; ii++){
+                                int idx = ii + jj*prevSize;
+                                int vMin, vMax, vMean;
+                                if(l == 0){
+                                    vMin = vMax = vMean = plane.get(idx) & 0xFF;
+                                } else {
+                                    vMin = prevMin[idx] & 0xFF;
+                                    vMax = prevMax[idx] & 0xFF;
+                                    vMean = prevMean[idx] & 0xFF;
+                                }
+                                lo = (vMin < lo) ? vMin : lo;
+                                hi = (vMax > hi) ? vMax : hi;
+                                sum += vMean;
+                                n++;
+                            }
+                        }
+                        int idx = i + j*size;
+                        lMin[idx] = (byte)lo;
+                        lMax[idx] = (byte)hi;
+                        lMean[idx] = (byte)((sum + n/2)/n);
+                    }
+                }
+                min[l] = ByteBuffer.wrap(lMin);
+                max[l] = ByteBuffer.wrap(lMax);
+                mean[l] = ByteBuffer.wrap(lMean);
+                prevMin = lMin;
+                prevMax = lMax;
+                prevMean = lMean;
+                prevSize = size;
+            }
+        }
+        
+        /**
+         * Creates a pyramid from stored data (see write). The buffers are
+         * slices of the data, so nothing is copied.
+         * 
+         * @param data The data.
+         * @param offset The position of the pyramid in the data.
+         * @param imageSize The image size.
+         */
+        protected Pyramid(ByteBuffer data, int offset, int imageSize){
+            this(imageSize);
+            int pos = offset;
+            for(int l = 0; l < sizes.length; l++){
+                int levelSize = sizes[l]*sizes[l];
+                min[l] = slice(data, pos, levelSize);
+                max[l] = slice(data, pos + levelSize, levelSize);
+                mean[l] = slice(data, pos + 2*levelSize, levelSize);
+                pos += 3*levelSize;
+            }
+        }
+        
+        private Pyramid(int imageSize){
+            int numLevels = getNumLevels(imageSize);
+            sizes = new int[numLevels];
+            min = new ByteBuffer[numLevels];
+            max = new ByteBuffer[numLevels];
+            mean = new ByteBuffer[numLevels];
+            int size = imageSize;
+            for(int l = 0; l < numLevels; l++){
+                size = (size + 1)/2;
+                sizes[l] = size;
+            }
+        }
+        
+        /**
+         * Writes the pyramid to a buffer. For each level, the min, max and
+         * mean values are written in that order.
+         * 
+         * @param buf The buffer.
+         */
+        protected void write(ByteBuffer buf){
+            for(int l = 0; l < sizes.length; l++){
+                buf.put(min[l].duplicate());
+                buf.put(max[l].duplicate());
+                buf.put(mean[l].duplicate());
+            }
+        }
+        
+        protected static ByteBuffer slice(ByteBuffer data, int position, int length){
+            ByteBuffer buf = data.duplicate();
+            buf.limit(position + length);
+            buf.position(position);
+            return buf.slice();
+        }
+        
+        protected int getNumLevels(){
+            return sizes.length;
+        }
+        
+        //The number of halvings until the size is 1 (at least one level).
+        protected static int getNumLevels(int imageSize){
+            int n = 1;
+            for(int size = (imageSize + 1)/2; size > 1; size = (size + 1)/2){
+                n++;
+            }
+            return n;
+        }
+        
+        //The number of bytes of a stored pyramid.
+        protected static int getDataSize(int imageSize){
+            int bytes = 0;
+            int size = imageSize;
+            for(int l = 0; l < getNumLevels(imageSize); l++){
+                size = (size + 1)/2;
+                bytes += 3*size*size;
+            }
+            return bytes;
+        }
+    }//Pyramid
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.image;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of decoded density maps. When the cache is full, the 
+ * least recently used map is removed.
+ * <br/><br/>
+ * Maps are keyed by the terrain tile they belong to, the name of the 
+ * texture parameter they were read from, and their orientation. Each entry remembers the image it
+ * was decoded from, and is rebuilt if the tile's texture has been changed
+ * since. The cache is safe to share between several loaders.
+ * <br/><br/>
+ * If the cache has a registry, maps are acquired from it, and released 
+ * when they are removed from the cache.
+ * 
+ * @author Andreas
+ */
+public class DensityMapCache {
+    
+    protected final LinkedHashMap<Key, Entry> map;
+    protected final DensityMapRegistry registry;
+    protected int capacity;
+    
+    protected long hits;
+    protected long misses;
+    
+    /**
+     * @param capacity The maximum number of density maps in the cache.
+     */
+    public DensityMapCache(int capacity){
+        this(capacity, null);
+    }
+    
+    /**
+     * @param capacity The maximum number of density maps in the cache.
+     * @param registry The registry to get density maps from (or null).
+     */
+    public DensityMapCache(int capacity, DensityMapRegistry registry){
+        this.registry = registry;
+        //Access order makes the first entry the least recently used.
+        map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        setCapacity(capacity);
+    }
+    
+    /**
+     * Gets the density map of a terrain tile. If the map is not in the
+     * cache, or if the texture has changed, it is created from the texture.
+     * 
+     * @param terrain The terrain (or other object) that owns the tile.
+     * @param x The x-index of the tile.
+     * @param z The z-index of the tile.
+     * @param name The name of the texture (material parameter).
+     * @param tex The current texture of the tile.
+     * @param pageSize The pagesize used by the pageloader.
+     * @return The density map.
+     */
+    public DensityMap get(Object terrain, int x, int z, String name, Texture tex, int pageSize){
+        return get(terrain, x, z, name, tex, pageSize, false, true);
+    }
+    
+    /**
+     * Gets the density map of a terrain tile, with a given orientation. The
+     * orientation of the returned map can't be changed if the cache has a
+     * registry.
+     * 
+     * @param terrain The terrain (or other object) that owns the tile.
+     * @param x The x-index of the tile.
+     * @param z The z-index of the tile.
+     * @param name The name of the texture (material parameter).
+     * @param tex The current texture of the tile.
+     * @param pageSize The pagesize used by the pageloader.
+     * @param flipX Whether or not the map is flipped along the x-axis.
+     * @param flipZ Whether or not the map is flipped along the z-axis.
+     * @return The density map.
+     */
+    public synchronized DensityMap get(Object terrain, int x, int z, String name, Texture tex, int pageSize,
+                                        boolean flipX, boolean flipZ){
+        Key key = new Key(terrain, x, z, name, pageSize, flipX, flipZ);
+        Entry entry = map.get(key);
+        if(entry != null && entry.image == tex.getImage()){
+            hits++;
+            return entry.densityMap;
+        }
+        misses++;
+        if(entry != null){
+            release(entry);
+        }
+        entry = new Entry(createDensityMap(tex, pageSize, flipX, flipZ), tex.getImage());
+        map.put(key, entry);
+        trim();
+        return entry.densityMap;
+    }
+    
+    /**
+     * Creates a new density map. Override this to change how maps are
+     * created.
+     * 
+     * @param tex The texture.
+     * @param pageSize The pagesize.
+     * @param flipX Whether or not the map is flipped along the x-axis.
+     * @param flipZ Whether or not the map is flipped along the z-axis.
+     * @return The density map.
+     */
+    protected DensityMap createDensityMap(Texture tex, int pageSize, boolean flipX, boolean flipZ){
+        if(registry != null){
+            return registry.acquire(tex, pageSize, flipX, flipZ);
+        }
+        DensityMap densityMap = new DensityMap(tex, pageSize);
+        densityMap.flipX(flipX);
+        densityMap.flipZ(flipZ);
+        return densityMap;
+    }
+    
+    /**
+     * Called when a map is removed from the cache.
+     * 
+     * @param entry The entry that was removed.
+     */
+    protected void release(Entry entry){
+        if(registry != null){
+            registry.release(entry.densityMap);
+        }
+    }
+    
+    /**
+     * Removes all maps of a terrain tile from the cache.
+     * 
+     * @param terrain The terrain that owns the tile.
+     * @param x The x-index of the tile.
+     * @param z The z-index of the tile.
+     */
+    public synchronized void invalidate(Object terrain, int x, int z){
+        Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<Key, Entry> e = it.next();
+            Key key = e.getKey();
+            if(key.terrain == terrain && key.x == x && key.z == z){
+                it.remove();
+                release(e.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Removes all maps from the cache.
+     */
+    public synchronized void clear(){
+        for(Entry entry : map.values()){
+            release(entry);
+        }
+        map.clear();
+    }
+    
+    //Remove the least recently used maps until the cache fits.
+    protected void trim(){
+        Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+        while(map.size() > capacity && it.hasNext()){
+            Entry entry = it.next().getValue();
+            it.remove();
+            release(entry);
+        }
+    }
+    
+    public synchronized int size(){
+        return map.size();
+    }
+    
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the maximum number of density maps in the cache.
+     * 
+     * @param capacity The capacity.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if(capacity < 1){
+            throw new RuntimeException("The capacity of the cache must be at least 1.");
+        }
+        this.capacity = capacity;
+        trim();
+    }
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    public DensityMapRegistry getRegistry() {
+        return registry;
+    }
+    
+    protected static class Key {
+        
+        protected final Object terrain;
+        protected final int x, z;
+        protected final String name;
+        protected final int pageSize;
+        protected final boolean flipX, flipZ;
+        
+        protected Key(Object terrain, int x, int z, String name, int pageSize, boolean flipX, boolean flipZ){
+            this.terrain = terrain;
+            this.x = x;
+            this.z = z;
+            this.name = name;
+            this.pageSize = pageSize;
+            this.flipX = flipX;
+            this.flipZ = flipZ;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return terrain == other.terrain && x == other.x && z == other.z 
+                    && pageSize == other.pageSize && name.equals(other.name)
+                    && flipX == other.flipX && flipZ == other.flipZ;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(terrain);
+            hash = 31*hash + x;
+            hash = 31*hash + z;
+            hash = 31*hash + pageSize;
+            hash = 31*hash + name.hashCode();
+            return 4*hash + (flipX ? 2 : 0) + (flipZ ? 1 : 0);
+        }
+    }//Key
+    
+    protected static class Entry {
+        
+        protected final DensityMap densityMap;
+        //The image the map was created from.
+        protected final Image image;
+        
+        protected Entry(DensityMap densityMap, Image image){
+            this.densityMap = densityMap;
+            this.image = image;
+        }
+    }//Entry
+    
+}//DensityMapCache
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.image;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Owns decoded density maps, so that a texture used by several map 
+ * providers (for example both grass and trees) is only decoded and 
+ * stored once.
+ * <br/><br/>
+ * Maps are keyed by the identity of the texture image, the pagesize and
+ * the orientation (flipX/flipZ). The orientation of a map is fixed when it
+ * is created, since the map is shared by everyone who acquires it. Each 
+ * call to acquire must be matched by a call to release. When a map is no 
+ * longer used by anyone, it is removed from the registry.
+ * 
+ * @author Andreas
+ */
+public class DensityMapRegistry {
+    
+    protected final HashMap<Key, Entry> entries = new HashMap<Key, Entry>();
+    protected final IdentityHashMap<DensityMap, Entry> byMap = new IdentityHashMap<DensityMap, Entry>();
+    
+    /**
+     * Gets the density map of a texture, using the default orientation
+     * (flipZ only).
+     * 
+     * @param tex The texture.
+     * @param pageSize The pagesize used by the pageloader.
+     * @return The density map.
+     */
+    public DensityMap acquire(Texture tex, int pageSize){
+        return acquire(tex, pageSize, false, true);
+    }
+    
+    /**
+     * Gets the density map of a texture, and increments its reference count. 
+     * The map is created if it's not already in the registry. The 
+     * orientation of the returned map can't be changed.
+     * 
+     * @param tex The texture.
+     * @param pageSize The pagesize used by the pageloader.
+     * @param flipX Whether or not the map is flipped along the x-axis.
+     * @param flipZ Whether or not the map is flipped along the z-axis.
+     * @return The density map.
+     */
+    public synchronized DensityMap acquire(Texture tex, int pageSize, boolean flipX, boolean flipZ){
+        Key key = new Key(tex.getImage(), pageSize, flipX, flipZ);
+        Entry entry = entries.get(key);
+        if(entry == null){
+            DensityMap densityMap = createDensityMap(tex, pageSize);
+            densityMap.flipX(flipX);
+            densityMap.flipZ(flipZ);
+            densityMap.shared = true;
+            entry = new Entry(key, densityMap);
+            entries.put(key, entry);
+            byMap.put(entry.densityMap, entry);
+        }
+        entry.refCount++;
+        return entry.densityMap;
+    }
+    
+    /**
+     * Decrements the reference count of a density map. The map is removed
+     * from the registry when the count reaches 0.
+     * 
+     * @param densityMap The density map.
+     */
+    public synchronized void release(DensityMap densityMap){
+        Entry entry = byMap.get(densityMap);
+        if(entry == null){
+            throw new RuntimeException("Density map is not in the registry.");
+        }
+        if(--entry.refCount == 0){
+            entries.remove(entry.key);
+            byMap.remove(densityMap);
+        }
+    }
+    
+    /**
+     * Creates a new density map. Override this to change how maps are
+     * created.
+     * 
+     * @param tex The texture.
+     * @param pageSize The pagesize.
+     * @return The density map.
+     */
+    protected DensityMap createDensityMap(Texture tex, int pageSize){
+        return new DensityMap(tex, pageSize);
+    }
+    
+    /**
+     * Gets the reference count of a density map.
+     * 
+     * @param densityMap The density map.
+     * @return The count, or 0 if the map is not in the registry.
+     */
+    public synchronized int getRefCount(DensityMap densityMap){
+        Entry entry = byMap.get(densityMap);
+        return (entry == null) ? 0 : entry.refCount;
+    }
+    
+    /**
+     * @return The number of density maps in the registry.
+     */
+    public synchronized int size(){
+        return entries.size();
+    }
+    
+    protected static class Key {
+        
+        protected final Image image;
+        protected final int pageSize;
+        protected final boolean flipX, flipZ;
+        
+        protected Key(Image image, int pageSize, boolean flipX, boolean flipZ){
+            this.image = image;
+            this.pageSize = pageSize;
+            this.flipX = flipX;
+            this.flipZ = flipZ;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return image == other.image && pageSize == other.pageSize
+                    && flipX == other.flipX && flipZ == other.flipZ;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31*System.identityHashCode(image) + pageSize;
+            return 4*hash + (flipX ? 2 : 0) + (flipZ ? 1 : 0);
+        }
+    }//Key
+    
+    protected static class Entry {
+        
+        protected final Key key;
+        protected final DensityMap densityMap;
+        protected int refCount;
+        
+        protected Entry(Key key, DensityMap densityMap){
+            this.key = key;
+            this.densityMap = densityMap;
+        }
+    }//Entry
+    
+}//DensityMapRegistry
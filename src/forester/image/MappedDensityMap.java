@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A density map backed by a memory-mapped raw file, instead of a texture.
+ * The data is paged in by the operating system when it's sampled, so 
+ * large numbers of maps can be used without keeping them on the heap
+ * or in direct memory.
+ * <br/><br/>
+ * File format (big endian): a header with the magic number, the version,
+ * the image size (width and height) and the number of planes, followed by
+ * the planes. Each plane is one channel (Red, Green, Blue, Alpha in order),
+ * stored as one byte per texel, row by row. The planes are followed by the
+ * min/max/mean pyramid of each plane (in the same order), so that empty 
+ * area checks and estimates don't have to read the whole plane. Files can 
+ * be created from existing density maps with the write method.
+ * 
+ * @author Andreas
+ */
+public class MappedDensityMap extends DensityMap {
+    
+    public static final int MAGIC = 0x46444D50; //"FDMP"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 16;
+    
+    protected File file;
+    protected MappedByteBuffer data;
+    protected int numPlanes;
+    
+    /**
+     * Maps a density map file.
+     * 
+     * @param file The file.
+     * @param pageSize the pagesize used by the pageloader.
+     */
+    public MappedDensityMap(File file, int pageSize) {
+        this.file = file;
+        this.pageSize = pageSize;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map density map file: " + file, e);
+        } finally {
+            //The mapping stays valid after the file is closed.
+            if(raf != null){
+                try { raf.close(); } catch (IOException e) {}
+            }
+        }
+        readHeader();
+        this.scale = imageSize/(float)pageSize;
+    }
+    
+    protected final void readHeader(){
+        if(data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC){
+            throw new RuntimeException("Not a density map file: " + file);
+        }
+        if(data.getInt(4) != VERSION){
+            throw new RuntimeException("Unsupported density map file version: " + data.getInt(4));
+        }
+        imageSize = data.getInt(8);
+        numPlanes = data.getInt(12);
+        if(imageSize < 1 || numPlanes < 1 || numPlanes > Channel.values().length){
+            throw new RuntimeException("Corrupt density map file header: " + file);
+        }
+        long planeSize = (long)imageSize*imageSize;
+        if(data.capacity() < HEADER_SIZE + numPlanes*(planeSize + Pyramid.getDataSize(imageSize))){
+            throw new RuntimeException("Density map file is truncated: " + file);
+        }
+    }
+    
+    //The planes are slices of the mapped file, so nothing is decoded.
+    @Override
+    protected ByteBuffer decodePlane(Channel channel){
+        if(channel.ordinal() >= numPlanes){
+            throw new UnsupportedOperationException("Density map file does not contain this channel: " + channel);
+        }
+        int planeSize = imageSize*imageSize;
+        ByteBuffer plane = data.duplicate();
+        plane.position(HEADER_SIZE + channel.ordinal()*planeSize);
+        plane.limit(HEADER_SIZE + (channel.ordinal() + 1)*planeSize);
+        return plane.slice();
+    }
+    
+    //The pyramids are slices of the mapped file as well.
+    @Override
+    protected Pyramid createPyramid(Channel channel){
+        if(channel.ordinal() >= numPlanes){
+            throw new UnsupportedOperationException("Density map file does not contain this channel: " + channel);
+        }
+        int offset = HEADER_SIZE + numPlanes*imageSize*imageSize 
+                + channel.ordinal()*Pyramid.getDataSize(imageSize);
+        return new Pyramid(data, offset, imageSize);
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public int getNumPlanes() {
+        return numPlanes;
+    }
+    
+    /**
+     * Writes a density map to a file that can be memory-mapped. The planes
+     * are written in channel order, from Red up to the last channel given,
+     * followed by their pyramids.
+     * 
+     * @param file The file.
+     * @param map The density map.
+     * @param numPlanes The number of channels to write (1 to 4).
+     * @throws IOException 
+     */
+    public static void write(File file, DensityMap map, int numPlanes) throws IOException {
+        if(numPlanes < 1 || numPlanes > Channel.values().length){
+            throw new RuntimeException("The number of planes must be 1 to 4.");
+        }
+        int planeSize = map.imageSize*map.imageSize;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(map.imageSize).putInt(numPlanes);
+        header.flip();
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+            byte[] bytes = new byte[planeSize];
+            for(int i = 0; i < numPlanes; i++){
+                ByteBuffer plane = map.getPlane(Channel.values()[i]);
+                for(int j = 0; j < planeSize; j++){
+                    bytes[j] = plane.get(j);
+                }
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                while(buf.hasRemaining()){
+                    channel.write(buf);
+                }
+            }
+            ByteBuffer pyramidBuf = ByteBuffer.allocate(Pyramid.getDataSize(map.imageSize));
+            for(int i = 0; i < numPlanes; i++){
+                pyramidBuf.clear();
+                map.getPyramid(Channel.values()[i]).write(pyramidBuf);
+                pyramidBuf.flip();
+                while(pyramidBuf.hasRemaining()){
+                    channel.write(pyramidBuf);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+    
+}//MappedDensityMap
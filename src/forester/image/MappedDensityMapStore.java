@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.image;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Loads memory-mapped density map files for grid cells (pages) on demand,
+ * and keeps them until the page is released. Files are named using a pattern,
+ * where %1$d is the cell x-index, %2$d is the cell z-index and %3$d is the 
+ * map index (the ordinal of the density map, used by layers). The default 
+ * pattern is "densitymap_%1$d_%2$d_%3$d.fdm".
+ * <br/><br/>
+ * The map providers release a cell when the page using it is unloaded by
+ * the paging manager (that is, when it leaves the page cache). If several
+ * loaders share a store, pages that are still loaded keep their own 
+ * references to the maps, so this is safe. The cell is mapped again the 
+ * next time it's requested.
+ * 
+ * @author Andreas
+ */
+public class MappedDensityMapStore {
+    
+    protected File directory;
+    protected String pattern = "densitymap_%1$d_%2$d_%3$d.fdm";
+    protected int pageSize;
+    protected int numMaps;
+    //The orientation of the density maps.
+    protected boolean flipX = false, flipZ = true;
+    
+    protected final HashMap<Long, HashMap<Integer, DensityMap>> cells;
+    
+    /**
+     * @param directory The directory containing the files.
+     * @param pageSize The pagesize used by the pageloader.
+     * @param numMaps The number of maps per cell (map indices 0 to numMaps - 1).
+     */
+    public MappedDensityMapStore(File directory, int pageSize, int numMaps){
+        if(numMaps < 1){
+            throw new RuntimeException("The number of maps must be at least 1.");
+        }
+        this.directory = directory;
+        this.pageSize = pageSize;
+        this.numMaps = numMaps;
+        cells = new HashMap<Long, HashMap<Integer, DensityMap>>();
+    }
+    
+    /**
+     * Gets the density maps of a cell. Files are mapped the first time a 
+     * cell is requested (or if it has been released since).
+     * 
+     * @param x The cell x-index.
+     * @param z The cell z-index.
+     * @return The maps, or null if there are no files for the cell.
+     */
+    public synchronized HashMap<Integer, DensityMap> getMaps(int x, int z){
+        Long key = getKey(x, z);
+        if(cells.containsKey(key)){
+            return cells.get(key);
+        }
+        HashMap<Integer, DensityMap> maps = new HashMap<Integer, DensityMap>();
+        for(int i = 0; i < numMaps; i++){
+            File file = getFile(x, z, i);
+            if(file.isFile()){
+                DensityMap map = new MappedDensityMap(file, pageSize);
+                map.flipX(flipX);
+                map.flipZ(flipZ);
+                maps.put(i, map);
+            }
+        }
+        if(maps.isEmpty()){
+            maps = null;
+        }
+        //Cells without files are cached as well, so the files are not 
+        //looked for every time.
+        cells.put(key, maps);
+        return maps;
+    }
+    
+    /**
+     * Releases the maps of a cell. This is called when the page using the
+     * cell is unloaded.
+     * 
+     * @param x The cell x-index.
+     * @param z The cell z-index.
+     */
+    public synchronized void release(int x, int z){
+        cells.remove(getKey(x, z));
+    }
+    
+    protected static Long getKey(int x, int z){
+        return ((long)x << 32) | (z & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Gets the file of a density map.
+     * 
+     * @param x The cell x-index.
+     * @param z The cell z-index.
+     * @param index The map index.
+     * @return The file.
+     */
+    public File getFile(int x, int z, int index){
+        return new File(directory, String.format(pattern, x, z, index));
+    }
+    
+    /**
+     * Releases all cells.
+     */
+    public synchronized void clear(){
+        cells.clear();
+    }
+    
+    public synchronized int size(){
+        return cells.size();
+    }
+    
+    /**
+     * Sets the orientation of the density maps. Cells that are already
+     * mapped are released. The default is flipZ only.
+     * 
+     * @param flipX Whether or not the maps are flipped along the x-axis.
+     * @param flipZ Whether or not the maps are flipped along the z-axis.
+     */
+    public synchronized void setOrientation(boolean flipX, boolean flipZ) {
+        this.flipX = flipX;
+        this.flipZ = flipZ;
+        cells.clear();
+    }
+    
+    public String getPattern() {
+        return pattern;
+    }
+    
+    /**
+     * Sets the file name pattern.
+     * 
+     * @param pattern The pattern.
+     */
+    public synchronized void setPattern(String pattern) {
+        this.pattern = pattern;
+        cells.clear();
+    }
+    
+}//MappedDensityMapStore
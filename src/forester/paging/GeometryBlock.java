@@ -64,9 +64,23 @@ public class GeometryBlock extends GenericCell2D implements Block {
      * @param engine The paging engine used with this page(type).
      */
     public GeometryBlock(int x, int z, Vector3f center, PagingManager engine) {
+        this(x, z, center, engine.getBlockSize(), engine);
+    }
+    
+    /**
+     * Constructor for blocks of a custom size (such as blocks that cover
+     * an entire page).
+     * 
+     * @param x The x-coordinate of the block.
+     * @param z The z-coordinate of the block.
+     * @param center The center of the block.
+     * @param size The width of the block.
+     * @param engine The paging engine used with this block(type).
+     */
+    public GeometryBlock(int x, int z, Vector3f center, float size, PagingManager engine) {
         super(x, z);
         this.parentNode = engine.getPagingNode();
-        bounds = new RectBounds(center,engine.getBlockSize());
+        bounds = new RectBounds(center,size);
     }
 
     @Override
@@ -110,6 +124,10 @@ public class GeometryBlock extends GenericCell2D implements Block {
         Material material = null;
         for (Spatial spat : nodes[detailLevel].getChildren()) {
             material = ((Geometry) spat).getMaterial();
+            //Materials without fading support are just switched on/off.
+            if (material.getMaterialDef().getMaterialParam("FadeEnabled") == null) {
+                continue;
+            }
             material.setFloat("FadeEnd", fadeEnd);
             material.setFloat("FadeRange", fadeRange);
             material.setBoolean("FadeEnabled", enabled);
@@ -109,63 +109,74 @@ public class GeometryPage extends GenericCell2D implements Page {
             if(block.getNodes() == null){
                 continue;
             }
-            //Get the distance to the page center.
-            float dx = block.getCenterPoint().x - camPos.x;
-            float dz = block.getCenterPoint().z - camPos.z;
-            float dist = (float) Math.sqrt(dx * dx + dz * dz);            
-
-            ArrayList<DetailLevel> levels = manager.getDetailLevels();
-            //Start with the detail-level furthest away
-            for (int l = levels.size() - 1; l >= 0; l--) {
-                if(block.getNode(l).getChildren().isEmpty()){
-                    continue;
-                }
-                DetailLevel thisLvl = levels.get(l);
-                DetailLevel nextLvl = null;
+            processBlock(block, camPos);
+        }//Page loop
+    }//Process method
+    
+    /**
+     * Updates the visibility and fading of each detail level of a block.
+     * 
+     * @param block The block.
+     * @param camPos The camera position.
+     */
+    protected void processBlock(Block block, Vector3f camPos) {
+        //Get the distance to the page center.
+        float dx = block.getCenterPoint().x - camPos.x;
+        float dz = block.getCenterPoint().z - camPos.z;
+        float dist = (float) Math.sqrt(dx * dx + dz * dz);            
+
+        ArrayList<DetailLevel> levels = manager.getDetailLevels();
+        //Start with the detail-level furthest away
+        for (int l = levels.size() - 1; l >= 0; l--) {
+            //Blocks may have fewer nodes then there are detail levels.
+            if(l >= block.getNodes().length || block.getNode(l).getChildren().isEmpty()){
+                continue;
+            }
+            DetailLevel thisLvl = levels.get(l);
+            DetailLevel nextLvl = null;
 
-                if (l > 0) {
-                    nextLvl = levels.get(l - 1);
-                }
+            if (l > 0) {
+                nextLvl = levels.get(l - 1);
+            }
 
-                boolean vis = false;
+            boolean vis = false;
 
-                boolean fadeEnable = false;
-                float fadeStart = 0;
-                float fadeEnd = 0;
+            boolean fadeEnable = false;
+            float fadeStart = 0;
+            float fadeEnd = 0;
 
-                //Standard visibility check.
-                if (dist < thisLvl.farDist && dist >= thisLvl.nearDist) {
-                    vis = true;
-                }
-                
-                if (manager.isFadeEnabled()) {
-
-                    //This is the diameter of the (smallest) circle enclosing
-                    //the page and all its geometry in the xz plane.
-                    float halfPageDiag = block.getRealMax();
-                    float pageMin = dist - halfPageDiag;
-                    float pageMax = dist + halfPageDiag;
-                    //Fading visibility check.
-                    if (pageMax >= thisLvl.nearDist && pageMin < thisLvl.farTransDist) {
-                        if (thisLvl.fadeEnabled && pageMax >= thisLvl.farDist) {
-                            vis = true;
-                            fadeEnable = true;
-                            fadeStart = thisLvl.farDist;
-                            fadeEnd = thisLvl.farTransDist;
-                        } else if (nextLvl != null && nextLvl.fadeEnabled && pageMin < nextLvl.farTransDist) {
-                            vis = true;
-                            fadeEnable = true;
-                            fadeStart = nextLvl.farTransDist;
-                            fadeEnd = nextLvl.farDist;
-                        }
+            //Standard visibility check.
+            if (dist < thisLvl.farDist && dist >= thisLvl.nearDist) {
+                vis = true;
+            }
+            
+            if (manager.isFadeEnabled()) {
+
+                //This is the diameter of the (smallest) circle enclosing
+                //the page and all its geometry in the xz plane.
+                float halfPageDiag = block.getRealMax();
+                float pageMin = dist - halfPageDiag;
+                float pageMax = dist + halfPageDiag;
+                //Fading visibility check.
+                if (pageMax >= thisLvl.nearDist && pageMin < thisLvl.farTransDist) {
+                    if (thisLvl.fadeEnabled && pageMax >= thisLvl.farDist) {
+                        vis = true;
+                        fadeEnable = true;
+                        fadeStart = thisLvl.farDist;
+                        fadeEnd = thisLvl.farTransDist;
+                    } else if (nextLvl != null && nextLvl.fadeEnabled && pageMin < nextLvl.farTransDist) {
+                        vis = true;
+                        fadeEnable = true;
+                        fadeStart = nextLvl.farTransDist;
+                        fadeEnd = nextLvl.farDist;
                     }
-                    block.setFade(fadeEnable, fadeStart, fadeEnd, l);
-                } //If fade enabled
+                }
+                block.setFade(fadeEnable, fadeStart, fadeEnd, l);
+            } //If fade enabled
 
-                block.setVisible(vis, l);
-            }//Detail level loop
-        }//Page loop
-    }//Process method
+            block.setVisible(vis, l);
+        }//Detail level loop
+    }//processBlock
 
     @Override
     public void unload() {
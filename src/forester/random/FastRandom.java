@@ -55,16 +55,17 @@ public class FastRandom {
      * nanotime as seed.
      */
     public FastRandom(){
-        x = System.nanoTime();
+        this(System.nanoTime());
     }
     /**
      * Creates a new FastRandom instance using the provided long value
      * as seed.
      * 
-     * @param seed The long value used to seed the generator.
+     * @param seed The long value used to seed the generator. 0 is replaced by
+     * a constant, since it would only produce zeros.
      */
     public FastRandom(long seed){
-        x = seed;
+        x = RandomTable.nonZero(seed);
     }
     
     /**
@@ -90,10 +91,11 @@ public class FastRandom {
     /**
      * Re-seeds the generator with a new long value.
      * 
-     * @param seed The long value used to seed the generator.
+     * @param seed The long value used to seed the generator. 0 is replaced by
+     * a constant, since it would only produce zeros.
      */
     public void reSeed(long seed){
-        x = seed;
+        x = RandomTable.nonZero(seed);
     }
     
     /**
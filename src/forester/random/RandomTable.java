@@ -33,12 +33,24 @@ import com.jme3.math.Vector3f;
 /**
  * This class is used to produce random number seeds. It generates
  * the numbers each time so it isn't a table per se, but acts like one. 
+ * <br/><br/>
+ * All values are derived from the world seed using a stateless hash, so
+ * the same inputs always give the same seed (regardless of which thread 
+ * asks, or in what order). This is what makes vegetation look the same
+ * every time a page is reloaded.
  * 
  * @author Andreas
  */
 public class RandomTable {
     
-    protected static final FastRandom random = new FastRandom();
+    //Domains, used to keep the seeds of grass- and tree-layers apart.
+    public static final int GRASS = 1;
+    public static final int TREES = 2;
+    
+    //Used in place of 0, which is not a valid xorshift seed.
+    protected static final long ZERO_SEED = 0x2545F4914F6CDD1DL;
+    
+    protected static volatile long worldSeed = 0;
     
     /**
      * Generates a long-value.
@@ -46,30 +58,97 @@ public class RandomTable {
      * @param loc The xz location as a Vector3f object.
      * @return A long.
      */
-    synchronized
     public static long lookup(Vector3f loc, short ID){
         short v1 = (short) loc.x;
         short v2 = (short) loc.z;
-        long seed = (long)v1 + (long)(v2 << 16) + ((long)ID << 32);
-        random.reSeed(seed);
-        return random.next();
+        long h = hash(worldSeed, v1);
+        h = hash(h, v2);
+        return nonZero(hash(h, ID));
+    }
+    
+    /**
+     * Gets the seed of a layer. Use this for things that must be the same
+     * for all pages and blocks (such as the origin of a pattern).
+     * 
+     * @param domain The domain (GRASS or TREES).
+     * @param layerId The id of the layer.
+     * @return A non-zero seed.
+     */
+    public static long getLayerSeed(int domain, int layerId){
+        return nonZero(hash(hash(worldSeed, domain), layerId));
+    }
+    
+    /**
+     * Gets the seed used when placing the vegetation of a layer inside
+     * a block.
+     * 
+     * @param domain The domain (GRASS or TREES).
+     * @param pageX The x-index of the page.
+     * @param pageZ The z-index of the page.
+     * @param blockX The x-index of the block (inside the page).
+     * @param blockZ The z-index of the block (inside the page).
+     * @param layerId The id of the layer.
+     * @return A non-zero seed.
+     */
+    public static long getSeed(int domain, int pageX, int pageZ, int blockX, int blockZ, int layerId){
+        long h = getLayerSeed(domain, layerId);
+        h = hash(h, pageX);
+        h = hash(h, pageZ);
+        h = hash(h, blockX);
+        return nonZero(hash(h, blockZ));
     }
     
     /**
-     * Offset the table. This value will re-seed the random generator
-     * with the given value. This method should not be called after
-     * the lookup method has been called, as it will change all values
-     * generated by that method.
+     * Mixes a value into a hash (using the SplitMix64 finalizer).
      * 
-     * @param offset A long value used to re-seed the generator.
+     * @param h The hash.
+     * @param v The value.
+     * @return The new hash.
+     */
+    public static long hash(long h, long v){
+        long z = h + v*0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+        z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    /**
+     * Makes sure a value can be used as a xorshift seed.
+     * 
+     * @param seed The seed.
+     * @return The seed, or a constant if the seed is 0.
+     */
+    public static long nonZero(long seed){
+        return (seed == 0) ? ZERO_SEED : seed;
+    }
+    
+    public static long getWorldSeed(){
+        return worldSeed;
+    }
+    
+    /**
+     * Sets the world seed. This should not be done after pages has been 
+     * loaded, as it will change all values generated by the table.
+     * 
+     * @param seed The world seed.
+     */
+    public static void setWorldSeed(long seed){
+        worldSeed = seed;
+    }
+    
+    /**
+     * Offset the table. This is the same as setting the world seed.
+     * 
+     * @param offset A long value used as world seed.
      */
-    synchronized
     public static void offsetTable(long offset){
-        random.reSeed(offset);
+        setWorldSeed(offset);
     }
     
-    synchronized
+    /**
+     * Offsets the table using System.nanoTime().
+     */
     public static void offsetTable(){
-        random.reSeed();
+        setWorldSeed(System.nanoTime());
     }
 }
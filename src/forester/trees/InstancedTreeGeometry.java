@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Quaternion;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.instancing.InstancedGeometry;
+import com.jme3.util.BufferUtils;
+import java.nio.FloatBuffer;
+
+/**
+ * Geometry used to render a block of trees through hardware instancing.
+ * The mesh is shared with the tree model, and each tree is an instance. 
+ * The instances are stored as TRANSFORM_SIZE floats per tree (relative to
+ * the block), and the instance buffer is rewritten whenever the world
+ * transform of the geometry changes.
+ * <br/><br/>
+ * The material needs to support instancing (the "UseInstancing" parameter),
+ * and the renderer needs the MeshInstancing capability.
+ * 
+ * @author Andreas
+ */
+public class InstancedTreeGeometry extends InstancedGeometry {
+    
+    //The number of floats per instance (a 3x4 world matrix and the normal 
+    //rotation quaternion).
+    protected static final int INSTANCE_SIZE = 16;
+    
+    protected float[] transforms;
+    protected int numInstances;
+    protected VertexBuffer instanceData;
+    
+    //The world matrix that the instance buffer was written with.
+    protected Matrix4f instanceWorldMat;
+    protected Quaternion tempQuat = new Quaternion();
+    
+    /**
+     * Creates a new instanced geometry.
+     * 
+     * @param name The name of the geometry.
+     * @param mesh The mesh (normally sharing buffers with the model).
+     * @param transforms The tree transforms, as created by the 
+     * TreeGeometryGenerator.
+     * @param numInstances The number of trees.
+     */
+    public InstancedTreeGeometry(String name, Mesh mesh, float[] transforms, int numInstances){
+        super(name);
+        setMesh(mesh);
+        //The world transform is applied in the instance data, but it's 
+        //still used for culling.
+        setIgnoreTransform(false);
+        this.transforms = transforms;
+        this.numInstances = numInstances;
+        
+        instanceData = new VertexBuffer(VertexBuffer.Type.InstanceData);
+        instanceData.setInstanced(true);
+        instanceData.setupData(VertexBuffer.Usage.Static, INSTANCE_SIZE, VertexBuffer.Format.Float, 
+                               BufferUtils.createFloatBuffer(numInstances*INSTANCE_SIZE));
+        setTransformUserInstanceData(instanceData);
+    }
+    
+    @Override
+    public int getActualNumInstances() {
+        return numInstances;
+    }
+
+    @Override
+    public int getMaxNumInstances() {
+        return numInstances;
+    }
+    
+    @Override
+    public void updateInstances() {
+        //The instances are written in updateWorldTransforms.
+    }
+    
+    @Override
+    protected void updateWorldTransforms() {
+        super.updateWorldTransforms();
+        Matrix4f worldMat = getWorldMatrix();
+        if(instanceWorldMat == null || !instanceWorldMat.equals(worldMat)){
+            writeInstances(worldMat);
+            if(instanceWorldMat == null){
+                instanceWorldMat = new Matrix4f();
+            }
+            instanceWorldMat.set(worldMat);
+        }
+    }
+    
+    /**
+     * Writes the world matrix and normal rotation of each tree to the 
+     * instance buffer. The layout is the same as the one used by 
+     * InstancedGeometry.
+     * 
+     * @param worldMat The world matrix of the geometry.
+     */
+    protected void writeInstances(Matrix4f worldMat){
+        FloatBuffer data = (FloatBuffer) instanceData.getData();
+        data.clear();
+        
+        float w00 = worldMat.m00, w01 = worldMat.m01, w02 = worldMat.m02;
+        float w10 = worldMat.m10, w11 = worldMat.m11, w12 = worldMat.m12;
+        float w20 = worldMat.m20, w21 = worldMat.m21, w22 = worldMat.m22;
+        
+        for (int t = 0, tIt = 0; t < numInstances; t++, tIt += TreeGeometryGenerator.TRANSFORM_SIZE) {
+            float r00 = transforms[tIt], r01 = transforms[tIt + 1], r02 = transforms[tIt + 2];
+            float r10 = transforms[tIt + 3], r11 = transforms[tIt + 4], r12 = transforms[tIt + 5];
+            float r20 = transforms[tIt + 6], r21 = transforms[tIt + 7], r22 = transforms[tIt + 8];
+            float scale = transforms[tIt + 9];
+            float x = transforms[tIt + 10];
+            float y = transforms[tIt + 11];
+            float z = transforms[tIt + 12];
+            
+            //The world rotation of the tree (without the tree scale).
+            float c00 = w00*r00 + w01*r10 + w02*r20;
+            float c01 = w00*r01 + w01*r11 + w02*r21;
+            float c02 = w00*r02 + w01*r12 + w02*r22;
+            float c10 = w10*r00 + w11*r10 + w12*r20;
+            float c11 = w10*r01 + w11*r11 + w12*r21;
+            float c12 = w10*r02 + w11*r12 + w12*r22;
+            float c20 = w20*r00 + w21*r10 + w22*r20;
+            float c21 = w20*r01 + w21*r11 + w22*r21;
+            float c22 = w20*r02 + w21*r12 + w22*r22;
+            
+            //The shader rotates normals by the conjugate, so the quaternion
+            //is made from the inverse (transposed) rotation. Any world scale
+            //is removed first.
+            float l0 = 1f/FastMath.sqrt(c00*c00 + c10*c10 + c20*c20);
+            float l1 = 1f/FastMath.sqrt(c01*c01 + c11*c11 + c21*c21);
+            float l2 = 1f/FastMath.sqrt(c02*c02 + c12*c12 + c22*c22);
+            tempQuat.fromRotationMatrix(c00*l0, c10*l0, c20*l0, 
+                                        c01*l1, c11*l1, c21*l1, 
+                                        c02*l2, c12*l2, c22*l2);
+            
+            //Columns of the world matrix, with the quaternion in w.
+            data.put(c00*scale).put(c10*scale).put(c20*scale).put(tempQuat.getX());
+            data.put(c01*scale).put(c11*scale).put(c21*scale).put(tempQuat.getY());
+            data.put(c02*scale).put(c12*scale).put(c22*scale).put(tempQuat.getZ());
+            data.put(w00*x + w01*y + w02*z + worldMat.m03);
+            data.put(w10*x + w11*y + w12*z + worldMat.m13);
+            data.put(w20*x + w21*y + w22*z + worldMat.m23);
+            data.put(tempQuat.getW());
+        }
+        data.clear();
+        instanceData.updateData(data);
+    }
+    
+    public int getNumInstances(){
+        return numInstances;
+    }
+    
+}//InstancedTreeGeometry
@@ -30,11 +30,12 @@ package forester.trees;
 
 import com.jme3.bullet.PhysicsSpace;
 import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
-import com.jme3.bullet.control.RigidBodyControl;
+import com.jme3.bullet.objects.PhysicsRigidBody;
 import com.jme3.math.Vector3f;
 import forester.Forester;
 import forester.paging.GeometryBlock;
 import forester.paging.interfaces.PagingManager;
+import java.util.concurrent.Future;
 
 
 /**
@@ -43,48 +44,65 @@ import forester.paging.interfaces.PagingManager;
  * @author Andreas
  */
 public class TreeBlock extends GeometryBlock {
-    protected RigidBodyControl control;
+    //Physics is handled by the TreePhysicsManager.
+    protected PhysicsRigidBody body;
+    protected Future<CompoundCollisionShape> physicsTask;
+    //Whether or not the block is in physics range (even if it has no shape).
+    protected boolean physicsActive;
 
     public TreeBlock(int x, int z, Vector3f center, PagingManager engine) {
         super(x, z, center, engine);
     }
 
-    @Override
-    public void setVisible(boolean visible, int detailLevel) {
-        if (visible == true && stateVec[detailLevel] == false) {
-            parentNode.attachChild(nodes[detailLevel]);
-            stateVec[detailLevel] = visible;
-            if (detailLevel == 0 && control != null) {
-                PhysicsSpace phySpace = Forester.getInstance().getPhysicsSpace();
-                phySpace.add(control);
-            }
-        } else if (visible == false && stateVec[detailLevel] == true) {
-            nodes[detailLevel].removeFromParent();
-            stateVec[detailLevel] = visible;
-            if (detailLevel == 0 && control != null) {
-                PhysicsSpace phySpace = Forester.getInstance().getPhysicsSpace();
-                phySpace.remove(control);
-            }
-        }
+    /**
+     * @return true if the block is in physics range, meaning it has a rigid
+     * body, a shape is being built, or it has no physics trees.
+     */
+    public boolean isPhysicsActive() {
+        return physicsActive;
+    }
+
+    public PhysicsRigidBody getPhysicsBody() {
+        return body;
+    }
+
+    //The body is added to the physics space by the physics manager.
+    protected void setPhysicsBody(PhysicsRigidBody body) {
+        this.body = body;
+    }
+
+    public Future<CompoundCollisionShape> getPhysicsTask() {
+        return physicsTask;
     }
 
-    public void initPhysics(CompoundCollisionShape ccs) {
-        if (!nodes[0].getChildren().isEmpty()) {
-            
-            if (ccs != null ) {
-                control = new RigidBodyControl(ccs, 0f);
-                nodes[0].addControl(control);
-            }
+    protected void setPhysicsTask(Future<CompoundCollisionShape> physicsTask) {
+        this.physicsTask = physicsTask;
+        if (physicsTask != null) {
+            physicsActive = true;
+        }
+    }
+    
+    /**
+     * Removes the rigid body from the physics space, and cancels any
+     * pending shape.
+     */
+    public void clearPhysics() {
+        physicsActive = false;
+        if (physicsTask != null) {
+            physicsTask.cancel(false);
+            physicsTask = null;
+        }
+        if (body != null) {
+            PhysicsSpace phySpace = Forester.getInstance().getPhysicsSpace();
+            phySpace.remove(body);
+            body = null;
         }
     }
 
     @Override
     public void unload() {
         super.unload();
-        if(control != null){
-            PhysicsSpace phySpace = Forester.getInstance().getPhysicsSpace();
-            phySpace.remove(control);
-        }
+        clearPhysics();
     }
 
     @Override
@@ -28,10 +28,12 @@
  */
 package forester.trees;
 
-import forester.trees.datagrids.TreeData;
 import forester.trees.datagrids.TreeDataList;
 import com.jme3.bounding.BoundingBox;
-import com.jme3.math.Quaternion;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.math.Transform;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
@@ -40,39 +42,35 @@ import com.jme3.scene.mesh.IndexBuffer;
 import com.jme3.util.IntMap.Entry;
 import java.nio.Buffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Class used to generate tree batches. This class borrows from
  * BatchNode.java.
+ * <br/><br/>
+ * The generator has no per-batch state, so the same instance can be used 
+ * by several loader threads at once.
  * 
  * @author Andreas
  */
 public class TreeGeometryGenerator {
     
-    //Used when creating buffers
-    private Vector3f posTemp;
-    private Vector3f normTemp;
-    private Vector3f tanTemp;
-    private Quaternion rot;
+    //The number of floats per tree in the transform array (a 3x3 rotation
+    //matrix, the scale and the translation).
+    protected static final int TRANSFORM_SIZE = 13;
     
-    //Temporary arrays to store vertex values
-    private float[] baseP = null; //Positions
-    private float[] baseN = null; //Normals
-    private float[] baseT = null; //Tangents
-    private float[] baseX = null; //TexCoords
+    //Indices of base meshes, so that they are only extracted once.
+    protected final Map<Mesh, BaseIndices> indexCache = new WeakHashMap<Mesh, BaseIndices>();
     
-    private float[] tempP = null;
-    private float[] tempN = null;
-    private float[] tempT = null;
+    //The largest number of vertices that can use 16 bit indices.
+    protected static final int MAX_SHORT_INDEX_VERTICES = 65536;
     
-    //Booleans
-    private boolean usesNormals = false;
-    private boolean usesTangents = false;
-    //Used to label and keep track of the buffers used by the base mesh.    
-    private int[] compsForBuf = null;
-    VertexBuffer.Format[] formatForBuf = null;
-    //Keep track of how many components there are in tangents.
-    private int tanComps = 4;
+    //Whether or not to split batches that need 32 bit indices.
+    protected volatile boolean splitBatches = false;
     
     public TreeGeometryGenerator(){
     }
@@ -81,171 +79,115 @@ public class TreeGeometryGenerator {
                                             TreeDataList treeList,
                                             boolean createTanBin
                                           ) 
+    {
+        return generateStaticGeometry(baseGeom, treeList, 0, treeList.size(), createTanBin);
+    }
+    
+    /**
+     * Generates the batches of a list of trees. If batch splitting is
+     * enabled, and the trees need more then 65536 vertices, they are split
+     * into several batches that each use 16 bit indices. Otherwise the list
+     * contains (at most) one batch.
+     * 
+     * @param baseGeom The tree model.
+     * @param treeList The trees.
+     * @param createTanBin Not used.
+     * @return The batches (empty if there are no trees).
+     */
+    public ArrayList<Geometry> generateStaticGeometries(Geometry baseGeom, 
+                                                        TreeDataList treeList,
+                                                        boolean createTanBin
+                                                       ) 
+    {
+        ArrayList<Geometry> geoms = new ArrayList<Geometry>(1);
+        int numTrees = treeList.size();
+        int batchSize = numTrees;
+        if(splitBatches){
+            batchSize = Math.max(1, MAX_SHORT_INDEX_VERTICES/baseGeom.getMesh().getVertexCount());
+        }
+        for(int from = 0; from < numTrees; from += batchSize){
+            int to = Math.min(numTrees, from + batchSize);
+            geoms.add(generateStaticGeometry(baseGeom, treeList, from, to, createTanBin));
+        }
+        return geoms;
+    }
+    
+    /**
+     * Generates a batch from a range of trees in a list.
+     * 
+     * @param baseGeom The tree model.
+     * @param treeList The trees.
+     * @param from The first tree (inclusive).
+     * @param to The last tree (exclusive).
+     * @param createTanBin Not used.
+     * @return The batch, or null if the range is empty.
+     */
+    public Geometry generateStaticGeometry( Geometry baseGeom, 
+                                            TreeDataList treeList,
+                                            int from,
+                                            int to,
+                                            boolean createTanBin
+                                          ) 
     {
         Mesh baseMesh = baseGeom.getMesh();
         //DEBUG
-        if(treeList.isEmpty()){
+        if(to <= from){
             return null;
         }
         //The batch mesh.
         Mesh batchMesh = new Mesh();
         //Only triangle meshes allowed. Simplex component count is always 3.
         batchMesh.setMode(Mesh.Mode.Triangles);
-        batchMesh.setDynamic();
-        
-        //Arrays to keep track of component count and formats for each buffer.
-        compsForBuf = new int[VertexBuffer.Type.values().length];
-        formatForBuf = new VertexBuffer.Format[compsForBuf.length];
-        
-        posTemp = new Vector3f();
-        normTemp = new Vector3f();
-        tanTemp = new Vector3f();
         
+        int numTrees = to - from;
         int vertCount = baseMesh.getVertexCount();
-        int triCount = baseMesh.getTriangleCount();
         
-        int totalVerts = vertCount*treeList.size();
-        int totalTris = triCount*treeList.size();  
+        int totalVerts = vertCount*numTrees;
+        
+        //The transform of each tree is only calculated once.
+        float[] transforms = createTransforms(treeList, from, to);
+        int[] baseIndices = getBaseIndices(baseMesh);
         
-        //Set the arrays with the component number and format for each buffer.
         for (Entry<VertexBuffer> entry : baseMesh.getBuffers()) {
-            compsForBuf[entry.getKey()] = entry.getValue().getNumComponents();
-            formatForBuf[entry.getKey()] = entry.getValue().getFormat();
-        }
-        //The number is 2^16 - 1, which is the largest unsigned short.
-        if (totalVerts > 65535) {
-            // make sure we create an UnsignedInt buffer so
-            // we can fit all of the meshes
-            formatForBuf[VertexBuffer.Type.Index.ordinal()] = VertexBuffer.Format.UnsignedInt;
-        } else {
-            formatForBuf[VertexBuffer.Type.Index.ordinal()] = VertexBuffer.Format.UnsignedShort;
-        }
-
-        //Generate buffers for the batch mesh.
-        for (int i = 0; i < compsForBuf.length; i++) {
-            if (compsForBuf[i] == 0) {
-                continue;
-            }
-
+            VertexBuffer baseBuf = entry.getValue();
+            VertexBuffer.Type type = baseBuf.getBufferType();
+            int comps = baseBuf.getNumComponents();
+            VertexBuffer.Format format = baseBuf.getFormat();
+            
             Buffer data;
-            if (i == VertexBuffer.Type.Index.ordinal()) {
-                data = VertexBuffer.createBuffer(formatForBuf[i], compsForBuf[i], totalTris);                
+            if (type == VertexBuffer.Type.Index) {
+                //16 bit indices are used whenever the largest index 
+                //(totalVerts - 1) fits in an unsigned short.
+                if (totalVerts > 65536) {
+                    // make sure we create an UnsignedInt buffer so
+                    // we can fit all of the meshes
+                    format = VertexBuffer.Format.UnsignedInt;
+                } else {
+                    format = VertexBuffer.Format.UnsignedShort;
+                }
+                data = VertexBuffer.createBuffer(format, comps, baseIndices.length*numTrees/comps);
             } else {
-                data = VertexBuffer.createBuffer(formatForBuf[i], compsForBuf[i], totalVerts);                
-            }
-
-            VertexBuffer vb = new VertexBuffer(VertexBuffer.Type.values()[i]);
-            
-            vb.setupData(VertexBuffer.Usage.Dynamic, compsForBuf[i], formatForBuf[i], data);
-            batchMesh.setBuffer(vb);
-            
-            //Set up the arrays that will be used.
-            if(vb.getBufferType() == VertexBuffer.Type.Position){
-                baseP = new float[vertCount*3];
-                tempP = new float[vertCount*3];
-                FloatBuffer basePos = baseMesh.getFloatBuffer(VertexBuffer.Type.Position);
-                basePos.position(0);
-                basePos.get(baseP);
-            }else if(vb.getBufferType() == VertexBuffer.Type.Normal){
-                assert(vb.getNumElements() == vertCount);
-                baseN = new float[vertCount*3];
-                tempN = new float[vertCount*3];
-                FloatBuffer baseNorm = baseMesh.getFloatBuffer(VertexBuffer.Type.Normal);
-                baseNorm.position(0);
-                baseNorm.get(baseN);
-                usesNormals = true;
-            }else if(vb.getBufferType() == VertexBuffer.Type.Tangent){
-                assert(vb.getNumElements() == vertCount);
-                //This is because of tangent parities; sometimes meshes
-                //uses them, sometimes they don't.
-                tanComps = vb.getNumComponents();
-                baseT = new float[vertCount*tanComps];
-                tempT = new float[vertCount*tanComps];
-                FloatBuffer baseTan= baseMesh.getFloatBuffer(VertexBuffer.Type.Tangent);
-                baseTan.position(0);
-                baseTan.get(baseT);
-                usesTangents = true;
-            }else if(vb.getBufferType() == VertexBuffer.Type.TexCoord){
-                //The texcoords are not to be manipulated, so no temp
-                //array is needed.
-                baseX = new float[vertCount*2];
-                FloatBuffer baseTex= baseMesh.getFloatBuffer(VertexBuffer.Type.TexCoord);
-                baseTex.position(0);
-                baseTex.get(baseX);
+                data = VertexBuffer.createBuffer(format, comps, totalVerts);
             }
+            VertexBuffer outBuf = new VertexBuffer(type);
+            outBuf.setupData(VertexBuffer.Usage.Static, comps, format, data);
+            batchMesh.setBuffer(outBuf);
             
-        }//for-loop
-
-        //Keep track of where in the base mesh buffers we currently are.
-        int globalVertIndex = 0;
-        int globalTriIndex = 0;
-        
-        for (int i = 0; i < treeList.size(); i++) {
-            
-            TreeData data = treeList.get(i);
-            
-            //Create new buffers for each tree data. These buffers end up in
-            //the temporary arrays
-            generateBuffers(data, vertCount);
-            
-            for (int bufType = 0; bufType < compsForBuf.length; bufType++) {
-                
-                VertexBuffer outBuf = batchMesh.getBuffer(VertexBuffer.Type.values()[bufType]);
-
-                if (outBuf == null) {
-                    continue;
-                }
-
-                if (VertexBuffer.Type.Index.ordinal() == bufType) {
-                    int components = compsForBuf[bufType];
-
-                    IndexBuffer inIdx = baseMesh.getIndicesAsList();
-                    IndexBuffer outIdx = batchMesh.getIndexBuffer();
-
-                    for (int tri = 0; tri < triCount; tri++) {
-                        for (int comp = 0; comp < components; comp++) {
-                            int idx = inIdx.get(tri * components + comp) + globalVertIndex;
-                            outIdx.put((globalTriIndex + tri) * components + comp, idx);
-                        }
-                    }
-                } else if (VertexBuffer.Type.Position.ordinal() == bufType) {
-                    FloatBuffer outPos = (FloatBuffer) outBuf.getData();
-                    outPos.put(tempP);
-                } else if (VertexBuffer.Type.Normal.ordinal() == bufType) {
-                    FloatBuffer outPos = (FloatBuffer) outBuf.getData();
-                    outPos.put(tempN);
-                } else if (VertexBuffer.Type.Tangent.ordinal() == bufType){
-                    FloatBuffer outTan = (FloatBuffer) outBuf.getData();
-                    outTan.put(tempT);
-                } else if (VertexBuffer.Type.TexCoord.ordinal() == bufType){
-                    FloatBuffer outTex = (FloatBuffer) outBuf.getData();
-                    //Just keep feeding it the base mesh texcoords each iteration.
-                    outTex.put(baseX);
+            if (type == VertexBuffer.Type.Index) {
+                writeIndices(baseIndices, outBuf, vertCount, numTrees);
+            } else if (type == VertexBuffer.Type.Position) {
+                writeVectors(baseBuf, outBuf, transforms, numTrees, true);
+            } else if (type == VertexBuffer.Type.Normal 
+                    || type == VertexBuffer.Type.Tangent 
+                    || type == VertexBuffer.Type.Binormal) {
+                writeVectors(baseBuf, outBuf, transforms, numTrees, false);
+            } else {
+                //Texcoords etc. are the same for every tree.
+                for (int i = 0; i < numTrees; i++) {
+                    baseBuf.copyElements(0, outBuf, i*vertCount, vertCount);
                 }
-            }//innerFor
-            
-            //Increase the counters.
-            globalVertIndex += vertCount;
-            globalTriIndex += triCount;
-            
-        }//outerFor
-        
-        //Reset temporary variables
-        usesNormals = false;
-        usesTangents = false;
-        compsForBuf = null;
-        formatForBuf = null;
-        posTemp = null;
-        normTemp = null;
-        tanTemp = null;
-        baseP = null;
-        baseN = null;
-        baseT = null;
-        baseX = null;
-        tempP = null;
-        tempN = null;
-        tempT = null;
-        rot = null;
+            }
+        }
         
         BoundingBox box = new BoundingBox();
         batchMesh.setBound(box);
@@ -262,65 +204,261 @@ public class TreeGeometryGenerator {
         
     }//generateStaticGeometry
     
-    private void generateBuffers(TreeData data, int vertCount) {
-        Vector3f pos = posTemp;
-        Vector3f norm = normTemp;
-        Vector3f tan = tanTemp;
-                
-        int pIt = 0, nIt = 0, tIt = 0;
+    /**
+     * Generates an instanced geometry from a range of trees in a list. The
+     * geometry shares the vertex buffers of the model, and only stores the
+     * transform of each tree.
+     * 
+     * @param baseGeom The tree model.
+     * @param treeList The trees.
+     * @param from The first tree (inclusive).
+     * @param to The last tree (exclusive).
+     * @return The geometry, or null if the range is empty.
+     */
+    public InstancedTreeGeometry generateInstancedGeometry( Geometry baseGeom, 
+                                                            TreeDataList treeList,
+                                                            int from,
+                                                            int to
+                                                          ) 
+    {
+        if(to <= from){
+            return null;
+        }
+        Mesh baseMesh = baseGeom.getMesh();
+        //The mesh shares buffers with the base mesh, so model data is
+        //never duplicated.
+        Mesh mesh = new Mesh();
+        mesh.setMode(baseMesh.getMode());
+        for (VertexBuffer buf : baseMesh.getBufferList()) {
+            mesh.setBuffer(buf);
+        }
+        mesh.updateCounts();
         
-        rot = new Quaternion().fromAngleNormalAxis(data.rot, Vector3f.UNIT_Y);
+        float[] transforms = createTransforms(treeList, from, to);
+        mesh.setBound(createInstanceBound(baseMesh.getBound(), transforms, to - from));
         
-        for(int i = 0; i < vertCount; i++){
-            // Positions
-            pos.x = baseP[pIt++];
-            pos.y = baseP[pIt++];
-            pos.z = baseP[pIt];
-            
-            //scale
-            pos.multLocal(data.scale);
-            //rotate
-            rot.mult(pos,pos);
-            //translate
-            pos.addLocal(data.x,data.y,data.z);
-            
-            pIt -= 2;
-            
-            tempP[pIt++] = pos.x;
-            tempP[pIt++] = pos.y;
-            tempP[pIt++] = pos.z;
-            
-            if(usesNormals){
-                norm.x = baseN[nIt++];
-                norm.y = baseN[nIt++];
-                norm.z = baseN[nIt];
-                //rotate
-                rot.mult(norm,norm);
-            
-                nIt -= 2;
-                tempN[nIt++] = norm.x;
-                tempN[nIt++] = norm.y;
-                tempN[nIt++] = norm.z;
+        InstancedTreeGeometry geom = new InstancedTreeGeometry(baseGeom.getMaterial().toString(), mesh, transforms, to - from);
+        Material mat = baseGeom.getMaterial().clone();
+        mat.setBoolean("UseInstancing", true);
+        geom.setMaterial(mat);
+        geom.setQueueBucket(baseGeom.getQueueBucket());
+        return geom;
+    }
+    
+    /**
+     * Creates a bounding box that contains the base mesh bounds of all trees.
+     * 
+     * @param baseBound The bound of the base mesh.
+     * @param transforms The tree transforms.
+     * @param numTrees The number of trees.
+     * @return The bounding box.
+     */
+    protected BoundingBox createInstanceBound(BoundingVolume baseBound, float[] transforms, int numTrees){
+        BoundingBox box = new BoundingBox();
+        Transform transform = new Transform();
+        BoundingVolume store = null;
+        for (int t = 0, tIt = 0; t < numTrees; t++, tIt += TRANSFORM_SIZE) {
+            //The rotation is around the y-axis, see createTransforms.
+            transform.getRotation().fromAngleNormalAxis(FastMath.atan2(transforms[tIt + 2], transforms[tIt]), Vector3f.UNIT_Y);
+            transform.setScale(transforms[tIt + 9]);
+            transform.setTranslation(transforms[tIt + 10], transforms[tIt + 11], transforms[tIt + 12]);
+            store = baseBound.transform(transform, store);
+            if(t == 0){
+                box.setCenter(store.getCenter());
+                box.setXExtent(0);
+                box.setYExtent(0);
+                box.setZExtent(0);
             }
-            
-            if(usesTangents){
-                tan.x = baseT[tIt++];
-                tan.y = baseT[tIt++];
-                tan.z = baseT[tIt];
-                //rotate
-                rot.mult(tan,tan);
-            
-                tIt -= 2;
-                tempT[tIt++] = tan.x;
-                tempT[tIt++] = tan.y;
-                tempT[tIt++] = tan.z;
-                
-                if(tanComps == 4){
-                    tIt++;
+            box.mergeLocal(store);
+        }
+        return box;
+    }
+    
+    /**
+     * Calculates the transform of each tree. The rotation is around the 
+     * y-axis, which gives the matrix:
+     * <br/>
+     * [ cos 0 sin ]<br/>
+     * [  0  1  0  ]<br/>
+     * [-sin 0 cos ]
+     * 
+     * @param treeList The trees.
+     * @param from The first tree (inclusive).
+     * @param to The last tree (exclusive).
+     * @return The transforms, TRANSFORM_SIZE floats per tree.
+     */
+    protected float[] createTransforms(TreeDataList treeList, int from, int to){
+        float[] transforms = new float[(to - from)*TRANSFORM_SIZE];
+        float[] xs = treeList.getXArray();
+        float[] ys = treeList.getYArray();
+        float[] zs = treeList.getZArray();
+        float[] scales = treeList.getScaleArray();
+        float[] rots = treeList.getRotArray();
+        int it = 0;
+        for (int i = from; i < to; i++) {
+            float cos = FastMath.cos(rots[i]);
+            float sin = FastMath.sin(rots[i]);
+            //Row major.
+            transforms[it++] = cos;
+            transforms[it++] = 0;
+            transforms[it++] = sin;
+            transforms[it++] = 0;
+            transforms[it++] = 1;
+            transforms[it++] = 0;
+            transforms[it++] = -sin;
+            transforms[it++] = 0;
+            transforms[it++] = cos;
+            transforms[it++] = scales[i];
+            transforms[it++] = xs[i];
+            transforms[it++] = ys[i];
+            transforms[it++] = zs[i];
+        }
+        return transforms;
+    }
+    
+    /**
+     * Writes transformed vectors to the batch buffer. Positions are scaled,
+     * rotated and translated. Other vectors (normals, tangents) are only 
+     * rotated, and any fourth component (tangent parity) is copied.
+     * 
+     * @param baseBuf The buffer of the base mesh.
+     * @param outBuf The buffer of the batch mesh.
+     * @param transforms The tree transforms.
+     * @param numTrees The number of trees.
+     * @param positions Whether or not the vectors are positions.
+     */
+    protected void writeVectors(VertexBuffer baseBuf, VertexBuffer outBuf, float[] transforms, int numTrees, boolean positions){
+        int comps = baseBuf.getNumComponents();
+        FloatBuffer baseData = ((FloatBuffer) baseBuf.getData()).duplicate();
+        float[] base = new float[baseBuf.getNumElements()*comps];
+        baseData.clear();
+        baseData.get(base);
+        float[] temp = new float[base.length];
+        
+        FloatBuffer out = (FloatBuffer) outBuf.getData();
+        out.clear();
+        
+        for (int t = 0, tIt = 0; t < numTrees; t++, tIt += TRANSFORM_SIZE) {
+            float m00 = transforms[tIt], m01 = transforms[tIt + 1], m02 = transforms[tIt + 2];
+            float m10 = transforms[tIt + 3], m11 = transforms[tIt + 4], m12 = transforms[tIt + 5];
+            float m20 = transforms[tIt + 6], m21 = transforms[tIt + 7], m22 = transforms[tIt + 8];
+            float tx = 0, ty = 0, tz = 0;
+            if (positions) {
+                //Scale the matrix instead of the vectors.
+                float scale = transforms[tIt + 9];
+                m00 *= scale; m01 *= scale; m02 *= scale;
+                m10 *= scale; m11 *= scale; m12 *= scale;
+                m20 *= scale; m21 *= scale; m22 *= scale;
+                tx = transforms[tIt + 10];
+                ty = transforms[tIt + 11];
+                tz = transforms[tIt + 12];
+            }
+            for (int i = 0; i < base.length; i += comps) {
+                float x = base[i];
+                float y = base[i + 1];
+                float z = base[i + 2];
+                temp[i] = m00*x + m01*y + m02*z + tx;
+                temp[i + 1] = m10*x + m11*y + m12*z + ty;
+                temp[i + 2] = m20*x + m21*y + m22*z + tz;
+                if (comps == 4) {
+                    temp[i + 3] = base[i + 3];
                 }
-            }//outerIf
-            
-        }//for-loop
-    }//generateBuffers
+            }
+            out.put(temp);
+        }
+        out.clear();
+    }
+    
+    /**
+     * Writes the indices of all trees to the batch index buffer. The base 
+     * indices are offset by the first vertex of each tree.
+     * 
+     * @param baseIndices The indices of the base mesh.
+     * @param outBuf The batch index buffer.
+     * @param vertCount The number of vertices of the base mesh.
+     * @param numTrees The number of trees.
+     */
+    protected void writeIndices(int[] baseIndices, VertexBuffer outBuf, int vertCount, int numTrees){
+        int numIndices = baseIndices.length;
+        Buffer data = outBuf.getData();
+        data.clear();
+        if (data instanceof ShortBuffer) {
+            ShortBuffer out = (ShortBuffer) data;
+            short[] temp = new short[numIndices];
+            for (int t = 0; t < numTrees; t++) {
+                int offset = t*vertCount;
+                for (int i = 0; i < numIndices; i++) {
+                    temp[i] = (short) (baseIndices[i] + offset);
+                }
+                out.put(temp);
+            }
+        } else {
+            IntBuffer out = (IntBuffer) data;
+            int[] temp = new int[numIndices];
+            for (int t = 0; t < numTrees; t++) {
+                int offset = t*vertCount;
+                for (int i = 0; i < numIndices; i++) {
+                    temp[i] = baseIndices[i] + offset;
+                }
+                out.put(temp);
+            }
+        }
+        data.clear();
+    }
+    
+    /**
+     * Gets the indices of a base mesh as an int array. The array is only 
+     * extracted once per mesh (or when the mesh gets a new index buffer), 
+     * and must not be modified.
+     * 
+     * @param mesh The base mesh.
+     * @return The indices.
+     */
+    protected int[] getBaseIndices(Mesh mesh){
+        VertexBuffer ib = mesh.getBuffer(VertexBuffer.Type.Index);
+        Buffer source = (ib == null) ? null : ib.getData();
+        synchronized (indexCache) {
+            BaseIndices cached = indexCache.get(mesh);
+            if (cached != null && cached.source == source) {
+                return cached.indices;
+            }
+        }
+        IndexBuffer inIdx = mesh.getIndicesAsList();
+        int[] indices = new int[inIdx.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = inIdx.get(i);
+        }
+        synchronized (indexCache) {
+            indexCache.put(mesh, new BaseIndices(source, indices));
+        }
+        return indices;
+    }
+    
+    //Extracted indices, and the buffer they were extracted from.
+    protected static class BaseIndices {
+        
+        protected final Buffer source;
+        protected final int[] indices;
+        
+        protected BaseIndices(Buffer source, int[] indices){
+            this.source = source;
+            this.indices = indices;
+        }
+    }//BaseIndices
+    
+    public boolean isSplitBatches() {
+        return splitBatches;
+    }
+
+    /**
+     * Sets whether or not batches with too many vertices for 16 bit indices
+     * should be split into several geometries, each with less then 65536 
+     * vertices. The default value is false.
+     * 
+     * @param splitBatches true to split large batches.
+     */
+    public void setSplitBatches(boolean splitBatches) {
+        this.splitBatches = splitBatches;
+    }
     
 }//TreeGeometryGenerator
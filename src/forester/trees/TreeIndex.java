@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees;
+
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import forester.paging.grid.Grid2D;
+import forester.trees.datagrids.TreeDataBlock;
+import forester.trees.datagrids.TreeDataList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A spatial index over the trees of a page (a uniform grid). The trees are
+ * copied into arrays sorted by grid cell, in world coordinates. The index 
+ * is immutable once built, so it can be queried from any thread.
+ * <br/><br/>
+ * For ray queries, trees are treated as vertical cylinders (see 
+ * TreeLayer.setQueryBounds).
+ * 
+ * @author Andreas
+ */
+public class TreeIndex {
+    
+    //The average number of trees per cell.
+    protected static final int TREES_PER_CELL = 8;
+    protected static final int MAX_CELLS_PER_SIDE = 128;
+    
+    protected static final Comparator<TreeHit> DISTANCE_ORDER = new Comparator<TreeHit>() {
+        @Override
+        public int compare(TreeHit a, TreeHit b) {
+            return Float.compare(a.distance, b.distance);
+        }
+    };
+    
+    protected final int pageX, pageZ;
+    protected final float originX, originZ;
+    protected final float cellSize;
+    protected final int cellsPerSide;
+    //The trees of cell i are in the range cellStart[i] -> cellStart[i + 1].
+    protected final int[] cellStart;
+    
+    protected final float[] xs, ys, zs, scales, rots;
+    protected final short[] layerIndices;
+    protected final short[] blocks;
+    protected final int[] indices;
+    
+    protected final TreeLayer[] layers;
+    //The query cylinder of each layer (copied, so the index never changes).
+    protected final float[] layerRadius, layerBottom, layerTop;
+    //The largest (scaled) query radius of any tree.
+    protected final float maxRadius;
+    
+    /**
+     * Builds the index of a page.
+     * 
+     * @param pageX The page x-index.
+     * @param pageZ The page z-index.
+     * @param pageSize The page size.
+     * @param resolution The page resolution.
+     * @param data The tree data of the page.
+     */
+    public TreeIndex(int pageX, int pageZ, int pageSize, int resolution, TreeDataBlock data) {
+        this.pageX = pageX;
+        this.pageZ = pageZ;
+        this.originX = (pageX - 0.5f)*pageSize;
+        this.originZ = (pageZ - 0.5f)*pageSize;
+        float blockSize = pageSize/(float) resolution;
+        
+        layers = data.keySet().toArray(new TreeLayer[data.size()]);
+        layerRadius = new float[layers.length];
+        layerBottom = new float[layers.length];
+        layerTop = new float[layers.length];
+        for (int l = 0; l < layers.length; l++) {
+            layerRadius[l] = layers[l].getQueryRadius();
+            layerBottom[l] = layers[l].getQueryBottom();
+            layerTop[l] = layers[l].getQueryTop();
+        }
+        int n = 0;
+        for (TreeLayer layer : layers) {
+            for (TreeDataList list : data.get(layer)) {
+                n += list.size();
+            }
+        }
+        int side = (int) Math.ceil(Math.sqrt(n/(double) TREES_PER_CELL));
+        cellsPerSide = Math.max(1, Math.min(side, MAX_CELLS_PER_SIDE));
+        cellSize = pageSize/(float) cellsPerSide;
+        int numCells = cellsPerSide*cellsPerSide;
+        
+        //Find the cell of each tree, and count the trees of each cell.
+        int[] cells = new int[n];
+        cellStart = new int[numCells + 1];
+        int t = 0;
+        for (TreeLayer layer : layers) {
+            Grid2D<TreeDataList> grid = data.get(layer);
+            for (int b = 0; b < grid.size(); b++) {
+                TreeDataList list = grid.get(b);
+                float bx = originX + (b % resolution + 0.5f)*blockSize;
+                float bz = originZ + (b / resolution + 0.5f)*blockSize;
+                for (int i = 0; i < list.size(); i++, t++) {
+                    cells[t] = getCell(bx + list.getTreeX(i), bz + list.getTreeZ(i));
+                    cellStart[cells[t] + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        
+        //Copy the trees, sorted by cell.
+        xs = new float[n];
+        ys = new float[n];
+        zs = new float[n];
+        scales = new float[n];
+        rots = new float[n];
+        layerIndices = new short[n];
+        blocks = new short[n];
+        indices = new int[n];
+        int[] next = new int[numCells];
+        System.arraycopy(cellStart, 0, next, 0, numCells);
+        float radius = 0;
+        t = 0;
+        for (int l = 0; l < layers.length; l++) {
+            Grid2D<TreeDataList> grid = data.get(layers[l]);
+            for (int b = 0; b < grid.size(); b++) {
+                TreeDataList list = grid.get(b);
+                float bx = originX + (b % resolution + 0.5f)*blockSize;
+                float bz = originZ + (b / resolution + 0.5f)*blockSize;
+                for (int i = 0; i < list.size(); i++, t++) {
+                    int j = next[cells[t]]++;
+                    xs[j] = bx + list.getTreeX(i);
+                    ys[j] = list.getTreeY(i);
+                    zs[j] = bz + list.getTreeZ(i);
+                    scales[j] = list.getScale(i);
+                    rots[j] = list.getRot(i);
+                    layerIndices[j] = (short) l;
+                    blocks[j] = (short) b;
+                    indices[j] = i;
+                    radius = Math.max(radius, layerRadius[l]*scales[j]);
+                }
+            }
+        }
+        maxRadius = radius;
+    }
+    
+    protected int getCell(float x, float z) {
+        return clamp((int) Math.floor((x - originX)/cellSize)) 
+                + cellsPerSide*clamp((int) Math.floor((z - originZ)/cellSize));
+    }
+    
+    protected int clamp(int i) {
+        return (i < 0) ? 0 : (i >= cellsPerSide) ? cellsPerSide - 1 : i;
+    }
+    
+    protected TreeHit createHit(int i, float distance) {
+        TreeHit hit = new TreeHit();
+        hit.x = xs[i];
+        hit.y = ys[i];
+        hit.z = zs[i];
+        hit.scale = scales[i];
+        hit.rot = rots[i];
+        hit.layer = layers[layerIndices[i]];
+        hit.distance = distance;
+        hit.pageX = pageX;
+        hit.pageZ = pageZ;
+        hit.block = blocks[i];
+        hit.index = indices[i];
+        return hit;
+    }
+    
+    /**
+     * Finds all trees within a (horizontal) distance of a point. 
+     * 
+     * @param x The x-coordinate of the point.
+     * @param z The z-coordinate of the point.
+     * @param radius The radius.
+     * @param store The list where the trees are added.
+     * @return The number of trees found.
+     */
+    public int findInRadius(float x, float z, float radius, List<TreeHit> store) {
+        int x0 = clamp((int) Math.floor((x - radius - originX)/cellSize));
+        int x1 = clamp((int) Math.floor((x + radius - originX)/cellSize));
+        int z0 = clamp((int) Math.floor((z - radius - originZ)/cellSize));
+        int z1 = clamp((int) Math.floor((z + radius - originZ)/cellSize));
+        float r2 = radius*radius;
+        int found = 0;
+        for (int cz = z0; cz <= z1; cz++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                int c = cx + cz*cellsPerSide;
+                for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                    float dx = xs[i] - x;
+                    float dz = zs[i] - z;
+                    float d2 = dx*dx + dz*dz;
+                    if (d2 <= r2) {
+                        store.add(createHit(i, (float) Math.sqrt(d2)));
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Finds the trees closest to a point (horizontal distance).
+     * 
+     * @param x The x-coordinate of the point.
+     * @param z The z-coordinate of the point.
+     * @param k The maximum number of trees to find.
+     * @param maxDistance The maximum distance.
+     * @return The trees, sorted by distance.
+     */
+    public List<TreeHit> findNearest(float x, float z, int k, float maxDistance) {
+        ArrayList<TreeHit> result = new ArrayList<TreeHit>();
+        if (k < 1 || xs.length == 0) {
+            return result;
+        }
+        //Max-heap holding the k closest trees found so far.
+        PriorityQueue<TreeHit> heap = new PriorityQueue<TreeHit>(k, Collections.reverseOrder(DISTANCE_ORDER));
+        float max2 = maxDistance*maxDistance;
+        int qx = (int) Math.floor((x - originX)/cellSize);
+        int qz = (int) Math.floor((z - originZ)/cellSize);
+        //The number of rings needed to cover the grid.
+        int maxRing = Math.max(Math.max(qx, cellsPerSide - 1 - qx), Math.max(qz, cellsPerSide - 1 - qz));
+        for (int r = 0; r <= maxRing; r++) {
+            //Trees in ring r are at least (r - 1)*cellSize away.
+            float ringDist = (r - 1)*cellSize;
+            if (ringDist > maxDistance || (heap.size() == k && ringDist > heap.peek().distance)) {
+                break;
+            }
+            for (int cz = qz - r; cz <= qz + r; cz++) {
+                if (cz < 0 || cz >= cellsPerSide) {
+                    continue;
+                }
+                //Only the border of the ring.
+                int step = (cz == qz - r || cz == qz + r) ? 1 : 2*r;
+                for (int cx = qx - r; cx <= qx + r; cx += Math.max(step, 1)) {
+                    if (cx < 0 || cx >= cellsPerSide) {
+                        continue;
+                    }
+                    int c = cx + cz*cellsPerSide;
+                    for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                        float dx = xs[i] - x;
+                        float dz = zs[i] - z;
+                        float d2 = dx*dx + dz*dz;
+                        if (d2 > max2) {
+                            continue;
+                        }
+                        float d = (float) Math.sqrt(d2);
+                        if (heap.size() < k) {
+                            heap.add(createHit(i, d));
+                        } else if (d < heap.peek().distance) {
+                            heap.poll();
+                            heap.add(createHit(i, d));
+                        }
+                    }
+                }
+            }
+        }
+        result.addAll(heap);
+        Collections.sort(result, DISTANCE_ORDER);
+        return result;
+    }
+    
+    /**
+     * Finds the first tree hit by a ray. 
+     * 
+     * @param ray The ray (the direction should be normalized).
+     * @param maxDistance The maximum distance along the ray.
+     * @return The tree, or null if no tree was hit.
+     */
+    public TreeHit raycast(Ray ray, float maxDistance) {
+        if (xs.length == 0) {
+            return null;
+        }
+        Vector3f o = ray.getOrigin();
+        Vector3f d = ray.getDirection();
+        //Trees may reach this many cells outside of their own cell. The 
+        //grid is extended by that many cells on each side, and the ray is
+        //clipped to the extended grid.
+        int m = (int) Math.ceil(maxRadius/cellSize);
+        int side = cellsPerSide + 2*m;
+        float minX = originX - m*cellSize;
+        float minZ = originZ - m*cellSize;
+        float[] range = {0, maxDistance};
+        if (!clip(o.x, d.x, minX, minX + side*cellSize, range)
+                || !clip(o.z, d.z, minZ, minZ + side*cellSize, range)) {
+            return null;
+        }
+        
+        //Walk the cells along the ray (in the extended grid).
+        float t = range[0];
+        int cx = Math.max(0, Math.min(side - 1, (int) Math.floor((o.x + d.x*t - minX)/cellSize)));
+        int cz = Math.max(0, Math.min(side - 1, (int) Math.floor((o.z + d.z*t - minZ)/cellSize)));
+        int stepX = (d.x > 0) ? 1 : -1;
+        int stepZ = (d.z > 0) ? 1 : -1;
+        float tDeltaX = (d.x != 0) ? cellSize/Math.abs(d.x) : Float.POSITIVE_INFINITY;
+        float tDeltaZ = (d.z != 0) ? cellSize/Math.abs(d.z) : Float.POSITIVE_INFINITY;
+        float tMaxX = (d.x != 0) ? (minX + (cx + (stepX > 0 ? 1 : 0))*cellSize - o.x)/d.x : Float.POSITIVE_INFINITY;
+        float tMaxZ = (d.z != 0) ? (minZ + (cz + (stepZ > 0 ? 1 : 0))*cellSize - o.z)/d.z : Float.POSITIVE_INFINITY;
+        
+        int best = -1;
+        float bestT = range[1];
+        while (cx >= 0 && cx < side && cz >= 0 && cz < side) {
+            float tExit = Math.min(Math.min(tMaxX, tMaxZ), range[1]);
+            //Test all trees that can reach into this cell.
+            int x0 = Math.max(cx - 2*m, 0), x1 = Math.min(cx, cellsPerSide - 1);
+            int z0 = Math.max(cz - 2*m, 0), z1 = Math.min(cz, cellsPerSide - 1);
+            for (int gz = z0; gz <= z1; gz++) {
+                for (int gx = x0; gx <= x1; gx++) {
+                    int c = gx + gz*cellsPerSide;
+                    for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                        float hitT = intersect(i, o, d, bestT);
+                        if (hitT >= 0 && hitT < bestT) {
+                            bestT = hitT;
+                            best = i;
+                        }
+                    }
+                }
+            }
+            //A hit before the ray leaves the cell can't be beaten by trees
+            //in later cells.
+            if (best >= 0 && bestT <= tExit) {
+                break;
+            }
+            if (tExit >= range[1]) {
+                break;
+            }
+            if (tMaxX < tMaxZ) {
+                cx += stepX;
+                tMaxX += tDeltaX;
+            } else {
+                cz += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+        }
+        return (best < 0) ? null : createHit(best, bestT);
+    }
+    
+    //Clips the range [range[0], range[1]] of a ray to a slab. 
+    protected static boolean clip(float o, float d, float min, float max, float[] range) {
+        if (d == 0) {
+            return o >= min && o <= max;
+        }
+        float t0 = (min - o)/d;
+        float t1 = (max - o)/d;
+        if (t0 > t1) {
+            float tmp = t0;
+            t0 = t1;
+            t1 = tmp;
+        }
+        range[0] = Math.max(range[0], t0);
+        range[1] = Math.min(range[1], t1);
+        return range[0] <= range[1];
+    }
+    
+    /*
+     * Intersects a ray with the cylinder of a tree. Returns the distance
+     * along the ray, or -1 if there is no hit within maxT.
+     */
+    protected float intersect(int i, Vector3f o, Vector3f d, float maxT) {
+        int l = layerIndices[i];
+        float s = scales[i];
+        float radius = layerRadius[l]*s;
+        float ox = o.x - xs[i];
+        float oz = o.z - zs[i];
+        float tIn, tOut;
+        //The cylinder side.
+        float a = d.x*d.x + d.z*d.z;
+        float c = ox*ox + oz*oz - radius*radius;
+        if (a == 0) {
+            if (c > 0) {
+                return -1;
+            }
+            tIn = Float.NEGATIVE_INFINITY;
+            tOut = Float.POSITIVE_INFINITY;
+        } else {
+            float b = ox*d.x + oz*d.z;
+            float disc = b*b - a*c;
+            if (disc < 0) {
+                return -1;
+            }
+            float sq = (float) Math.sqrt(disc);
+            tIn = (-b - sq)/a;
+            tOut = (-b + sq)/a;
+        }
+        //The cylinder caps.
+        float[] range = {Math.max(tIn, 0), Math.min(tOut, maxT)};
+        if (!clip(o.y, d.y, ys[i] + layerBottom[l]*s, ys[i] + layerTop[l]*s, range)) {
+            return -1;
+        }
+        return range[0];
+    }
+    
+    /**
+     * @return The number of trees in the index.
+     */
+    public int size() {
+        return xs.length;
+    }
+    
+    public int getPageX() {
+        return pageX;
+    }
+    
+    public int getPageZ() {
+        return pageZ;
+    }
+    
+}//TreeIndex
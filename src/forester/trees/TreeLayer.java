@@ -28,20 +28,35 @@
  */
 package forester.trees;
 
+import com.jme3.bounding.BoundingBox;
 import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
 import com.jme3.bullet.collision.shapes.CollisionShape;
 import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
 import com.jme3.bullet.collision.shapes.infos.ChildCollisionShape;
 import com.jme3.bullet.control.RigidBodyControl;
+import com.jme3.export.binary.BinaryExporter;
+import com.jme3.export.binary.BinaryImporter;
+import com.jme3.material.Material;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
+import com.jme3.texture.Image;
+import com.jme3.texture.Image.Format;
 import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.image.ColorSpace;
 import forester.Forester;
 import forester.image.DensityMap.Channel;
+import forester.trees.impostors.ImpostorAtlasCache;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,6 +72,10 @@ public class TreeLayer {
     protected Node model;
     protected boolean usePhysics;
     protected CompoundCollisionShape collisionShape;
+    //Scaled copies of the child collision shapes, by scale bucket.
+    protected final HashMap<Integer, ScaledShapes> scaledShapes = new HashMap<Integer, ScaledShapes>();
+    //Guarded by scaledShapes.
+    protected float collisionScaleStep = 0.05f;
     protected float minimumScale = 0.8f;
     protected float maximumScale = 1.2f;
     
@@ -64,12 +83,23 @@ public class TreeLayer {
     
     static protected String impostorTextureDir = "./";
     protected Texture impostorTexture;
+    //Material used for the impostor detail level (null means no impostors).
+    protected Material impostorMaterial;
     
     //Related to density maps.
     protected Channel dmChannel = Channel.Red;
     protected int dmTexNum = 0;
     
     protected float densityMultiplier;
+    
+    //Used when deriving random seeds.
+    protected int id;
+    
+    //Whether or not to use hardware instancing instead of static batches.
+    protected boolean instanced = false;
+    
+    //Vertical cylinder around the (unscaled) model, used for tree queries.
+    protected float queryRadius, queryBottom, queryTop;
 
     public TreeLayer(Spatial model, boolean usePhysics) {
         this.model = (Node) model.clone(true);
@@ -98,6 +128,7 @@ public class TreeLayer {
         }
         
         model.updateGeometricState();
+        calculateQueryBounds();
 
         if (usePhysics) {
             collisionShape = new CompoundCollisionShape();
@@ -140,6 +171,31 @@ public class TreeLayer {
         
     }
 
+    //Fit a vertical cylinder (around the model origin) to the model bound.
+    protected final void calculateQueryBounds() {
+        BoundingVolume bound = model.getWorldBound();
+        if (bound == null) {
+            return;
+        }
+        Vector3f center = bound.getCenter();
+        float xExt, yExt, zExt;
+        if (bound instanceof BoundingBox) {
+            BoundingBox box = (BoundingBox) bound;
+            xExt = box.getXExtent();
+            yExt = box.getYExtent();
+            zExt = box.getZExtent();
+        } else {
+            xExt = yExt = zExt = ((BoundingSphere) bound).getRadius();
+        }
+        float dx = Math.abs(center.x) + xExt;
+        float dz = Math.abs(center.z) + zExt;
+        queryRadius = (bound instanceof BoundingBox) 
+                ? (float) Math.sqrt(dx*dx + dz*dz)
+                : (float) Math.sqrt(center.x*center.x + center.z*center.z) + xExt;
+        queryBottom = center.y - yExt;
+        queryTop = center.y + yExt;
+    }
+    
     public Node getModel() {
         return model;
     }
@@ -170,6 +226,123 @@ public class TreeLayer {
         return usePhysics;
     }
 
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Sets the id of the layer. The id is used (together with the world seed
+     * and page/block indices) to seed tree placement. It is set by the 
+     * treeloader when the layer is added.
+     * 
+     * @param id The id.
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public float getQueryRadius() {
+        return queryRadius;
+    }
+
+    public float getQueryBottom() {
+        return queryBottom;
+    }
+
+    public float getQueryTop() {
+        return queryTop;
+    }
+    
+    /**
+     * Sets the vertical cylinder used for ray queries (TreeLoader.raycastTrees),
+     * in model space. The default cylinder contains the model bound. Use
+     * a smaller radius to only pick the trunk.
+     * 
+     * @param radius The radius (around the model origin).
+     * @param bottom The bottom of the cylinder.
+     * @param top The top of the cylinder.
+     */
+    public void setQueryBounds(float radius, float bottom, float top) {
+        this.queryRadius = radius;
+        this.queryBottom = bottom;
+        this.queryTop = top;
+    }
+
+    public boolean isInstanced() {
+        return instanced;
+    }
+
+    /**
+     * Sets whether or not the trees of this layer should be rendered using
+     * hardware instancing. Instanced blocks share the vertex data of the 
+     * model, and only store a transform per tree. Static batches copy the
+     * model once per tree, but have no per-instance cost when rendering.
+     * <br/><br/>
+     * The materials of the model must support instancing, and the renderer
+     * must support mesh instancing.
+     * 
+     * @param instanced true to use instancing.
+     */
+    public void setInstanced(boolean instanced) {
+        if (instanced) {
+            for (Spatial spat : model.getChildren()) {
+                Material mat = ((Geometry) spat).getMaterial();
+                if (mat.getMaterialDef().getMaterialParam("UseInstancing") == null) {
+                    throw new RuntimeException("The material " + mat.getMaterialDef().getName() + " does not support instancing.");
+                }
+            }
+        }
+        this.instanced = instanced;
+    }
+
+    public Material getImpostorMaterial() {
+        return impostorMaterial;
+    }
+
+    /**
+     * Sets the material used for the impostors of this layer. The material
+     * should use an impostor atlas of the model, and support fading. Layers
+     * without an impostor material are not rendered in the impostor detail
+     * levels. Layers that use the same material instance are merged in 
+     * page impostors.
+     * 
+     * @param impostorMaterial The impostor material.
+     */
+    public void setImpostorMaterial(Material impostorMaterial) {
+        this.impostorMaterial = impostorMaterial;
+    }
+    
+    public Texture getImpostorTexture() {
+        return impostorTexture;
+    }
+    
+    /**
+     * Gets the impostor atlas of the model from a cache (rendering it if 
+     * it's not cached), and sets it as a texture on the impostor material.
+     * 
+     * @param cache The atlas cache.
+     * @param distance The distance at which the impostors are faded in.
+     * @param textureName The name of the atlas texture parameter of the
+     * impostor material.
+     * @return The atlas texture.
+     */
+    public Texture loadImpostorTexture(ImpostorAtlasCache cache, float distance, String textureName) {
+        if (impostorMaterial == null) {
+            throw new RuntimeException("The layer " + name + " has no impostor material.");
+        }
+        //The producer replaces the materials of the model, so it gets a copy.
+        ByteBuffer atlas = cache.getAtlas(model.clone(true), distance);
+        int width = cache.getAtlasWidth();
+        int height = cache.getAtlasHeight();
+        if (atlas.capacity() != 4 * width * height) {
+            throw new RuntimeException("The impostor atlas of layer " + name + " is " + atlas.capacity() 
+                    + " bytes, expected " + width + "x" + height + " RGBA8 texels.");
+        }
+        impostorTexture = new Texture2D(new Image(Format.RGBA8, width, height, atlas, ColorSpace.Linear));
+        impostorMaterial.setTexture(textureName, impostorTexture);
+        return impostorTexture;
+    }
+
     public String getName() {
         return name;
     }
@@ -190,6 +363,97 @@ public class TreeLayer {
         return collisionShape;
     }
     
+    /**
+     * Gets the child collision shapes of the layer, scaled to a tree scale.
+     * Scales are rounded to the collision scale step, and the shapes of 
+     * each step are created once and shared by all trees (and blocks) of 
+     * that scale. The shapes must not be changed. This method can be 
+     * called from any thread.
+     * 
+     * @param scale The tree scale.
+     * @return The scaled shapes (one per child of the collision shape), 
+     * together with the rounded scale they were made for.
+     */
+    public ScaledShapes getScaledCollisionShapes(float scale) {
+        synchronized (scaledShapes) {
+            int bucket = Math.max(Math.round(scale/collisionScaleStep), 1);
+            ScaledShapes shapes = scaledShapes.get(bucket);
+            if (shapes == null) {
+                float shapeScale = bucket*collisionScaleStep;
+                shapes = new ScaledShapes(shapeScale, createScaledShapes(shapeScale));
+                scaledShapes.put(bucket, shapes);
+            }
+            return shapes;
+        }
+    }
+    
+    /**
+     * The child collision shapes of a layer scaled to a rounded tree scale. 
+     * Child offsets must be scaled by the same scale.
+     */
+    public static class ScaledShapes {
+        
+        protected final float scale;
+        protected final CollisionShape[] shapes;
+        
+        protected ScaledShapes(float scale, CollisionShape[] shapes){
+            this.scale = scale;
+            this.shapes = shapes;
+        }
+
+        public float getScale() {
+            return scale;
+        }
+
+        public CollisionShape[] getShapes() {
+            return shapes;
+        }
+    }//ScaledShapes
+    
+    protected CollisionShape[] createScaledShapes(float scale) {
+        List<ChildCollisionShape> children = collisionShape.getChildren();
+        CollisionShape[] shapes = new CollisionShape[children.size()];
+        for (int i = 0; i < shapes.length; i++) {
+            CollisionShape shape = copyShape(children.get(i).shape);
+            shape.setScale(shape.getScale().mult(scale));
+            shapes[i] = shape;
+        }
+        return shapes;
+    }
+    
+    //Copies a shape (through serialization, since shapes can't be cloned).
+    protected static CollisionShape copyShape(CollisionShape shape) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryExporter.getInstance().save(shape, out);
+            return (CollisionShape) BinaryImporter.getInstance().load(out.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not copy collision shape: " + shape, e);
+        }
+    }
+
+    public float getCollisionScaleStep() {
+        synchronized (scaledShapes) {
+            return collisionScaleStep;
+        }
+    }
+
+    /**
+     * Sets the precision of tree scales used for collision shapes. Smaller 
+     * steps are more exact, but create more shapes.
+     * 
+     * @param collisionScaleStep The step (0.05 by default).
+     */
+    public void setCollisionScaleStep(float collisionScaleStep) {
+        if (collisionScaleStep <= 0) {
+            throw new RuntimeException("The collision scale step must be larger then 0.");
+        }
+        synchronized (scaledShapes) {
+            this.collisionScaleStep = collisionScaleStep;
+            scaledShapes.clear();
+        }
+    }
+    
     public float getDensityMultiplier() {
         return densityMultiplier;
     }
@@ -28,14 +28,12 @@
  */
 package forester.trees;
 
+import forester.trees.impostors.ImpostorAtlasCache;
 import forester.trees.impostors.TreeImpostorGenerator;
-import forester.trees.datagrids.TreeData;
 import forester.trees.datagrids.TreeDataList;
 import forester.trees.datagrids.TreeDataBlock;
-import com.jme3.bullet.collision.shapes.CollisionShape;
-import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
-import com.jme3.bullet.collision.shapes.infos.ChildCollisionShape;
-import com.jme3.math.Matrix3f;
+import com.jme3.material.Material;
+import com.jme3.math.Ray;
 import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
@@ -47,11 +45,20 @@ import com.jme3.terrain.geomipmap.TerrainQuad;
 import forester.trees.datagrids.DataGrid;
 import forester.trees.datagrids.DataProvider;
 import forester.trees.datagrids.MapGrid;
+import forester.trees.datagrids.MappedMapGrid;
+import forester.trees.datagrids.StreamingDataGrid;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import forester.paging.GeometryPageLoader;
+import forester.paging.grid.Grid2D;
 import forester.paging.interfaces.Page;
 
 
@@ -70,6 +77,14 @@ public class TreeLoader extends GeometryPageLoader {
     protected float terrainHeight;
     protected Vector2f hStore = new Vector2f();
     protected int nIt = Short.MAX_VALUE;
+    protected float fadingRange;
+    //The detail level of merged page impostors (-1 if not used).
+    protected int pageImpostorLevel = -1;
+    //Pages with a tree index, by page hash. Used for tree queries.
+    protected ConcurrentHashMap<Integer, TreePage> indexedPages = new ConcurrentHashMap<Integer, TreePage>();
+    protected boolean useTreeIndex = true;
+    protected TreePhysicsManager physicsManager;
+    protected static final float DEFAULT_PHYSICS_RADIUS = 100f;
 
     public TreeLoader(  int tileSize,
                         int resolution,
@@ -78,15 +93,50 @@ public class TreeLoader extends GeometryPageLoader {
                         Terrain terrain,
                         Camera camera
                      ) 
+    {
+        this(tileSize, resolution, viewingRange, 0, 0, rootNode, terrain, camera);
+    }
+    
+    /**
+     * Creates a treeloader with an impostor detail level. Trees are rendered
+     * using their full geometry up to the viewing range, and then as 
+     * impostors up to the impostor range. The two detail levels are 
+     * cross-faded over the fading range. Only layers with an impostor 
+     * material are rendered as impostors.
+     * 
+     * @param tileSize The page size.
+     * @param resolution The page resolution.
+     * @param viewingRange The far distance of the full detail level.
+     * @param impostorRange The far distance of the impostor detail level
+     * (0 for no impostors).
+     * @param fadingRange The range over which detail levels are faded.
+     * @param rootNode The root node.
+     * @param terrain The terrain.
+     * @param camera The camera.
+     */
+    public TreeLoader(  int tileSize,
+                        int resolution,
+                        float viewingRange,
+                        float impostorRange,
+                        float fadingRange,
+                        Node rootNode,
+                        Terrain terrain,
+                        Camera camera
+                     ) 
     {
         super(tileSize, resolution, viewingRange, rootNode, camera, terrain);
         this.terrain = terrain;
         terrainHeight = ((TerrainQuad)terrain).getLocalTranslation().getY();
         
         layers = new ArrayList<TreeLayer>();
-        //TODO update here when impostors are added.
-        pagingManager.addDetailLevel(viewingRange,0);
+        this.fadingRange = fadingRange;
+        pagingManager.addDetailLevel(viewingRange, fadingRange);
+        if (impostorRange > 0) {
+            pagingManager.addDetailLevel(impostorRange, fadingRange);
+        }
         treeGen = new TreeGeometryGenerator();
+        treeImpGen = new TreeImpostorGenerator();
+        physicsManager = new TreePhysicsManager(this, pagingManager, Math.min(viewingRange, DEFAULT_PHYSICS_RADIUS));
         init();
     }
 
@@ -94,12 +144,56 @@ public class TreeLoader extends GeometryPageLoader {
         pagingManager.setPageLoader(this);
     }
 
+    /**
+     * Adds a detail level where the impostors of each page are merged into
+     * one geometry per impostor material, instead of one per block and 
+     * layer. Layers that share an impostor material (and atlas) are merged
+     * together. The level is placed after the block impostor level, and
+     * cross-faded with it.
+     * 
+     * @param farDist The far distance of the page impostor level.
+     */
+    public void addPageImpostorLevel(float farDist) {
+        int numLevels = pagingManager.getDetailLevels().size();
+        if (numLevels != 2) {
+            throw new RuntimeException("Page impostors require a (single) block impostor level.");
+        }
+        pagingManager.addDetailLevel(farDist, fadingRange);
+        pageImpostorLevel = numLevels;
+    }
+    
+    public int getPageImpostorLevel() {
+        return pageImpostorLevel;
+    }
+    
+    /**
+     * Loads the impostor atlases of all layers that have an impostor 
+     * material (see TreeLayer.loadImpostorTexture). The atlases are 
+     * rendered for the distance where the impostors are faded in.
+     * 
+     * @param cache The atlas cache.
+     * @param textureName The name of the atlas texture parameter of the
+     * impostor materials.
+     */
+    public void loadImpostorTextures(ImpostorAtlasCache cache, String textureName) {
+        if (pagingManager.getDetailLevels().size() < 2) {
+            throw new RuntimeException("The treeloader has no impostor detail level.");
+        }
+        float distance = pagingManager.getDetailLevels().get(1).getNearDist();
+        for (TreeLayer layer : layers) {
+            if (layer.getImpostorMaterial() != null) {
+                layer.loadImpostorTexture(cache, distance, textureName);
+            }
+        }
+    }
+    
     public TreeLayer addTreeLayer(Spatial model) {
         return addTreeLayer(model, false);
     }
 
     public TreeLayer addTreeLayer(Spatial model, boolean usePhysics) {
         TreeLayer layer = new TreeLayer(model, usePhysics);
+        layer.setId(layers.size());
         layer.setName("TreeLayer" + nIt++);
         layers.add(layer);
         return layer;
@@ -134,6 +228,36 @@ public class TreeLoader extends GeometryPageLoader {
         return mapGrid;
     }
 
+    /**
+     * Creates a mapgrid that reads memory-mapped density map files from 
+     * a directory.
+     * 
+     * @param directory The directory.
+     * @param numMaps The number of maps per page.
+     * @return The mapgrid.
+     */
+    public MappedMapGrid createMappedMapGrid(File directory, int numMaps) {
+        MappedMapGrid mapGrid = new MappedMapGrid(directory, pagingManager.getPageSize(), numMaps, this);
+        this.dataProvider = mapGrid;
+        return mapGrid;
+    }
+    
+    /**
+     * Creates a data provider that streams tree data from a file (see 
+     * StreamingDataGrid.Writer). Add the tree layers before the first 
+     * page is loaded.
+     * 
+     * @param file The tree data file.
+     * @param capacity The number of pages to keep in memory.
+     * @return The data provider.
+     */
+    public StreamingDataGrid createStreamingDataGrid(File file, int capacity) {
+        StreamingDataGrid grid = new StreamingDataGrid(file, pagingManager.getPageSize(), 
+                pagingManager.getResolution(), layers, capacity);
+        this.dataProvider = grid;
+        return grid;
+    }
+
     public void setDataProvider(DataProvider dataProvider) {
         this.dataProvider = dataProvider;
     }
@@ -142,6 +266,10 @@ public class TreeLoader extends GeometryPageLoader {
         return layers;
     }
 
+    public TreeGeometryGenerator getTreeGenerator() {
+        return treeGen;
+    }
+    
     public Terrain getTerrain() {
         return terrain;
     }
@@ -151,6 +279,163 @@ public class TreeLoader extends GeometryPageLoader {
         return terrain.getHeight(hStore) + terrainHeight;
     }
 
+    @Override
+    public void update(float tpf) {
+        super.update(tpf);
+        if (usesPhysics()) {
+            physicsManager.update();
+        }
+    }
+    
+    protected boolean usesPhysics() {
+        for (TreeLayer layer : layers) {
+            if (layer.isUsePhysics()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the physics manager, which is used to set the physics radius 
+     * and the physics actors.
+     * 
+     * @return The physics manager.
+     */
+    public TreePhysicsManager getPhysicsManager() {
+        return physicsManager;
+    }
+    
+    public boolean isUseTreeIndex() {
+        return useTreeIndex;
+    }
+
+    /**
+     * Sets whether or not to build a spatial index for each loaded page,
+     * which is needed by the tree query methods. Enabled by default. The
+     * index uses roughly 30 bytes per tree.
+     * 
+     * @param useTreeIndex true to build indices.
+     */
+    public void setUseTreeIndex(boolean useTreeIndex) {
+        this.useTreeIndex = useTreeIndex;
+    }
+    
+    /**
+     * Gets the tree index of a loaded page.
+     * 
+     * @param x The page x-index.
+     * @param z The page z-index.
+     * @return The index, or null if the page is not loaded.
+     */
+    public TreeIndex getTreeIndex(int x, int z) {
+        TreePage page = indexedPages.get(Grid2D.hash(x, z));
+        return (page == null) ? null : page.getTreeIndex();
+    }
+    
+    protected void removeIndexedPage(TreePage page) {
+        indexedPages.remove(page.hashCode(), page);
+    }
+    
+    /**
+     * Releases the density maps of a page, if the data provider keeps them
+     * per page. This is called when the page is unloaded.
+     * 
+     * @param page The page.
+     */
+    protected void releaseMaps(TreePage page) {
+        if (dataProvider instanceof MappedMapGrid) {
+            ((MappedMapGrid) dataProvider).releaseMaps(page);
+        }
+    }
+    
+    /**
+     * Finds all trees (in loaded pages) within a horizontal distance of 
+     * a point. This method can be called from any thread.
+     * 
+     * @param x The x-coordinate of the point.
+     * @param z The z-coordinate of the point.
+     * @param radius The radius.
+     * @return The trees.
+     */
+    public List<TreeHit> findTrees(float x, float z, float radius) {
+        ArrayList<TreeHit> result = new ArrayList<TreeHit>();
+        int pageSize = pagingManager.getPageSize();
+        //Page indices are rounded to the nearest page center.
+        int x0 = Math.round((x - radius)/pageSize), x1 = Math.round((x + radius)/pageSize);
+        int z0 = Math.round((z - radius)/pageSize), z1 = Math.round((z + radius)/pageSize);
+        for (int pz = z0; pz <= z1; pz++) {
+            for (int px = x0; px <= x1; px++) {
+                TreeIndex index = getTreeIndex(px, pz);
+                if (index != null) {
+                    index.findInRadius(x, z, radius, result);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Finds the trees (in loaded pages) closest to a point, using the 
+     * horizontal distance. This method can be called from any thread.
+     * 
+     * @param x The x-coordinate of the point.
+     * @param z The z-coordinate of the point.
+     * @param k The maximum number of trees.
+     * @param maxDistance The maximum distance.
+     * @return The trees, sorted by distance.
+     */
+    public List<TreeHit> findNearestTrees(float x, float z, int k, float maxDistance) {
+        ArrayList<TreeHit> result = new ArrayList<TreeHit>();
+        for (TreePage page : indexedPages.values()) {
+            TreeIndex index = page.getTreeIndex();
+            if (index == null || getPageDistance(page, x, z) > maxDistance) {
+                continue;
+            }
+            result.addAll(index.findNearest(x, z, k, maxDistance));
+        }
+        Collections.sort(result, new Comparator<TreeHit>() {
+            @Override
+            public int compare(TreeHit a, TreeHit b) {
+                return Float.compare(a.distance, b.distance);
+            }
+        });
+        return (result.size() > k) ? new ArrayList<TreeHit>(result.subList(0, k)) : result;
+    }
+    
+    /**
+     * Finds the first tree (in loaded pages) hit by a ray. Trees are 
+     * treated as vertical cylinders, see TreeLayer.setQueryBounds. This 
+     * method can be called from any thread.
+     * 
+     * @param ray The ray.
+     * @param maxDistance The maximum distance.
+     * @return The tree, or null.
+     */
+    public TreeHit raycastTrees(Ray ray, float maxDistance) {
+        TreeHit closest = null;
+        for (TreePage page : indexedPages.values()) {
+            TreeIndex index = page.getTreeIndex();
+            if (index == null) {
+                continue;
+            }
+            TreeHit hit = index.raycast(ray, (closest == null) ? maxDistance : closest.distance);
+            if (hit != null) {
+                closest = hit;
+            }
+        }
+        return closest;
+    }
+    
+    //The horizontal distance from a point to the page square.
+    protected float getPageDistance(TreePage page, float x, float z) {
+        float half = pagingManager.getPageSize()*0.5f;
+        Vector3f center = page.getCenterPoint();
+        float dx = Math.max(Math.abs(x - center.x) - half, 0);
+        float dz = Math.max(Math.abs(z - center.z) - half, 0);
+        return (float) Math.sqrt(dx*dx + dz*dz);
+    }
+
     private class LoadTask implements Callable<Boolean> {
 
         private TreePage page;
@@ -163,18 +448,35 @@ public class TreeLoader extends GeometryPageLoader {
         public Boolean call() {
             page.createBlocks();
             TreeDataBlock tdb = dataProvider.getData(page);
+            //The page may have been unloaded while the data was read.
+            if (page.isUnloaded()) {
+                releaseMaps(page);
+                return false;
+            }
             if (tdb == null || tdb.isEmpty()) {
                 return false;
             }
 
             page.setBlock(tdb);
+            if (useTreeIndex) {
+                page.setTreeIndex(new TreeIndex(page.getX(), page.getZ(), 
+                        pagingManager.getPageSize(), pagingManager.getResolution(), tdb));
+                indexedPages.put(page.hashCode(), page);
+                //The page may have been unloaded while this task was running.
+                if (page.isUnloaded()) {
+                    page.setTreeIndex(null);
+                    removeIndexedPage(page);
+                    return false;
+                }
+            }
+            boolean hasImpostors = pagingManager.getDetailLevels().size() > 1;
 
             for (int j = 0; j < page.getBlocks().size(); j++) {
                 TreeBlock block = (TreeBlock) page.getBlock(j);
 
-                Node[] nodes = new Node[1];
+                Node[] nodes = new Node[2];
                 Node batchNode = new Node("BatchNode_" + page.toString());
-                CompoundCollisionShape ccs = null;
+                Node impostorNode = new Node("ImpostorNode_" + page.toString());
 
                 for (int i = 0; i < layers.size(); i++) {
                     TreeLayer layer = layers.get(i);
@@ -183,47 +485,97 @@ public class TreeLoader extends GeometryPageLoader {
                         continue;
                     }
                     TreeDataList dataList = grid.get(j);
+                    if (dataList.isEmpty()) {
+                        continue;
+                    }
                     //Prepare a node for geometry batches.
                     Node model = layer.getModel();
                     //Generate batches for each of the models geometries.
                     for (Spatial spat : model.getChildren()) {
                         Geometry baseGeom = (Geometry) spat;
-                        Geometry staticGeometry = treeGen.generateStaticGeometry(baseGeom, dataList, false);
-                        if (staticGeometry != null) {
+                        if (layer.isInstanced()) {
+                            Geometry instGeometry = treeGen.generateInstancedGeometry(baseGeom, dataList, 0, dataList.size());
+                            batchNode.attachChild(instGeometry);
+                            instGeometry.setShadowMode(layer.getShadowMode());
+                            continue;
+                        }
+                        //Large batches may be split in several geometries.
+                        for (Geometry staticGeometry : treeGen.generateStaticGeometries(baseGeom, dataList, false)) {
                             batchNode.attachChild(staticGeometry);
                             staticGeometry.setShadowMode(layer.getShadowMode());
                         }
                     }
-                    if (layer.isUsePhysics()) {
-                        if(ccs == null){
-                            ccs = new CompoundCollisionShape();
-                        }
-                        
-                        CompoundCollisionShape temp = layer.getCollisionShape();
-                        Vector3f tempLoc = new Vector3f();
-                        Vector3f tempScale = new Vector3f();
-                        Matrix3f rot = new Matrix3f();
-                        for(int h = 0; h < dataList.size(); h++){
-                            TreeData data = dataList.get(h);
-                            tempScale.set(data.scale,data.scale,data.scale);
-                            tempLoc.set(data.x,data.y,data.z);
-                            rot.fromAngleNormalAxis(data.rot, Vector3f.UNIT_Y);
-                            //Add all shapes.
-                            for(ChildCollisionShape s : temp.getChildren()){
-                                CollisionShape z = s.shape;
-                                z.setScale(tempScale);
-                                ccs.addChildShape(z, tempLoc, rot);
-                            }
+                    //Impostors are batched in the second detail level.
+                    if (hasImpostors && layer.getImpostorMaterial() != null) {
+                        Geometry impostorGeometry = treeImpGen.buildImpostorGeometry(dataList, model, layer.getImpostorMaterial().clone());
+                        if (impostorGeometry != null) {
+                            impostorNode.attachChild(impostorGeometry);
                         }
                     }
                 } //For each layer
                 //Finalize
                 nodes[0] = batchNode;
+                if (hasImpostors) {
+                    nodes[1] = impostorNode;
+                } else {
+                    nodes = new Node[]{batchNode};
+                }
                 block.setNodes(nodes);
                 block.calculateRealMax(0);
-                block.initPhysics(ccs);
             }//for each block.
+            if (pageImpostorLevel >= 0) {
+                buildPageImpostors(tdb);
+            }
             return true;
         }
+        
+        /**
+         * Merges the impostors of all blocks into one geometry per impostor
+         * material.
+         */
+        private void buildPageImpostors(TreeDataBlock tdb) {
+            //Layers are grouped by impostor material.
+            LinkedHashMap<Material, ArrayList<TreeLayer>> groups = new LinkedHashMap<Material, ArrayList<TreeLayer>>();
+            for (TreeLayer layer : layers) {
+                Material mat = layer.getImpostorMaterial();
+                ArrayList<TreeDataList> grid = tdb.get(layer);
+                if (mat == null || grid == null || grid.isEmpty()) {
+                    continue;
+                }
+                ArrayList<TreeLayer> group = groups.get(mat);
+                if (group == null) {
+                    group = new ArrayList<TreeLayer>();
+                    groups.put(mat, group);
+                }
+                group.add(layer);
+            }
+            
+            Node pageNode = new Node("PageImpostorNode_" + page.toString());
+            for (Material mat : groups.keySet()) {
+                ArrayList<TreeDataList> lists = new ArrayList<TreeDataList>();
+                ArrayList<Node> models = new ArrayList<Node>();
+                ArrayList<Vector3f> offsets = new ArrayList<Vector3f>();
+                for (TreeLayer layer : groups.get(mat)) {
+                    ArrayList<TreeDataList> grid = tdb.get(layer);
+                    for (int j = 0; j < page.getBlocks().size(); j++) {
+                        TreeDataList dataList = grid.get(j);
+                        if (dataList.isEmpty()) {
+                            continue;
+                        }
+                        lists.add(dataList);
+                        models.add(layer.getModel());
+                        //Tree coordinates are relative to the block center.
+                        offsets.add(page.getBlock(j).getCenterPoint().subtract(page.getCenterPoint()));
+                    }
+                }
+                Geometry impostorGeometry = treeImpGen.buildImpostorGeometry(lists, models, offsets, mat.clone());
+                if (impostorGeometry != null) {
+                    pageNode.attachChild(impostorGeometry);
+                }
+            }
+            if (!pageNode.getChildren().isEmpty()) {
+                page.setImpostorNode(pageNode, pageImpostorLevel);
+            }
+        }
     }//LoadTask
 }//TreeLoader
@@ -29,6 +29,8 @@
 package forester.trees;
 
 import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+import forester.paging.GeometryBlock;
 import forester.paging.GeometryPage;
 import forester.paging.interfaces.PagingManager;
 import forester.trees.datagrids.TreeDataBlock;
@@ -41,6 +43,11 @@ import forester.trees.datagrids.TreeDataBlock;
 public class TreePage extends GeometryPage{
     
     protected TreeDataBlock block;
+    //Block covering the whole page, used for merged page impostors.
+    protected GeometryBlock impostorBlock;
+    //Spatial index of the trees (read by query threads).
+    protected volatile TreeIndex treeIndex;
+    protected volatile boolean unloaded;
 
     public TreePage(int x, int z, PagingManager engine) {
         super(x, z, engine);
@@ -51,10 +58,77 @@ public class TreePage extends GeometryPage{
         return new TreeBlock(x,y,center,engine);
     }
 
+    @Override
+    public void process(Vector3f camPos) {
+        super.process(camPos);
+        if (impostorBlock != null && manager.isVisible()) {
+            processBlock(impostorBlock, camPos);
+        }
+    }
+
     @Override
     public void unload() {
         super.unload();
         block = null;
+        //The load task may still be running, and checks this flag after
+        //registering the index.
+        unloaded = true;
+        treeIndex = null;
+        if (manager.getPageLoader() instanceof TreeLoader) {
+            ((TreeLoader) manager.getPageLoader()).removeIndexedPage(this);
+            ((TreeLoader) manager.getPageLoader()).releaseMaps(this);
+        }
+        if (impostorBlock != null) {
+            impostorBlock.unload();
+            impostorBlock = null;
+        }
+    }
+    
+    /**
+     * Sets the node containing the merged impostors of the page. The node
+     * is handled as a block covering the entire page, that only has 
+     * geometry in the given detail level. This means it's faded and 
+     * switched like regular blocks, but based on the distance to the
+     * page center.
+     * 
+     * @param node The impostor node.
+     * @param detailLevel The detail level of the node.
+     */
+    public void setImpostorNode(Node node, int detailLevel) {
+        GeometryBlock pageBlock = new GeometryBlock(x, z, centerPoint, pageSize, manager);
+        Node[] nodes = new Node[detailLevel + 1];
+        for (int i = 0; i < detailLevel; i++) {
+            nodes[i] = new Node();
+        }
+        nodes[detailLevel] = node;
+        pageBlock.setNodes(nodes);
+        pageBlock.calculateRealMax(detailLevel);
+        impostorBlock = pageBlock;
+    }
+    
+    public GeometryBlock getImpostorBlock() {
+        return impostorBlock;
+    }
+
+    /**
+     * Gets the spatial index of the trees in this page.
+     * 
+     * @return The index, or null if the page is not loaded (or indexing
+     * is disabled).
+     */
+    public TreeIndex getTreeIndex() {
+        return treeIndex;
+    }
+
+    public void setTreeIndex(TreeIndex treeIndex) {
+        this.treeIndex = treeIndex;
+    }
+
+    /**
+     * @return true if the page has been unloaded.
+     */
+    public boolean isUnloaded() {
+        return unloaded;
     }
 
     public TreeDataBlock getBlock() {
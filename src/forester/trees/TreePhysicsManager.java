@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees;
+
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
+import com.jme3.bullet.collision.shapes.infos.ChildCollisionShape;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.math.Matrix3f;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Spatial;
+import forester.Forester;
+import forester.paging.interfaces.Page;
+import forester.paging.interfaces.PagingManager;
+import forester.trees.datagrids.TreeDataBlock;
+import forester.trees.datagrids.TreeDataList;
+import forester.paging.grid.Grid2D;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manages tree physics independently of rendering. Collision shapes are 
+ * only built for blocks within the physics radius of an actor (the camera
+ * by default). Shapes are built on a separate thread when a block comes 
+ * into range, and the rigid body is removed from the physics space when 
+ * the block leaves the range again.
+ * <br/><br/>
+ * The radius is usually much smaller then the viewing range, which keeps 
+ * the broadphase small and makes page loading faster.
+ * 
+ * @author Andreas
+ */
+public class TreePhysicsManager {
+    
+    protected static final Logger log = Logger.getLogger(TreePhysicsManager.class.getName());
+    
+    protected TreeLoader treeLoader;
+    protected PagingManager pagingManager;
+    protected float radius;
+    //Blocks are removed when they're this far outside of the radius.
+    protected float margin;
+    protected ArrayList<Spatial> actors = new ArrayList<Spatial>();
+    //Blocks in physics range (see TreeBlock.isPhysicsActive).
+    protected ArrayList<TreeBlock> activeBlocks = new ArrayList<TreeBlock>();
+    protected ExecutorService executor;
+    protected Vector3f tempVec = new Vector3f();
+    
+    public TreePhysicsManager(TreeLoader treeLoader, PagingManager pagingManager, float radius) {
+        this.treeLoader = treeLoader;
+        this.pagingManager = pagingManager;
+        this.margin = pagingManager.getBlockSize()*0.5f;
+        this.radius = radius;
+    }
+    
+    /**
+     * Updates the physics of all loaded blocks. Called by the treeloader
+     * each frame.
+     */
+    public void update() {
+        PhysicsSpace space = Forester.getInstance().getPhysicsSpace();
+        
+        //Add finished bodies, and release blocks that are out of range.
+        Iterator<TreeBlock> it = activeBlocks.iterator();
+        while (it.hasNext()) {
+            TreeBlock block = it.next();
+            if (block.getNodes() == null) {
+                //The page was unloaded.
+                it.remove();
+                continue;
+            }
+            if (getActorDistance(block) > radius + margin) {
+                block.clearPhysics();
+                it.remove();
+                continue;
+            }
+            Future<CompoundCollisionShape> future = block.getPhysicsTask();
+            if (future != null && future.isDone()) {
+                block.setPhysicsTask(null);
+                try {
+                    CompoundCollisionShape shape = future.get();
+                    if (shape == null) {
+                        //No physics trees. The block stays active, so the
+                        //shape isn't built again while it's in range.
+                        continue;
+                    }
+                    PhysicsRigidBody body = new PhysicsRigidBody(shape, 0f);
+                    body.setPhysicsLocation(block.getCenterPoint());
+                    space.add(body);
+                    block.setPhysicsBody(body);
+                } catch (InterruptedException ex) {
+                    log.log(Level.SEVERE, null, ex);
+                } catch (ExecutionException ex) {
+                    log.log(Level.SEVERE, null, ex.getCause());
+                }
+            }
+        }
+        
+        //Start building shapes for blocks that came into range.
+        Grid2D<Page> grid = pagingManager.getGrid();
+        for (int i = 0; i < grid.size(); i++) {
+            if (!(grid.get(i) instanceof TreePage)) {
+                continue;
+            }
+            TreePage page = (TreePage) grid.get(i);
+            final TreeDataBlock tdb = page.getBlock();
+            if (!page.isLoaded() || tdb == null) {
+                continue;
+            }
+            for (int j = 0; j < page.getBlocks().size(); j++) {
+                TreeBlock block = (TreeBlock) page.getBlock(j);
+                if (block.isPhysicsActive() || block.getNodes() == null
+                        || getActorDistance(block) > radius) {
+                    continue;
+                }
+                final int blockIndex = j;
+                block.setPhysicsTask(getExecutor().submit(new Callable<CompoundCollisionShape>() {
+                    @Override
+                    public CompoundCollisionShape call() {
+                        return buildCollisionShape(tdb, blockIndex);
+                    }
+                }));
+                activeBlocks.add(block);
+            }
+        }
+    }
+    
+    /**
+     * Builds the collision shape of a block. 
+     * 
+     * @param tdb The tree data of the page.
+     * @param block The block index.
+     * @return The shape, or null if the block has no physics trees.
+     */
+    protected CompoundCollisionShape buildCollisionShape(TreeDataBlock tdb, int block) {
+        CompoundCollisionShape ccs = null;
+        Vector3f treeLoc = new Vector3f();
+        Vector3f tempLoc = new Vector3f();
+        Matrix3f rot = new Matrix3f();
+        Matrix3f tempRot = new Matrix3f();
+        for (TreeLayer layer : treeLoader.getLayers()) {
+            if (!layer.isUsePhysics()) {
+                continue;
+            }
+            Grid2D<TreeDataList> grid = tdb.get(layer);
+            if (grid == null || grid.isEmpty()) {
+                continue;
+            }
+            TreeDataList dataList = grid.get(block);
+            if (dataList.isEmpty()) {
+                continue;
+            }
+            if (ccs == null) {
+                ccs = new CompoundCollisionShape();
+            }
+            List<ChildCollisionShape> children = layer.getCollisionShape().getChildren();
+            for (int h = 0; h < dataList.size(); h++) {
+                float scale = dataList.getScale(h);
+                //Shared shapes, pre-scaled to the (rounded) tree scale.
+                TreeLayer.ScaledShapes scaled = layer.getScaledCollisionShapes(scale);
+                CollisionShape[] shapes = scaled.getShapes();
+                float shapeScale = scaled.getScale();
+                treeLoc.set(dataList.getTreeX(h), dataList.getTreeY(h), dataList.getTreeZ(h));
+                rot.fromAngleNormalAxis(dataList.getRot(h), Vector3f.UNIT_Y);
+                //Add all shapes, with their offsets transformed by the tree.
+                for (int c = 0; c < shapes.length; c++) {
+                    ChildCollisionShape child = children.get(c);
+                    rot.mult(tempLoc.set(child.location).multLocal(shapeScale), tempLoc).addLocal(treeLoc);
+                    ccs.addChildShape(shapes[c], tempLoc, rot.mult(child.rotation, tempRot));
+                }
+            }
+        }
+        return ccs;
+    }
+    
+    //The horizontal distance from the closest actor to the block.
+    protected float getActorDistance(TreeBlock block) {
+        Vector3f center = block.getCenterPoint();
+        float half = pagingManager.getBlockSize()*0.5f;
+        float min = Float.POSITIVE_INFINITY;
+        int numActors = Math.max(actors.size(), 1);
+        for (int i = 0; i < numActors; i++) {
+            Vector3f pos = actors.isEmpty() 
+                    ? pagingManager.getCamera().getLocation() 
+                    : actors.get(i).getWorldTranslation();
+            float dx = Math.max(Math.abs(pos.x - center.x) - half, 0);
+            float dz = Math.max(Math.abs(pos.z - center.z) - half, 0);
+            min = Math.min(min, dx*dx + dz*dz);
+        }
+        return (float) Math.sqrt(min);
+    }
+    
+    /**
+     * Removes all tree physics. Shapes are rebuilt next update for blocks 
+     * in range.
+     */
+    public void clear() {
+        for (TreeBlock block : activeBlocks) {
+            block.clearPhysics();
+        }
+        activeBlocks.clear();
+    }
+    
+    /**
+     * Adds an actor. Tree physics is active around actors. If no actors
+     * are added, the camera is used.
+     * 
+     * @param actor The actor.
+     */
+    public void addActor(Spatial actor) {
+        if (!actors.contains(actor)) {
+            actors.add(actor);
+        }
+    }
+    
+    public void removeActor(Spatial actor) {
+        actors.remove(actor);
+    }
+
+    public List<Spatial> getActors() {
+        return actors;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    /**
+     * Sets the distance from the actors within which blocks have physics.
+     * 
+     * @param radius The physics radius.
+     */
+    public void setRadius(float radius) {
+        this.radius = radius;
+    }
+    
+    /**
+     * @return The number of blocks with a rigid body (or pending shape).
+     */
+    public int getNumActiveBlocks() {
+        return activeBlocks.size();
+    }
+    
+    protected ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread th = new Thread(r);
+                    th.setName("Tree Physics Thread");
+                    th.setDaemon(true);
+                    return th;
+                }
+            });
+        }
+        return executor;
+    }
+    
+}//TreePhysicsManager
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees.datagrids;
+
+import com.jme3.math.FastMath;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact (quantized) encoding of a list of trees. Each tree uses 8 bytes
+ * instead of 20:
+ * <br/><br/>
+ * x, z - 16 bits each, relative to the block center.<br/>
+ * y - 16 bits, relative to the height range of the list.<br/>
+ * scale - 8 bits, relative to the scale range of the list.<br/>
+ * rot - 8 bits, a full turn.
+ * <br/><br/>
+ * The ranges are stored in a header. With a 64 unit block the position 
+ * error is at most 1 mm, and the rotation error is at most 0.7 degrees.
+ * The encoded data is a plain byte buffer, so it can be written to disk 
+ * as-is.
+ * 
+ * @author Andreas
+ */
+public class CompactTreeData {
+    
+    //count, xz extent, y min, y range, scale min, scale range.
+    public static final int HEADER_SIZE = 24;
+    public static final int TREE_SIZE = 8;
+    
+    protected static final float SHORT_MAX = 65535f;
+    protected static final float BYTE_MAX = 255f;
+    
+    protected ByteBuffer data;
+    
+    /**
+     * Wraps encoded tree data.
+     * 
+     * @param data The data (as created by the encode method).
+     */
+    public CompactTreeData(ByteBuffer data) {
+        if (data.remaining() < HEADER_SIZE) {
+            throw new RuntimeException("Compact tree data is missing its header.");
+        }
+        this.data = data.slice();
+        if (this.data.capacity() < HEADER_SIZE + size()*TREE_SIZE) {
+            throw new RuntimeException("Compact tree data is truncated.");
+        }
+    }
+    
+    /**
+     * Encodes a list of trees.
+     * 
+     * @param list The trees (with coordinates relative to the block center).
+     * @return The encoded trees.
+     */
+    public static CompactTreeData encode(TreeDataList list) {
+        int size = list.size();
+        float[] xs = list.getXArray();
+        float[] ys = list.getYArray();
+        float[] zs = list.getZArray();
+        float[] scales = list.getScaleArray();
+        float[] rots = list.getRotArray();
+        
+        //Find the ranges.
+        float extent = 0;
+        float yMin = Float.POSITIVE_INFINITY, yMax = Float.NEGATIVE_INFINITY;
+        float sMin = Float.POSITIVE_INFINITY, sMax = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            extent = Math.max(extent, Math.max(Math.abs(xs[i]), Math.abs(zs[i])));
+            yMin = Math.min(yMin, ys[i]);
+            yMax = Math.max(yMax, ys[i]);
+            sMin = Math.min(sMin, scales[i]);
+            sMax = Math.max(sMax, scales[i]);
+        }
+        if (size == 0) {
+            yMin = yMax = sMin = sMax = 0;
+        }
+        float yRange = yMax - yMin;
+        float sRange = sMax - sMin;
+        
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + size*TREE_SIZE);
+        buf.putInt(size).putFloat(extent).putFloat(yMin).putFloat(yRange).putFloat(sMin).putFloat(sRange);
+        
+        //Multipliers (0 if the range is empty).
+        float xzMult = (extent > 0) ? 0.5f*SHORT_MAX/extent : 0;
+        float yMult = (yRange > 0) ? SHORT_MAX/yRange : 0;
+        float sMult = (sRange > 0) ? BYTE_MAX/sRange : 0;
+        float rMult = 256f/FastMath.TWO_PI;
+        
+        for (int i = 0; i < size; i++) {
+            buf.putShort((short) Math.round((xs[i] + extent)*xzMult));
+            buf.putShort((short) Math.round((zs[i] + extent)*xzMult));
+            buf.putShort((short) Math.round((ys[i] - yMin)*yMult));
+            buf.put((byte) Math.round((scales[i] - sMin)*sMult));
+            buf.put((byte) Math.round(rots[i]*rMult));
+        }
+        buf.flip();
+        return new CompactTreeData(buf);
+    }
+    
+    /**
+     * Decodes the trees into a new list.
+     * 
+     * @param x The x-coordinate of the list (its block).
+     * @param z The z-coordinate of the list (its block).
+     * @return The trees.
+     */
+    public TreeDataList decode(int x, int z) {
+        TreeDataList list = new TreeDataList(x, z, size());
+        decodeInto(list);
+        return list;
+    }
+    
+    /**
+     * Decodes the trees and adds them to a list.
+     * 
+     * @param list The list.
+     */
+    public void decodeInto(TreeDataList list) {
+        int size = size();
+        float extent = data.getFloat(4);
+        float yMin = data.getFloat(8);
+        float yRange = data.getFloat(12);
+        float sMin = data.getFloat(16);
+        float sRange = data.getFloat(20);
+        
+        float xzMult = 2*extent/SHORT_MAX;
+        float yMult = yRange/SHORT_MAX;
+        float sMult = sRange/BYTE_MAX;
+        float rMult = FastMath.TWO_PI/256f;
+        
+        list.ensureCapacity(list.size() + size);
+        for (int i = 0, it = HEADER_SIZE; i < size; i++, it += TREE_SIZE) {
+            float x = (data.getShort(it) & 0xFFFF)*xzMult - extent;
+            float z = (data.getShort(it + 2) & 0xFFFF)*xzMult - extent;
+            float y = (data.getShort(it + 4) & 0xFFFF)*yMult + yMin;
+            float scale = (data.get(it + 6) & 0xFF)*sMult + sMin;
+            //Rotations are decoded into the range [-pi, pi).
+            float rot = data.get(it + 7)*rMult;
+            list.add(x, y, z, scale, rot);
+        }
+    }
+    
+    /**
+     * Gets the number of trees.
+     * 
+     * @return The number of trees.
+     */
+    public int size() {
+        return data.getInt(0);
+    }
+    
+    /**
+     * Gets the encoded data (header and trees).
+     * 
+     * @return A read-only view of the data.
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Gets the size of the encoded data in bytes.
+     * 
+     * @return The size.
+     */
+    public int getByteSize() {
+        return HEADER_SIZE + size()*TREE_SIZE;
+    }
+    
+}//CompactTreeData
@@ -33,6 +33,15 @@ import forester.trees.TreeLayer;
 import forester.trees.TreePage;
 import forester.paging.grid.GenericCell2D;
 import forester.paging.grid.Grid2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -46,6 +55,9 @@ public class DataGrid implements DataProvider {
     protected int pageSize;
     protected int resolution;
     protected float blockSize;
+    
+    //The smallest number of trees per thread in bulk imports.
+    protected static final int MIN_CHUNK_SIZE = 1 << 14;
 
     public DataGrid(){
         
@@ -76,18 +88,203 @@ public class DataGrid implements DataProvider {
      * 
      */
     public void addTrees(TreeLayer layer, Grid2D<TreeDataList> list, int x, int z){
-        grid.getCell(x, z).dataBlock.put(layer, list);
+        TreeCell cell = grid.getCell(x, z);
+        cell.expand();
+        cell.dataBlock.put(layer, list);
     }
     
     /**
-     * Bulk method for adding tree data.
+     * Converts the tree data of all pages to the compact (quantized)
+     * encoding, which uses 8 bytes per tree instead of 20. Pages are
+     * decoded each time they are loaded. Adding or removing trees expands
+     * the page again (until compact is called next time).
+     * <br/><br/>
+     * This should be done after adding trees, and before paging starts.
      * 
-     * @param layer
-     * @param list 
+     * @see CompactTreeData
+     */
+    public void compact(){
+        for(TreeCell cell : grid){
+            cell.compact();
+        }
+    }
+    
+    /**
+     * Bulk method for adding tree data. Uses one thread per processor
+     * for large lists.
+     * 
+     * @param layer The tree layer.
+     * @param list The trees (in world coordinates).
+     * @see #addTrees(forester.trees.TreeLayer, forester.trees.datagrids.TreeDataList, int) 
      */
     public void addTrees(TreeLayer layer, TreeDataList list){
-        for(TreeData data : list){
-            addTree(layer,data);
+        addTrees(layer, list, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Bulk method for adding tree data. The trees are bucketed by page and
+     * block (a counting sort, so the order of the trees within each block
+     * is kept), all cells and lists are created in a single pass, and each 
+     * list is grown only once. The per-tree work is split over a number 
+     * of threads.
+     * <br/><br/>
+     * The result is the same as calling addTree for each tree.
+     * 
+     * @param layer The tree layer.
+     * @param list The trees (in world coordinates). The list is not changed.
+     * @param numThreads The number of threads to use.
+     */
+    public void addTrees(TreeLayer layer, TreeDataList list, int numThreads){
+        final int n = list.size();
+        if(n == 0){
+            return;
+        }
+        final float[] xs = list.getXArray();
+        final float[] ys = list.getYArray();
+        final float[] zs = list.getZArray();
+        final float[] scales = list.getScaleArray();
+        final float[] rots = list.getRotArray();
+        final int numBlocks = resolution*resolution;
+        
+        int numChunks = Math.max(1, Math.min(numThreads, n / MIN_CHUNK_SIZE));
+        final int[] chunkStart = new int[numChunks + 1];
+        for(int c = 0; c <= numChunks; c++){
+            chunkStart[c] = (int) ((long) n*c/numChunks);
+        }
+        ExecutorService executor = (numChunks > 1) ? Executors.newFixedThreadPool(numChunks) : null;
+        try {
+            //Pass 1: Find the page and block of each tree.
+            final int[] pages = new int[n];
+            final int[] buckets = new int[n];
+            ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for(int c = 0; c < numChunks; c++){
+                final int from = chunkStart[c], to = chunkStart[c + 1];
+                tasks.add(new Callable<Object>(){
+                    @Override
+                    public Object call() {
+                        for(int i = from; i < to; i++){
+                            int px = getPageIndex(xs[i]);
+                            int pz = getPageIndex(zs[i]);
+                            pages[i] = Grid2D.hash(px, pz);
+                            buckets[i] = getBlockIndex(xs[i], px) + resolution*getBlockIndex(zs[i], pz);
+                        }
+                        return null;
+                    }
+                });
+            }
+            run(executor, tasks);
+            
+            //Pass 2: Number the pages. Input data is usually ordered spatially, 
+            //so the page of the previous tree is checked first.
+            HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>();
+            ArrayList<TreeCell> cells = new ArrayList<TreeCell>();
+            int lastPage = 0, lastSlot = -1;
+            for(int i = 0; i < n; i++){
+                if(lastSlot < 0 || pages[i] != lastPage){
+                    lastPage = pages[i];
+                    Integer slot = slots.get(lastPage);
+                    if(slot == null){
+                        slot = cells.size();
+                        slots.put(lastPage, slot);
+                        cells.add(getTreeCell(getPageIndex(xs[i]), getPageIndex(zs[i])));
+                    }
+                    lastSlot = slot;
+                }
+                buckets[i] += lastSlot*numBlocks;
+            }
+            final int numBuckets = cells.size()*numBlocks;
+            
+            //Pass 3: Count the trees of each bucket, per chunk.
+            final int[][] offsets = new int[numChunks][numBuckets];
+            tasks.clear();
+            for(int c = 0; c < numChunks; c++){
+                final int from = chunkStart[c], to = chunkStart[c + 1];
+                final int[] counts = offsets[c];
+                tasks.add(new Callable<Object>(){
+                    @Override
+                    public Object call() {
+                        for(int i = from; i < to; i++){
+                            counts[buckets[i]]++;
+                        }
+                        return null;
+                    }
+                });
+            }
+            run(executor, tasks);
+            
+            //Grow each list once, and turn the counts into the index where
+            //each chunk writes its first tree.
+            final TreeDataList[] lists = new TreeDataList[numBuckets];
+            final float[] originX = new float[numBuckets];
+            final float[] originZ = new float[numBuckets];
+            for(int b = 0; b < numBuckets; b++){
+                int total = 0;
+                for(int c = 0; c < numChunks; c++){
+                    total += offsets[c][b];
+                }
+                if(total == 0){
+                    continue;
+                }
+                TreeCell cell = cells.get(b / numBlocks);
+                int block = b % numBlocks;
+                lists[b] = cell.getDataGrid(layer).get(block);
+                int index = lists[b].reserve(total);
+                for(int c = 0; c < numChunks; c++){
+                    int count = offsets[c][b];
+                    offsets[c][b] = index;
+                    index += count;
+                }
+                //The center of the block.
+                originX[b] = cell.centerPoint.x - pageSize*0.5f + (block % resolution + 0.5f)*blockSize;
+                originZ[b] = cell.centerPoint.z - pageSize*0.5f + (block / resolution + 0.5f)*blockSize;
+            }
+            
+            //Pass 4: Copy the trees into their lists. Each chunk writes to its
+            //own range of each list.
+            tasks.clear();
+            for(int c = 0; c < numChunks; c++){
+                final int from = chunkStart[c], to = chunkStart[c + 1];
+                final int[] index = offsets[c];
+                tasks.add(new Callable<Object>(){
+                    @Override
+                    public Object call() {
+                        for(int i = from; i < to; i++){
+                            int b = buckets[i];
+                            int j = index[b]++;
+                            TreeDataList dest = lists[b];
+                            dest.getXArray()[j] = xs[i] - originX[b];
+                            dest.getYArray()[j] = ys[i];
+                            dest.getZArray()[j] = zs[i] - originZ[b];
+                            dest.getScaleArray()[j] = scales[i];
+                            dest.getRotArray()[j] = rots[i];
+                        }
+                        return null;
+                    }
+                });
+            }
+            run(executor, tasks);
+        } finally {
+            if(executor != null){
+                executor.shutdown();
+            }
+        }
+    }
+    
+    protected void run(ExecutorService executor, List<Callable<Object>> tasks){
+        try {
+            if(executor == null){
+                for(Callable<Object> task : tasks){
+                    task.call();
+                }
+                return;
+            }
+            for(Future<Object> future : executor.invokeAll(tasks)){
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Bulk import failed.", e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException("Bulk import failed.", e);
         }
     }
     
@@ -100,20 +297,37 @@ public class DataGrid implements DataProvider {
     }
     
     public TreeCell getTreeCell(TreeData data){
-        //Normalize coordinates to the tree grid.
-        int t = (data.x >= 0) ? 1 : -1;
-        float xx = data.x / (float) pageSize + t * 0.5f;
-        t = (data.z >= 0) ? 1 : -1;
-        float zz = data.z / (float) pageSize + t * 0.5f;
-        TreeCell cell = grid.getCell((int)xx, (int)zz);
+        return getTreeCell(getPageIndex(data.x), getPageIndex(data.z));
+    }
+    
+    protected TreeCell getTreeCell(int x, int z){
+        TreeCell cell = grid.getCell(x, z);
         
         if (cell == null) {
-            cell = new TreeCell((int) xx, (int) zz);
+            cell = new TreeCell(x, z);
             grid.add(cell);
         }
         
         return cell;
     }
+    
+    //Normalize a coordinate to the tree grid.
+    protected int getPageIndex(float coord){
+        int t = (coord >= 0) ? 1 : -1;
+        return (int) (coord / (float) pageSize + t * 0.5f);
+    }
+    
+    /*
+     * Gets the block index (along one axis) of a coordinate, in the page 
+     * with the given index (along the same axis).
+     */
+    protected int getBlockIndex(float coord, int page){
+        //Align with page. The coordinate is now in the range 0->pageSize.
+        float c = coord - (page*pageSize - pageSize*0.5f);
+        int idx = (int) (c/blockSize);
+        //Guard against rounding at the page borders.
+        return (idx < 0) ? 0 : (idx >= resolution) ? resolution - 1 : idx;
+    }
 
     @Override
     public TreeDataBlock getData(TreePage tile) {
@@ -121,13 +335,15 @@ public class DataGrid implements DataProvider {
         if(cell == null){
             return null;
         }
-        return cell.dataBlock;
+        return cell.getDataBlock();
     }
 
     //Used for creating a grid of tree-pages.
     protected class TreeCell extends GenericCell2D {
 
         protected TreeDataBlock dataBlock;
+        //The compact tree data of each layer (null unless compacted).
+        protected HashMap<TreeLayer, CompactTreeData[]> compactBlock;
         protected Vector3f centerPoint;
 
         public TreeCell(int x, int z) {
@@ -136,11 +352,59 @@ public class DataGrid implements DataProvider {
             dataBlock = new TreeDataBlock();
         }
         
+        protected void compact() {
+            if (compactBlock != null) {
+                return;
+            }
+            compactBlock = new HashMap<TreeLayer, CompactTreeData[]>();
+            for (Map.Entry<TreeLayer, Grid2D<TreeDataList>> entry : dataBlock.entrySet()) {
+                Grid2D<TreeDataList> dataGrid = entry.getValue();
+                CompactTreeData[] compactGrid = new CompactTreeData[dataGrid.size()];
+                for (int i = 0; i < compactGrid.length; i++) {
+                    compactGrid[i] = CompactTreeData.encode(dataGrid.get(i));
+                }
+                compactBlock.put(entry.getKey(), compactGrid);
+            }
+            dataBlock = null;
+        }
+        
+        protected void expand() {
+            if (compactBlock == null) {
+                return;
+            }
+            dataBlock = decode();
+            compactBlock = null;
+        }
+        
+        protected TreeDataBlock decode() {
+            TreeDataBlock block = new TreeDataBlock();
+            for (Map.Entry<TreeLayer, CompactTreeData[]> entry : compactBlock.entrySet()) {
+                CompactTreeData[] compactGrid = entry.getValue();
+                Grid2D<TreeDataList> dataGrid = new Grid2D<TreeDataList>(resolution,resolution);
+                for (int i = 0; i < compactGrid.length; i++) {
+                    dataGrid.add(compactGrid[i].decode(i % resolution, i / resolution));
+                }
+                block.put(entry.getKey(), dataGrid);
+            }
+            return block;
+        }
+        
         protected boolean addData(TreeLayer layer, TreeData data) {
-            Grid2D<TreeDataList> dataGrid = null;
+            TreeData local = new TreeData();
+            int packed = toBlockCoords(data, local);
+            return getDataGrid(layer).get(packed).add(local);
+        }
+        
+        /*
+         * Gets the data grid of a layer, expanding the page and creating 
+         * the grid if needed.
+         */
+        protected Grid2D<TreeDataList> getDataGrid(TreeLayer layer) {
+            expand();
             //Get the correct dataList (the list of tree-data corresponding
             //to the given spatial).
-            if (!dataBlock.containsKey(layer)) {
+            Grid2D<TreeDataList> dataGrid = dataBlock.get(layer);
+            if (dataGrid == null) {
                 dataGrid = new Grid2D<TreeDataList>(resolution,resolution);
                 
                 for(int j = 0; j < resolution; j++){
@@ -149,47 +413,56 @@ public class DataGrid implements DataProvider {
                     }
                 }
                 dataBlock.put(layer, dataGrid);
-                
-            } else {
-                dataGrid = dataBlock.get(layer);
             }
-            
-            return getDataList(layer,data).add(data);
+            return dataGrid;
         }
         
         protected boolean removeData(TreeLayer layer, TreeData data){
-            
-            return dataBlock.get(layer).get(0).remove(data);
+            expand();
+            Grid2D<TreeDataList> dataGrid = dataBlock.get(layer);
+            if (dataGrid == null) {
+                return false;
+            }
+            TreeData local = new TreeData();
+            int packed = toBlockCoords(data, local);
+            return dataGrid.get(packed).remove(local);
         }
         
         /*
-         * Get data. Note it alters the tree data. Should not be used
-         * for anything other then adding/removing tree-data from the
-         * lists.
+         * Converts tree data from world coordinates to coordinates relative
+         * to the center of its block. The given data is not changed.
+         * Returns the (packed) index of the block.
          */
-        protected TreeDataList getDataList(TreeLayer layer,TreeData data){
-            //Align with page. xz-positions is now in the range 0->pageSize.
-            data.x -= centerPoint.x - pageSize*0.5f;
-            data.z -= centerPoint.z - pageSize*0.5f;
+        protected int toBlockCoords(TreeData data, TreeData store){
             //Find the proper block indices based on the coordinates.
-            int xx = (int) (data.x/blockSize);
-            int zz = (int) (data.z/blockSize);
+            int xx = getBlockIndex(data.x, getX());
+            int zz = getBlockIndex(data.z, getZ());
             
             //Align the coordinates with block.
-            data.x -= (xx + 0.5f)*blockSize;
-            data.z -= (zz + 0.5f)*blockSize;
             //Tree coordinates are now relative to the center of 
             //their corresponding block.
-            int packed = (int)xx + resolution*(int)zz;
-            //Get the appropriate list.
-            return dataBlock.get(layer).get(packed);
+            store.x = data.x - (centerPoint.x - pageSize*0.5f + (xx + 0.5f)*blockSize);
+            store.y = data.y;
+            store.z = data.z - (centerPoint.z - pageSize*0.5f + (zz + 0.5f)*blockSize);
+            store.scale = data.scale;
+            store.rot = data.rot;
+            return xx + resolution*zz;
         }
 
         public Vector3f getCenterPoint() {
             return centerPoint;
         }
 
+        /**
+         * Gets the tree data of the page. If the page is compacted, the
+         * data is decoded into a new block.
+         * 
+         * @return The tree data.
+         */
         public TreeDataBlock getDataBlock() {
+            if (compactBlock != null) {
+                return decode();
+            }
             return dataBlock;
         }
         
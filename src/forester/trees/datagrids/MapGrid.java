@@ -30,13 +30,16 @@ package forester.trees.datagrids;
 
 import com.jme3.math.FastMath;
 import com.jme3.texture.Texture;
+import forester.Forester;
 import forester.RectBounds;
 import forester.random.FastRandom;
+import forester.random.RandomTable;
 import forester.trees.TreeLayer;
 import forester.trees.TreeLoader;
 import forester.trees.TreeBlock;
 import forester.trees.TreePage;
 import forester.image.DensityMap;
+import forester.image.DensityMapRegistry;
 import java.util.ArrayList;
 import java.util.HashMap;
 import forester.paging.grid.GenericCell2D;
@@ -60,11 +63,14 @@ public class MapGrid implements DataProvider {
     protected TreeLoader treeLoader;
     protected Grid2D<MapCell> grid;
     protected int pageSize;
+    //Shared with other mapgrids, so that each texture is only decoded once.
+    protected DensityMapRegistry registry;
 
     public MapGrid(int pageSize, TreeLoader treeLoader) {
         this.pageSize = pageSize;
         this.treeLoader = treeLoader;
         grid = new Grid2D<MapCell>();
+        registry = Forester.getInstance().getDensityMapRegistry();
     }
 
     @Override
@@ -83,17 +89,19 @@ public class MapGrid implements DataProvider {
 
     protected Grid2D<TreeDataList> generateTreeData(TreeLayer layer, TreePage page) {
 
-        FastRandom random = new FastRandom();
         float scaleDiff = layer.getMaximumScale() - layer.getMinimumScale();
         Grid2D<TreeDataList> tGrid = new Grid2D<TreeDataList>();
 
         int resolution = treeLoader.getPagingEngine().getResolution();
 
-        MapCell cell = grid.getCell(page.getX(), page.getZ());
-        if (cell == null) {
+        HashMap<Integer,DensityMap> maps = getMaps(page);
+        if (maps == null) {
+            return null;
+        }
+        DensityMap densityMap = maps.get(layer.getDmTexNum());
+        if (densityMap == null) {
             return null;
         }
-        DensityMap densityMap = cell.maps.get(layer.getDmTexNum());
         
         for (int k = 0; k < resolution; k++) {
             for (int j = 0; j < resolution; j++) {
@@ -107,16 +115,40 @@ public class MapGrid implements DataProvider {
                 float offsetZ = width*(block.getZ() + 0.5f);
                 
                 TreeDataList dataList = new TreeDataList(j, k);
+                
+                //Skip blocks where nothing can be planted.
+                if (!canPlantAtZero() && densityMap.isEmpty(   offsetX - width*0.5f,
+                                                                offsetZ - width*0.5f,
+                                                                offsetX + width*0.5f,
+                                                                offsetZ + width*0.5f,
+                                                                layer.getDmChannel()
+                                                            )) 
+                {
+                    tGrid.add(dataList);
+                    continue;
+                }
+                
+                //Seeded per block, so that reloading the page gives the same trees.
+                FastRandom random = new FastRandom(RandomTable.getSeed( RandomTable.TREES,
+                                                                        page.getX(), page.getZ(),
+                                                                        block.getX(), block.getZ(),
+                                                                        layer.getId()
+                                                                      ));
+
+                //Generate the candidate points and sample the density map for 
+                //all of them at once. The coordinates are in density map space.
+                float[] xs = new float[count];
+                float[] zs = new float[count];
+                float[] ds = new float[count];
+                for (int i = 0; i < count; i++) {
+                    xs[i] = (random.unitRandom() - 0.5f) * width - 0.01f + offsetX;
+                    zs[i] = (random.unitRandom() - 0.5f) * width - 0.01f + offsetZ;
+                }
+                densityMap.getDensities(xs, zs, ds, count, layer.getDmChannel(), false);
 
                 for (int i = 0; i < count; i++) {
                     
-                    float x = (random.unitRandom() - 0.5f) * width - 0.01f;
-                    float z = (random.unitRandom() - 0.5f) * width - 0.01f;
-                    
-                    float xx = x + offsetX;
-                    float zz = z + offsetZ;
-                    
-                    float d = densityMap.getDensityUnfiltered(xx, zz, layer.getDmChannel());
+                    float d = ds[i];
 
                     if(scaling == Scaling.Quadratic){
                         d *= d;
@@ -131,15 +163,14 @@ public class MapGrid implements DataProvider {
                     }
                     
                     if (random.unitRandom() + threshold < d) {
+                        
+                        float x = xs[i] - offsetX;
+                        float z = zs[i] - offsetZ;
 
-                        TreeData data = new TreeData();
-                        data.x = x;
-                        data.z = z;
-                        data.y = treeLoader.getTerrainHeight(x + block.getCenterPoint().x, z + block.getCenterPoint().z);
-
-                        data.rot = (-0.5f + random.unitRandom())*3.141593f;
-                        data.scale = layer.getMinimumScale() + random.unitRandom() * (scaleDiff);
-                        dataList.add(data);
+                        float y = treeLoader.getTerrainHeight(x + block.getCenterPoint().x, z + block.getCenterPoint().z);
+                        float rot = (-0.5f + random.unitRandom())*3.141593f;
+                        float scale = layer.getMinimumScale() + random.unitRandom() * (scaleDiff);
+                        dataList.add(x, y, z, scale, rot);
                     }
                 }
                 tGrid.add(dataList);
@@ -148,6 +179,32 @@ public class MapGrid implements DataProvider {
         return tGrid;
     }
 
+    //Whether or not trees can be planted where the density is 0.
+    protected boolean canPlantAtZero(){
+        float d = 0;
+        if (scaling == Scaling.Linear_Inverted || scaling == Scaling.Quadratic_Inverted){
+            d = 1;
+        }
+        if(binary){
+            d = (d < threshold) ? 0 : 1;
+        }
+        return d > threshold;
+    }
+
+    /**
+     * Gets the densitymaps of a page.
+     * 
+     * @param page The treepage.
+     * @return The densitymaps, or null if the page has none.
+     */
+    protected HashMap<Integer,DensityMap> getMaps(TreePage page) {
+        MapCell cell = grid.getCell(page.getX(), page.getZ());
+        if (cell == null) {
+            return null;
+        }
+        return cell.maps;
+    }
+
     /**
      * Load a texture as densitymap.
      * 
@@ -157,7 +214,38 @@ public class MapGrid implements DataProvider {
      * @param index The ordinal of the map (0 for first density map, 1 for second etc.).
      */
     public void addDensityMap(Texture tex, int x, int z, int index) {
-        loadMapCell(x, z).addDensityMap(tex, index);
+        addDensityMap(tex, x, z, index, false, true);
+    }
+    
+    /**
+     * Load a texture as densitymap, with a given orientation. Density maps
+     * are shared with other mapgrids, so their orientation can't be 
+     * changed afterwards.
+     * 
+     * @param tex The texture.
+     * @param x The treepage x-index.
+     * @param z The treepage z-index.
+     * @param index The ordinal of the map.
+     * @param flipX Whether or not the map is flipped along the x-axis.
+     * @param flipZ Whether or not the map is flipped along the z-axis 
+     * (default).
+     */
+    public void addDensityMap(Texture tex, int x, int z, int index, boolean flipX, boolean flipZ) {
+        loadMapCell(x, z).addDensityMap(tex, index, flipX, flipZ);
+    }
+
+    /**
+     * Removes a densitymap from the grid.
+     * 
+     * @param x The treepage x-index.
+     * @param z The treepage z-index.
+     * @param index The ordinal of the map.
+     */
+    public void removeDensityMap(int x, int z, int index) {
+        MapCell mapCell = grid.getCell(x, z);
+        if (mapCell != null) {
+            mapCell.removeDensityMap(index);
+        }
     }
 
     protected MapCell loadMapCell(int x, int z) {
@@ -225,10 +313,18 @@ public class MapGrid implements DataProvider {
             maps = new HashMap<Integer,DensityMap>();
         }
 
-        protected void addDensityMap(Texture tex, int idx) {
-            DensityMap map = new DensityMap(tex, pageSize);
+        protected void addDensityMap(Texture tex, int idx, boolean flipX, boolean flipZ) {
+            DensityMap map = registry.acquire(tex, pageSize, flipX, flipZ);
+            removeDensityMap(idx);
             maps.put(idx, map);
         }
+        
+        protected void removeDensityMap(int idx) {
+            DensityMap old = maps.remove(idx);
+            if (old != null) {
+                registry.release(old);
+            }
+        }
 
         @Override
         public boolean equals(Object obj) {
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees.datagrids;
+
+import forester.paging.grid.Grid2D;
+import forester.trees.TreeLayer;
+import forester.trees.TreePage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A data provider that streams tree data from an indexed file. Only the
+ * index is kept in memory. Page data is read when a page is loaded, and 
+ * the most recently used pages are kept (in compact form) in a cache. 
+ * Memory use is therefore proportional to the view radius (and cache 
+ * capacity) rather then the size of the world.
+ * <br/><br/>
+ * File layout: a header (MAGIC, VERSION, page size, resolution, index 
+ * offset), the page records, and the index (number of pages, and the 
+ * x, z, offset and length of each page). A page record contains the 
+ * number of layers, and for each layer its id followed by the compact 
+ * tree data of each block.
+ * <br/><br/>
+ * Files are created using the Writer class.
+ * 
+ * @author Andreas
+ */
+public class StreamingDataGrid implements DataProvider {
+    
+    public static final int MAGIC = 0x46545245; //"FTRE"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    public static final int INDEX_ENTRY_SIZE = 20;
+    
+    protected File file;
+    protected FileChannel channel;
+    protected int pageSize;
+    protected int resolution;
+    protected List<TreeLayer> layers;
+    protected int capacity;
+    
+    //Page hash -> {offset, length}.
+    protected HashMap<Integer, long[]> index;
+    protected final LinkedHashMap<Integer, ByteBuffer> cache;
+    
+    /**
+     * Opens a tree data file.
+     * 
+     * @param file The file.
+     * @param pageSize The page size (must match the file).
+     * @param resolution The page resolution (must match the file).
+     * @param layers The tree layers. Layer data is matched to layers using
+     * the layer ids.
+     * @param capacity The number of pages to keep in the cache.
+     */
+    public StreamingDataGrid(File file, int pageSize, int resolution, List<TreeLayer> layers, int capacity){
+        if(capacity < 1){
+            throw new RuntimeException("The capacity must be at least 1.");
+        }
+        this.file = file;
+        this.pageSize = pageSize;
+        this.resolution = resolution;
+        this.layers = layers;
+        this.capacity = capacity;
+        //Access order makes the first entry the least recently used.
+        cache = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+        boolean opened = false;
+        try {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            readIndex();
+            opened = true;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open tree data file: " + file, e);
+        } finally {
+            //Don't leak the file handle if the file is invalid.
+            if(!opened && channel != null){
+                try { channel.close(); } catch (IOException e) {}
+            }
+        }
+    }
+    
+    protected final void readIndex() throws IOException {
+        ByteBuffer header = read(0, HEADER_SIZE);
+        if(header.getInt(0) != MAGIC){
+            throw new RuntimeException("Not a tree data file: " + file);
+        }
+        if(header.getInt(4) != VERSION){
+            throw new RuntimeException("Unsupported tree data file version: " + header.getInt(4));
+        }
+        if(header.getInt(8) != pageSize || header.getInt(12) != resolution){
+            throw new RuntimeException("The tree data file was written with page size " + header.getInt(8)
+                    + " and resolution " + header.getInt(12) + ".");
+        }
+        long indexOffset = header.getInt(16) & 0xFFFFFFFFL;
+        int numPages = read(indexOffset, 4).getInt(0);
+        ByteBuffer entries = read(indexOffset + 4, numPages*INDEX_ENTRY_SIZE);
+        index = new HashMap<Integer, long[]>(numPages*2);
+        for(int i = 0; i < numPages; i++){
+            int x = entries.getInt();
+            int z = entries.getInt();
+            long offset = entries.getLong();
+            long length = entries.getInt();
+            index.put(Grid2D.hash(x, z), new long[]{offset, length});
+        }
+    }
+    
+    //Positional reads, so the channel can be shared.
+    protected ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while(buf.hasRemaining()){
+            if(channel.read(buf, position + buf.position()) < 0){
+                throw new IOException("Unexpected end of tree data file: " + file);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public TreeDataBlock getData(TreePage page) {
+        ByteBuffer record = getRecord(page.hashCode());
+        if(record == null){
+            return null;
+        }
+        return decode(record.duplicate());
+    }
+    
+    /**
+     * Gets the page record from the cache, or reads it from the file.
+     * 
+     * @param hash The page hash.
+     * @return The record, or null if the file has no data for the page.
+     */
+    protected synchronized ByteBuffer getRecord(int hash){
+        ByteBuffer record = cache.get(hash);
+        if(record != null){
+            return record;
+        }
+        long[] entry = index.get(hash);
+        if(entry == null){
+            return null;
+        }
+        try {
+            record = read(entry[0], (int) entry[1]);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read tree data file: " + file, e);
+        }
+        cache.put(hash, record);
+        trim();
+        return record;
+    }
+    
+    protected TreeDataBlock decode(ByteBuffer record){
+        TreeDataBlock block = new TreeDataBlock();
+        int numLayers = record.getInt();
+        int numBlocks = resolution*resolution;
+        for(int l = 0; l < numLayers; l++){
+            int id = record.getInt();
+            TreeLayer layer = getLayer(id);
+            Grid2D<TreeDataList> dataGrid = new Grid2D<TreeDataList>(resolution, resolution);
+            for(int i = 0; i < numBlocks; i++){
+                ByteBuffer data = record.slice();
+                CompactTreeData compact = new CompactTreeData(data);
+                record.position(record.position() + compact.getByteSize());
+                if(layer != null){
+                    dataGrid.add(compact.decode(i % resolution, i / resolution));
+                }
+            }
+            //Data of unknown layers is skipped.
+            if(layer != null){
+                block.put(layer, dataGrid);
+            }
+        }
+        return block;
+    }
+    
+    protected TreeLayer getLayer(int id){
+        for(TreeLayer layer : layers){
+            if(layer.getId() == id){
+                return layer;
+            }
+        }
+        return null;
+    }
+    
+    //Release the least recently used pages until the cache fits.
+    protected void trim(){
+        Iterator<Integer> it = cache.keySet().iterator();
+        while(cache.size() > capacity && it.hasNext()){
+            it.next();
+            it.remove();
+        }
+    }
+    
+    /**
+     * Checks whether the file contains data for a page.
+     * 
+     * @param x The page x-index.
+     * @param z The page z-index.
+     * @return true if there is data for the page.
+     */
+    public boolean hasPage(int x, int z){
+        return index.containsKey(Grid2D.hash(x, z));
+    }
+    
+    public int getNumPages(){
+        return index.size();
+    }
+    
+    public synchronized int getCacheSize(){
+        return cache.size();
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    public synchronized void setCapacity(int capacity) {
+        if(capacity < 1){
+            throw new RuntimeException("The capacity must be at least 1.");
+        }
+        this.capacity = capacity;
+        trim();
+    }
+    
+    /**
+     * Closes the file.
+     */
+    public synchronized void close(){
+        cache.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+    
+    /**
+     * Class used to write tree data files. Pages are written one at a 
+     * time, so the whole world never has to be in memory. The index is 
+     * written when the writer is closed.
+     */
+    public static class Writer {
+        
+        protected File file;
+        protected RandomAccessFile raf;
+        protected FileChannel channel;
+        protected int resolution;
+        protected long position;
+        protected ByteBuffer index;
+        protected int numPages;
+        
+        public Writer(File file, int pageSize, int resolution) throws IOException {
+            this.file = file;
+            this.resolution = resolution;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            //The index offset is written when the file is closed.
+            header.putInt(MAGIC).putInt(VERSION).putInt(pageSize).putInt(resolution).putInt(0);
+            header.flip();
+            write(header);
+            index = ByteBuffer.allocate(64*INDEX_ENTRY_SIZE);
+        }
+        
+        /**
+         * Writes the tree data of a page. 
+         * 
+         * @param x The page x-index.
+         * @param z The page z-index.
+         * @param block The tree data. The coordinates of each list should 
+         * be relative to the center of their block.
+         * @throws IOException 
+         */
+        public void writePage(int x, int z, TreeDataBlock block) throws IOException {
+            int numBlocks = resolution*resolution;
+            ArrayList<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+            int length = 4;
+            HashSet<Integer> ids = new HashSet<Integer>();
+            for(Map.Entry<TreeLayer, Grid2D<TreeDataList>> entry : block.entrySet()){
+                Grid2D<TreeDataList> dataGrid = entry.getValue();
+                if(dataGrid.size() != numBlocks){
+                    throw new RuntimeException("Each layer needs " + numBlocks + " tree lists.");
+                }
+                //Layers are identified by id when the file is read.
+                if(!ids.add(entry.getKey().getId())){
+                    throw new RuntimeException("Tree layers must have unique ids.");
+                }
+                ByteBuffer id = ByteBuffer.allocate(4);
+                id.putInt(entry.getKey().getId()).flip();
+                parts.add(id);
+                length += 4;
+                for(int i = 0; i < numBlocks; i++){
+                    ByteBuffer data = CompactTreeData.encode(dataGrid.get(i)).getData();
+                    parts.add(data);
+                    length += data.remaining();
+                }
+            }
+            //The index offset is stored as an unsigned int, so the page
+            //data has to end below 4 GB.
+            if(position + length > 0xFFFFFFFFL){
+                throw new IOException("Tree data files are limited to 4 GB.");
+            }
+            if(index.remaining() < INDEX_ENTRY_SIZE){
+                ByteBuffer newIndex = ByteBuffer.allocate(index.capacity()*2);
+                index.flip();
+                newIndex.put(index);
+                index = newIndex;
+            }
+            index.putInt(x).putInt(z).putLong(position).putInt(length);
+            numPages++;
+            
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(block.size()).flip();
+            write(count);
+            for(ByteBuffer part : parts){
+                write(part);
+            }
+        }
+        
+        /**
+         * Writes the index, and closes the file.
+         * 
+         * @throws IOException 
+         */
+        public void close() throws IOException {
+            try {
+                long indexOffset = position;
+                ByteBuffer count = ByteBuffer.allocate(4);
+                count.putInt(numPages).flip();
+                write(count);
+                index.flip();
+                write(index);
+                ByteBuffer offset = ByteBuffer.allocate(4);
+                offset.putInt((int) indexOffset).flip();
+                channel.write(offset, 16);
+            } finally {
+                raf.close();
+            }
+        }
+        
+        protected final void write(ByteBuffer buf) throws IOException {
+            while(buf.hasRemaining()){
+                position += channel.write(buf);
+            }
+        }
+    }//Writer
+    
+    /**
+     * Writes all the tree data of a datagrid to a file.
+     * 
+     * @param file The file.
+     * @param grid The datagrid.
+     * @throws IOException 
+     */
+    public static void write(File file, DataGrid grid) throws IOException {
+        Writer writer = new Writer(file, grid.pageSize, grid.resolution);
+        try {
+            for(DataGrid.TreeCell cell : grid.grid){
+                writer.writePage(cell.getX(), cell.getZ(), cell.getDataBlock());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+}//StreamingDataGrid
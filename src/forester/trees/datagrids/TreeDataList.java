@@ -28,25 +28,289 @@
  */
 package forester.trees.datagrids;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
 import forester.paging.grid.Cell2D;
 import forester.paging.grid.Grid2D;
 
 
 /**
- * A TreeDataList is an arraylist of TreeData objects, and also
- * a Cell2D.
+ * A TreeDataList is a list of tree data, and also a Cell2D. 
+ * <br/><br/>
+ * The data is stored as a structure of arrays (one float array each for 
+ * x, y, z, scale and rotation) rather then as TreeData objects. The list
+ * can still be used as a List&lt;TreeData&gt;, but note that get() returns
+ * a copy of the data, so code like <code>list.get(i).y = h</code> has no
+ * effect. get() and set(int, TreeData) are deprecated for this reason. Use
+ * the primitive accessors (getTreeY, setTreeY etc.), or the backing arrays
+ * directly.
  * 
  * @author Andreas
  */
-public class TreeDataList extends ArrayList<TreeData> implements Cell2D{
+public class TreeDataList extends AbstractList<TreeData> implements Cell2D, RandomAccess {
+    
+    protected static final int DEFAULT_CAPACITY = 16;
+    
     protected short x, z;
     protected int hash;
+    
+    protected float[] xs, ys, zs, scales, rots;
+    protected int size;
 
     public TreeDataList(int x, int z) {
+        this(x, z, DEFAULT_CAPACITY);
+    }
+    
+    public TreeDataList(int x, int z, int capacity) {
         this.x = (short) x;
         this.z = (short) z;
         this.hash = Grid2D.hash(x, z);
+        allocate(Math.max(capacity, 1));
+    }
+    
+    protected final void allocate(int capacity) {
+        xs = new float[capacity];
+        ys = new float[capacity];
+        zs = new float[capacity];
+        scales = new float[capacity];
+        rots = new float[capacity];
+    }
+    
+    /**
+     * Makes sure the list can hold a number of trees without growing.
+     * 
+     * @param capacity The capacity.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= xs.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, xs.length + (xs.length >> 1));
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+        zs = Arrays.copyOf(zs, newCapacity);
+        scales = Arrays.copyOf(scales, newCapacity);
+        rots = Arrays.copyOf(rots, newCapacity);
+    }
+    
+    /**
+     * Reduces the capacity of the list to its size.
+     */
+    public void trimToSize() {
+        int capacity = Math.max(size, 1);
+        if (capacity < xs.length) {
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            zs = Arrays.copyOf(zs, capacity);
+            scales = Arrays.copyOf(scales, capacity);
+            rots = Arrays.copyOf(rots, capacity);
+        }
+    }
+    
+    /**
+     * Adds a tree.
+     * 
+     * @param x The x-coordinate (relative to the block center).
+     * @param y The y-coordinate.
+     * @param z The z-coordinate (relative to the block center).
+     * @param scale The scale.
+     * @param rot The rotation (around the y-axis).
+     */
+    public void add(float x, float y, float z, float scale, float rot) {
+        ensureCapacity(size + 1);
+        xs[size] = x;
+        ys[size] = y;
+        zs[size] = z;
+        scales[size] = scale;
+        rots[size] = rot;
+        size++;
+        modCount++;
+    }
+    
+    public void set(int index, float x, float y, float z, float scale, float rot) {
+        checkIndex(index);
+        xs[index] = x;
+        ys[index] = y;
+        zs[index] = z;
+        scales[index] = scale;
+        rots[index] = rot;
+    }
+    
+    /*
+     * Grows the list by a number of trees, and returns the index of the 
+     * first new tree. Used by DataGrid to fill lists in bulk (the arrays
+     * are written directly).
+     */
+    int reserve(int count) {
+        ensureCapacity(size + count);
+        int first = size;
+        size += count;
+        modCount++;
+        return first;
+    }
+    
+    @Override
+    public boolean add(TreeData data) {
+        add(data.x, data.y, data.z, data.scale, data.rot);
+        return true;
+    }
+    
+    @Override
+    public void add(int index, TreeData data) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        int num = size - index;
+        System.arraycopy(xs, index, xs, index + 1, num);
+        System.arraycopy(ys, index, ys, index + 1, num);
+        System.arraycopy(zs, index, zs, index + 1, num);
+        System.arraycopy(scales, index, scales, index + 1, num);
+        System.arraycopy(rots, index, rots, index + 1, num);
+        size++;
+        modCount++;
+        set(index, data.x, data.y, data.z, data.scale, data.rot);
+    }
+    
+    /**
+     * Gets a copy of the data of a tree. Changes to the returned object are
+     * not written back to the list.
+     * 
+     * @param index The index of the tree.
+     * @return A new TreeData object.
+     * @deprecated The list no longer stores TreeData objects. Use the 
+     * primitive accessors (getTreeX, setTreeX etc.) instead.
+     */
+    @Deprecated
+    @Override
+    public TreeData get(int index) {
+        checkIndex(index);
+        return new TreeData(xs[index], ys[index], zs[index], scales[index], rots[index]);
+    }
+    
+    /**
+     * Sets the data of a tree, and returns a copy of the old data.
+     * 
+     * @param index The index of the tree.
+     * @param data The new data.
+     * @return The old data.
+     * @deprecated Use set(int, float, float, float, float, float) or the 
+     * primitive setters instead.
+     */
+    @Deprecated
+    @Override
+    public TreeData set(int index, TreeData data) {
+        TreeData old = get(index);
+        set(index, data.x, data.y, data.z, data.scale, data.rot);
+        return old;
+    }
+    
+    @Override
+    public TreeData remove(int index) {
+        TreeData old = get(index);
+        int num = size - index - 1;
+        System.arraycopy(xs, index + 1, xs, index, num);
+        System.arraycopy(ys, index + 1, ys, index, num);
+        System.arraycopy(zs, index + 1, zs, index, num);
+        System.arraycopy(scales, index + 1, scales, index, num);
+        System.arraycopy(rots, index + 1, rots, index, num);
+        size--;
+        modCount++;
+        return old;
+    }
+    
+    @Override
+    public void clear() {
+        size = 0;
+        modCount++;
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    public float getTreeX(int index) {
+        checkIndex(index);
+        return xs[index];
+    }
+    
+    public float getTreeY(int index) {
+        checkIndex(index);
+        return ys[index];
+    }
+    
+    public float getTreeZ(int index) {
+        checkIndex(index);
+        return zs[index];
+    }
+    
+    public float getScale(int index) {
+        checkIndex(index);
+        return scales[index];
+    }
+    
+    public float getRot(int index) {
+        checkIndex(index);
+        return rots[index];
+    }
+    
+    public void setTreeX(int index, float x) {
+        checkIndex(index);
+        xs[index] = x;
+    }
+    
+    public void setTreeY(int index, float y) {
+        checkIndex(index);
+        ys[index] = y;
+    }
+    
+    public void setTreeZ(int index, float z) {
+        checkIndex(index);
+        zs[index] = z;
+    }
+    
+    public void setScale(int index, float scale) {
+        checkIndex(index);
+        scales[index] = scale;
+    }
+    
+    public void setRot(int index, float rot) {
+        checkIndex(index);
+        rots[index] = rot;
+    }
+    
+    /**
+     * Gets the backing array of x-coordinates. Only the first size() 
+     * elements are valid, and the array is replaced when the list grows.
+     * 
+     * @return The x-coordinates.
+     */
+    public float[] getXArray() {
+        return xs;
+    }
+    
+    public float[] getYArray() {
+        return ys;
+    }
+    
+    public float[] getZArray() {
+        return zs;
+    }
+    
+    public float[] getScaleArray() {
+        return scales;
+    }
+    
+    public float[] getRotArray() {
+        return rots;
+    }
+    
+    protected void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
     }
     
     @Override
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees.datagrids;
+
+import forester.trees.TreeLayer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Imports tree data from streams into a datagrid. The trees are read in
+ * batches, and each batch is added using the (multi-threaded) bulk method
+ * DataGrid.addTrees, so only one batch is kept in memory at a time.
+ * <br/><br/>
+ * Two formats are supported:
+ * <br/>
+ * CSV - one tree per line: x, y, z[, scale[, rot]]. Scale defaults to 1,
+ * and rot to 0. Empty lines and lines starting with '#' are ignored.
+ * <br/>
+ * Binary - 5 floats per tree (x, y, z, scale, rot), big endian by 
+ * default, until the end of the stream.
+ * <br/><br/>
+ * Coordinates are world coordinates.
+ * 
+ * @author Andreas
+ */
+public class TreeImporter {
+    
+    public static final int RECORD_SIZE = 20;
+    
+    protected DataGrid grid;
+    protected int batchSize = 1 << 18;
+    protected int numThreads = Runtime.getRuntime().availableProcessors();
+    protected ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    
+    public TreeImporter(DataGrid grid){
+        this.grid = grid;
+    }
+    
+    /**
+     * Imports trees from CSV data.
+     * 
+     * @param layer The tree layer.
+     * @param reader The reader.
+     * @return The number of trees imported.
+     * @throws IOException 
+     */
+    public int importCSV(TreeLayer layer, Reader reader) throws IOException {
+        BufferedReader in = (reader instanceof BufferedReader) 
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        TreeDataList batch = new TreeDataList(0, 0, batchSize);
+        float[] values = new float[5];
+        int total = 0;
+        int lineNum = 0;
+        String line;
+        while((line = in.readLine()) != null){
+            lineNum++;
+            line = line.trim();
+            if(line.isEmpty() || line.charAt(0) == '#'){
+                continue;
+            }
+            String[] fields = line.split(",");
+            if(fields.length < 3 || fields.length > 5){
+                throw new RuntimeException("Invalid tree record on line " + lineNum + ": " + line);
+            }
+            values[3] = 1;
+            values[4] = 0;
+            try {
+                for(int i = 0; i < fields.length; i++){
+                    values[i] = Float.parseFloat(fields[i].trim());
+                }
+            } catch (NumberFormatException e){
+                throw new RuntimeException("Invalid tree record on line " + lineNum + ": " + line);
+            }
+            batch.add(values[0], values[1], values[2], values[3], values[4]);
+            if(batch.size() == batchSize){
+                total += flush(layer, batch);
+            }
+        }
+        total += flush(layer, batch);
+        return total;
+    }
+    
+    /**
+     * Imports trees from binary data.
+     * 
+     * @param layer The tree layer.
+     * @param stream The stream.
+     * @return The number of trees imported.
+     * @throws IOException 
+     */
+    public int importBinary(TreeLayer layer, InputStream stream) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(stream);
+        ByteBuffer buf = ByteBuffer.allocate(batchSize*RECORD_SIZE).order(byteOrder);
+        TreeDataList batch = new TreeDataList(0, 0, batchSize);
+        int total = 0;
+        boolean eof = false;
+        while(!eof){
+            //Fill the buffer, or read until the end of the stream.
+            while(buf.hasRemaining()){
+                if(channel.read(buf) < 0){
+                    eof = true;
+                    break;
+                }
+            }
+            buf.flip();
+            if(buf.remaining() % RECORD_SIZE != 0){
+                throw new RuntimeException("The tree data ends with an incomplete record.");
+            }
+            FloatBuffer floats = buf.asFloatBuffer();
+            int count = floats.remaining()/5;
+            int first = batch.reserve(count);
+            float[] xs = batch.getXArray(), ys = batch.getYArray(), zs = batch.getZArray();
+            float[] scales = batch.getScaleArray(), rots = batch.getRotArray();
+            for(int i = first; i < first + count; i++){
+                xs[i] = floats.get();
+                ys[i] = floats.get();
+                zs[i] = floats.get();
+                scales[i] = floats.get();
+                rots[i] = floats.get();
+            }
+            total += flush(layer, batch);
+            buf.clear();
+        }
+        return total;
+    }
+    
+    protected int flush(TreeLayer layer, TreeDataList batch){
+        int count = batch.size();
+        grid.addTrees(layer, batch, numThreads);
+        batch.clear();
+        return count;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of trees to read before adding them to the grid.
+     * 
+     * @param batchSize The batch size.
+     */
+    public void setBatchSize(int batchSize) {
+        if(batchSize < 1){
+            throw new RuntimeException("The batch size must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * Sets the byte order of binary data.
+     * 
+     * @param byteOrder The byte order.
+     */
+    public void setByteOrder(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+    }
+    
+}//TreeImporter
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees.impostors;
+
+import com.jme3.material.MatParam;
+import com.jme3.material.Material;
+import com.jme3.math.Transform;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.util.BufferUtils;
+import forester.random.RandomTable;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * On-disk cache for impostor atlases. Atlases are stored in a directory, 
+ * keyed by a hash of the model geometry, its materials, the texture
+ * resolution, the number of angles and the fade distance. If a valid atlas
+ * exists it is loaded, otherwise it is rendered by the producer and written
+ * to the cache.
+ * <br/><br/>
+ * File layout: a header (MAGIC, VERSION, key, texture resolution, number
+ * of angles, data length) followed by the raw RGBA atlas data.
+ * 
+ * @author Andreas
+ */
+public class ImpostorAtlasCache {
+    
+    protected static final Logger log = Logger.getLogger(ImpostorAtlasCache.class.getName());
+    
+    public static final int MAGIC = 0x46494D50; //"FIMP"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 28;
+    
+    protected File directory;
+    protected ImpostorAtlasProducer producer;
+    
+    /**
+     * Creates a new atlas cache.
+     * 
+     * @param directory The cache directory (created if it doesn't exist).
+     * @param producer The producer used for atlases that are not cached.
+     */
+    public ImpostorAtlasCache(File directory, ImpostorAtlasProducer producer){
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new RuntimeException("Could not create impostor cache directory: " + directory);
+        }
+        this.directory = directory;
+        this.producer = producer;
+    }
+    
+    /**
+     * Gets the impostor atlas of a model, loading it from the cache if 
+     * possible.
+     * 
+     * @param model The model.
+     * @param distance The distance at which the impostors are faded in.
+     * @return The atlas data.
+     */
+    public synchronized ByteBuffer getAtlas(Spatial model, float distance){
+        long key = computeKey(model, distance);
+        File file = getFile(key);
+        if(file.exists()){
+            ByteBuffer atlas = read(file, key);
+            if(atlas != null){
+                return atlas;
+            }
+            log.log(Level.INFO, "Invalid impostor atlas removed: {0}", file);
+            file.delete();
+        }
+        ByteBuffer atlas = producer.produceAtlas(model, distance);
+        try {
+            write(file, key, atlas);
+        } catch (IOException e) {
+            //The atlas is still usable, it's just not cached.
+            log.log(Level.WARNING, "Could not write impostor atlas: " + file, e);
+        }
+        return atlas;
+    }
+    
+    /**
+     * Removes the cached atlas of a model.
+     * 
+     * @param model The model.
+     * @param distance The fade distance.
+     * @return true if an atlas was removed.
+     */
+    public synchronized boolean invalidate(Spatial model, float distance){
+        return getFile(computeKey(model, distance)).delete();
+    }
+    
+    /**
+     * Removes all cached atlases.
+     */
+    public synchronized void clear(){
+        File[] files = directory.listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            if(file.getName().startsWith("impostor_") && file.getName().endsWith(".atlas")){
+                file.delete();
+            }
+        }
+    }
+    
+    public File getFile(long key){
+        return new File(directory, "impostor_" + Long.toHexString(key) + ".atlas");
+    }
+    
+    /**
+     * Reads an atlas file. 
+     * 
+     * @param file The file.
+     * @param key The expected key.
+     * @return The atlas, or null if the file is not a valid atlas for the
+     * key and the current producer settings.
+     */
+    protected ByteBuffer read(File file, long key){
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            if(channel.size() < HEADER_SIZE){
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            if(header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != key
+                    || header.getInt() != producer.getTextureRes() || header.getInt() != producer.getNumAngles()){
+                return null;
+            }
+            int length = header.getInt();
+            if(length < 0 || channel.size() != HEADER_SIZE + (long) length){
+                return null;
+            }
+            ByteBuffer atlas = BufferUtils.createByteBuffer(length);
+            readFully(channel, atlas);
+            atlas.clear();
+            return atlas;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not read impostor atlas: " + file, e);
+            return null;
+        } finally {
+            if(raf != null){
+                try { raf.close(); } catch (IOException e) {}
+            }
+        }
+    }
+    
+    /**
+     * Writes an atlas file. The data is written to a temporary file first, 
+     * so that a partially written atlas is never read.
+     * 
+     * @param file The file.
+     * @param key The key.
+     * @param atlas The atlas data.
+     * @throws IOException 
+     */
+    protected void write(File file, long key, ByteBuffer atlas) throws IOException {
+        ByteBuffer data = atlas.duplicate();
+        data.clear();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(key);
+        header.putInt(producer.getTextureRes()).putInt(producer.getNumAngles()).putInt(data.remaining());
+        header.flip();
+        
+        File temp = new File(directory, file.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+            while(data.hasRemaining()){
+                channel.write(data);
+            }
+        } finally {
+            raf.close();
+        }
+        file.delete();
+        if(!temp.renameTo(file)){
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+    
+    /**
+     * Writes an atlas to a png image, for inspecting the cache contents.
+     * 
+     * @param atlas The atlas data.
+     * @param file The image file.
+     * @throws IOException 
+     */
+    public void writeImage(ByteBuffer atlas, File file) throws IOException {
+        BufferedImage awtImage = new BufferedImage(getAtlasWidth(), getAtlasHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        WritableRaster wr = awtImage.getRaster();
+        DataBufferByte db = (DataBufferByte) wr.getDataBuffer();
+
+        byte[] cpuArray = db.getData();
+
+        // copy native memory to java memory
+        ByteBuffer data = atlas.duplicate();
+        data.clear();
+        data.get(cpuArray);
+
+        int width = wr.getWidth();
+        int height = wr.getHeight();
+
+        // flip the components the way AWT likes them
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width; x++) {
+                int inPtr = (y * width + x) * 4;
+                int outPtr = ((height - y - 1) * width + x) * 4;
+
+                byte b1 = cpuArray[inPtr + 0];
+                byte g1 = cpuArray[inPtr + 1];
+                byte r1 = cpuArray[inPtr + 2];
+                byte a1 = cpuArray[inPtr + 3];
+
+                byte b2 = cpuArray[outPtr + 0];
+                byte g2 = cpuArray[outPtr + 1];
+                byte r2 = cpuArray[outPtr + 2];
+                byte a2 = cpuArray[outPtr + 3];
+
+                cpuArray[outPtr + 0] = a1;
+                cpuArray[outPtr + 1] = b1;
+                cpuArray[outPtr + 2] = g1;
+                cpuArray[outPtr + 3] = r1;
+
+                cpuArray[inPtr + 0] = a2;
+                cpuArray[inPtr + 1] = b2;
+                cpuArray[inPtr + 2] = g2;
+                cpuArray[inPtr + 3] = r2;
+            }
+        }
+        ImageIO.write(awtImage, "png", file);
+    }
+    
+    protected static void readFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()){
+            if(channel.read(buf) < 0){
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+    }
+    
+    /**
+     * Computes the cache key of a model. The key depends on the geometry
+     * (vertex buffers and transforms), the materials, the producer settings
+     * and the fade distance.
+     * 
+     * @param model The model.
+     * @param distance The fade distance.
+     * @return The key.
+     */
+    public long computeKey(Spatial model, float distance){
+        long h = RandomTable.hash(VERSION, producer.getTextureRes());
+        h = RandomTable.hash(h, producer.getNumAngles());
+        h = RandomTable.hash(h, Float.floatToIntBits(distance));
+        return hashSpatial(h, model);
+    }
+    
+    protected static long hashSpatial(long h, Spatial spatial){
+        Transform t = spatial.getLocalTransform();
+        h = hashFloats(h, t.getTranslation().x, t.getTranslation().y, t.getTranslation().z);
+        h = hashFloats(h, t.getRotation().getX(), t.getRotation().getY(), t.getRotation().getZ(), t.getRotation().getW());
+        h = hashFloats(h, t.getScale().x, t.getScale().y, t.getScale().z);
+        if(spatial instanceof Node){
+            for(Spatial child : ((Node)spatial).getChildren()){
+                h = hashSpatial(h, child);
+            }
+        } else if(spatial instanceof Geometry){
+            Geometry geom = (Geometry) spatial;
+            h = hashMesh(h, geom.getMesh());
+            h = hashMaterial(h, geom.getMaterial());
+        }
+        return h;
+    }
+    
+    protected static long hashMesh(long h, Mesh mesh){
+        h = RandomTable.hash(h, mesh.getMode().ordinal());
+        for(VertexBuffer vb : mesh.getBufferList()){
+            h = RandomTable.hash(h, vb.getBufferType().ordinal());
+            h = RandomTable.hash(h, vb.getNumComponents());
+            h = hashBuffer(h, vb.getData());
+        }
+        return h;
+    }
+    
+    protected static long hashBuffer(long h, Buffer data){
+        if(data == null){
+            return RandomTable.hash(h, 0);
+        }
+        int limit = data.limit();
+        if(data instanceof FloatBuffer){
+            FloatBuffer buf = (FloatBuffer) data;
+            for(int i = 0; i < limit; i++){
+                h = RandomTable.hash(h, Float.floatToIntBits(buf.get(i)));
+            }
+        } else if(data instanceof ShortBuffer){
+            ShortBuffer buf = (ShortBuffer) data;
+            for(int i = 0; i < limit; i++){
+                h = RandomTable.hash(h, buf.get(i));
+            }
+        } else if(data instanceof IntBuffer){
+            IntBuffer buf = (IntBuffer) data;
+            for(int i = 0; i < limit; i++){
+                h = RandomTable.hash(h, buf.get(i));
+            }
+        } else if(data instanceof ByteBuffer){
+            ByteBuffer buf = (ByteBuffer) data;
+            for(int i = 0; i < limit; i++){
+                h = RandomTable.hash(h, buf.get(i));
+            }
+        }
+        return RandomTable.hash(h, limit);
+    }
+    
+    protected static long hashMaterial(long h, Material mat){
+        if(mat == null){
+            return RandomTable.hash(h, 0);
+        }
+        h = hashString(h, mat.getMaterialDef().getAssetName());
+        //Parameters are sorted by name, so that the order they were set in
+        //doesn't matter.
+        ArrayList<MatParam> params = new ArrayList<MatParam>(mat.getParams());
+        Collections.sort(params, new Comparator<MatParam>(){
+            @Override
+            public int compare(MatParam p1, MatParam p2) {
+                return p1.getName().compareTo(p2.getName());
+            }
+        });
+        for(MatParam param : params){
+            h = hashString(h, param.getName());
+            Object value = param.getValue();
+            if(value instanceof Texture){
+                h = hashTexture(h, (Texture) value);
+            } else {
+                h = hashString(h, String.valueOf(value));
+            }
+        }
+        return h;
+    }
+    
+    protected static long hashTexture(long h, Texture tex){
+        //Textures loaded as assets are identified by their key, others by
+        //their content.
+        if(tex.getKey() != null){
+            return hashString(h, tex.getKey().toString());
+        }
+        Image img = tex.getImage();
+        if(img == null){
+            return RandomTable.hash(h, 0);
+        }
+        h = RandomTable.hash(h, img.getWidth());
+        h = RandomTable.hash(h, img.getHeight());
+        h = RandomTable.hash(h, img.getFormat().ordinal());
+        for(ByteBuffer data : img.getData()){
+            h = hashBuffer(h, data);
+        }
+        return h;
+    }
+    
+    protected static long hashFloats(long h, float... values){
+        for(float v : values){
+            h = RandomTable.hash(h, Float.floatToIntBits(v));
+        }
+        return h;
+    }
+    
+    protected static long hashString(long h, String str){
+        if(str == null){
+            return RandomTable.hash(h, 0);
+        }
+        for(int i = 0; i < str.length(); i++){
+            h = RandomTable.hash(h, str.charAt(i));
+        }
+        return RandomTable.hash(h, str.length());
+    }
+    
+    /**
+     * Gets the width of the atlases of the producer, in texels.
+     * 
+     * @return The width.
+     */
+    public int getAtlasWidth(){
+        return ImpostorAtlasProducer.ATLAS_COLUMNS*producer.getTextureRes();
+    }
+    
+    /**
+     * Gets the height of the atlases of the producer, in texels. There is a 
+     * color and a normal sub-texture for each angle.
+     * 
+     * @return The height.
+     */
+    public int getAtlasHeight(){
+        int columns = ImpostorAtlasProducer.ATLAS_COLUMNS;
+        int rows = (2*producer.getNumAngles() + columns - 1)/columns;
+        return rows*producer.getTextureRes();
+    }
+    
+    public File getDirectory() {
+        return directory;
+    }
+
+    public ImpostorAtlasProducer getProducer() {
+        return producer;
+    }
+    
+}//ImpostorAtlasCache
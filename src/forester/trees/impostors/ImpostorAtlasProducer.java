@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2011, Andreas Olofsson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED 
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package forester.trees.impostors;
+
+import com.jme3.scene.Spatial;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for classes that render impostor atlases. The atlas is a grid
+ * of sub-textures (RGBA8) of the model seen from different angles. The 
+ * grid is ATLAS_COLUMNS sub-textures wide. The color sub-textures of each
+ * angle come first, followed by the normal/displacement sub-textures, 
+ * row by row (see ImpostorAtlasCache.getAtlasWidth/getAtlasHeight).
+ * 
+ * @author Andreas
+ */
+public interface ImpostorAtlasProducer {
+    
+    //The number of sub-textures along each row of the atlas.
+    public static final int ATLAS_COLUMNS = 4;
+    
+    /**
+     * Renders the impostor atlas of a model.
+     * 
+     * @param model The model.
+     * @param distance The distance at which the impostors are faded in.
+     * @return The atlas data.
+     */
+    public ByteBuffer produceAtlas(Spatial model, float distance);
+    
+    /**
+     * Gets the resolution of each sub-texture in the atlas.
+     * 
+     * @return The texture resolution.
+     */
+    public int getTextureRes();
+    
+    /**
+     * Gets the number of angles that the model is rendered from.
+     * 
+     * @return The number of angles.
+     */
+    public int getNumAngles();
+    
+}//ImpostorAtlasProducer
@@ -47,27 +47,20 @@ import com.jme3.texture.FrameBuffer;
 import com.jme3.texture.Image.Format;
 import com.jme3.util.BufferUtils;
 import forester.Forester;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.awt.image.WritableRaster;
-import java.io.File;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import javax.imageio.ImageIO;
 
 /**
  * This class is used for rendering impostor textures. Not finished.
  * 
  * @author Andreas
  */
-public class ImpostorTextureGenerator {
+public class ImpostorTextureGenerator implements ImpostorAtlasProducer {
 
     protected static ImpostorTextureGenerator instance;
     protected static int TEXTURE_RES = 256;
     protected static int numAngles = 8;
-    protected static String textureFolder = "Textures/Impostors/";
     
     protected AssetManager assetManager;
     protected Camera RTTCam;
@@ -99,8 +92,23 @@ public class ImpostorTextureGenerator {
         return instance;
     }
 
+    @Override
+    public ByteBuffer produceAtlas(Spatial model, float distance) {
+        return generateImpostors(model, distance);
+    }
+    
+    @Override
+    public int getTextureRes() {
+        return TEXTURE_RES;
+    }
+
+    @Override
+    public int getNumAngles() {
+        return numAngles;
+    }
+    
     synchronized
-    public void generateImpostors(Spatial model, float distance) {
+    public ByteBuffer generateImpostors(Spatial model, float distance) {
 
         List<Material> modelMats = new ArrayList<Material>();
 
@@ -267,6 +275,8 @@ public class ImpostorTextureGenerator {
         }
 
         IMGBuf.put(IMGArray);
+        IMGBuf.clear();
+        return IMGBuf;
     }
 
     protected static Vector3f getUCVec(float angle) {
@@ -274,54 +284,6 @@ public class ImpostorTextureGenerator {
         return new Vector3f(FastMath.cos(-angle + FastMath.HALF_PI), 0, FastMath.sin(-angle + FastMath.HALF_PI));
     }
 
-    public static void printImage(ByteBuffer imgBuf, float distance) {
-        BufferedImage awtImage = new BufferedImage(TEXTURE_RES * 4, TEXTURE_RES * 4, BufferedImage.TYPE_4BYTE_ABGR);
-        WritableRaster wr = awtImage.getRaster();
-        DataBufferByte db = (DataBufferByte) wr.getDataBuffer();
-
-        byte[] cpuArray = db.getData();
-
-        // copy native memory to java memory
-        imgBuf.clear();
-        imgBuf.get(cpuArray);
-        imgBuf.clear();
-
-        int width = wr.getWidth();
-        int height = wr.getHeight();
-
-//         flip the components the way AWT likes them
-        for (int y = 0; y < height / 2; y++) {
-            for (int x = 0; x < width; x++) {
-                int inPtr = (y * width + x) * 4;
-                int outPtr = ((height - y - 1) * width + x) * 4;
-
-                byte b1 = cpuArray[inPtr + 0];
-                byte g1 = cpuArray[inPtr + 1];
-                byte r1 = cpuArray[inPtr + 2];
-                byte a1 = cpuArray[inPtr + 3];
-
-                byte b2 = cpuArray[outPtr + 0];
-                byte g2 = cpuArray[outPtr + 1];
-                byte r2 = cpuArray[outPtr + 2];
-                byte a2 = cpuArray[outPtr + 3];
-
-                cpuArray[outPtr + 0] = a1;
-                cpuArray[outPtr + 1] = b1;
-                cpuArray[outPtr + 2] = g1;
-                cpuArray[outPtr + 3] = r1;
-
-                cpuArray[inPtr + 0] = a2;
-                cpuArray[inPtr + 1] = b2;
-                cpuArray[inPtr + 2] = g2;
-                cpuArray[inPtr + 3] = r2;
-            }
-        }
-        try {
-            ImageIO.write(awtImage, "png", new File("Assets/" + textureFolder + "Model" + Float.floatToIntBits(distance) + ".png"));
-        } catch (IOException ex) {
-        }
-    }
-
     public void setColorMapName(String colorMapName) {
         this.colorMapName = colorMapName;
     }
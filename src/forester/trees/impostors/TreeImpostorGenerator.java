@@ -28,20 +28,27 @@
  */
 package forester.trees.impostors;
 
-import forester.trees.datagrids.TreeData;
 import forester.trees.datagrids.TreeDataList;
 import com.jme3.bounding.BoundingBox;
 import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
 import com.jme3.material.Material;
+import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
 import com.jme3.scene.VertexBuffer;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * Not finished.
+ * This class is used to generate impostor batches. Each tree becomes a 
+ * quad, with all four vertices at the center of the tree. The corner 
+ * offsets (scaled by the tree scale) and the rotation of the tree are 
+ * stored in texCoord2, so that the impostor shader can turn the quads
+ * towards the camera and pick the proper angle from the atlas.
  * 
  * @author Andreas
  */
@@ -51,95 +58,156 @@ public class TreeImpostorGenerator {
         
     }
     
+    /**
+     * Creates an impostor geometry for a list of trees.
+     * 
+     * @param list The trees.
+     * @param tree The tree model.
+     * @param mat The impostor material.
+     * @return The impostor geometry, or null if the list is empty.
+     */
     public Geometry buildImpostorGeometry(TreeDataList list, Node tree, Material mat)
     {
+        return buildImpostorGeometry(Collections.singletonList(list), 
+                                     Collections.singletonList(tree), 
+                                     Collections.singletonList(Vector3f.ZERO), 
+                                     mat);
+    }
+    
+    /**
+     * Creates a single impostor geometry for several lists of trees. This
+     * is used to merge the impostors of several blocks (and layers that
+     * share an impostor atlas) into one mesh.
+     * 
+     * @param lists The tree lists.
+     * @param trees The tree model of each list.
+     * @param offsets The offset of each list (the tree coordinates of a
+     * list are relative to its offset).
+     * @param mat The impostor material.
+     * @return The impostor geometry, or null if there are no trees.
+     */
+    public Geometry buildImpostorGeometry(List<TreeDataList> lists, List<Node> trees, List<Vector3f> offsets, Material mat)
+    {
+        int numTrees = 0;
+        for(TreeDataList list : lists){
+            numTrees += list.size();
+        }
+        if(numTrees == 0){
+            return null;
+        }
         Mesh mesh = new Mesh();
         
         mesh.setMode(Mesh.Mode.Triangles);
-        mesh.setDynamic();
         
         //Position float array.
-        float[] positions = new float[12*list.size()];
-        float[] texCoords = new float[8*list.size()];
-        float[] texCoords2 = new float[positions.length];
-        int[] indices = new int[6*list.size()];
-        
-        BoundingSphere treeSphere = (BoundingSphere) tree.getWorldBound();
-        Vector3f center = treeSphere.getCenter();
-        
-        float rad = treeSphere.getRadius();
+        float[] positions = new float[12*numTrees];
+        float[] texCoords = new float[8*numTrees];
+        float[] texCoords2 = new float[12*numTrees];
         
         //Iterators
         int pIt = 0;
         int tIt = 0;
-        int iIt = 0;
+        int t2It = 0;
         
-        for(int i = 0; i < list.size(); i++){
-            //Position values
-            TreeData data = list.get(i);
-            
-            //Left to right
-            float x0 = -rad;
-            float x1 = rad;
-            //Top to bottom
-            float y0 = rad; 
-            float y1 = -rad;
-            
-            // ******************** Adding vertices ********************** 
+        //The largest quad radius, used for the bound.
+        float maxRad = 0;
+        
+        for(int l = 0; l < lists.size(); l++){
+            TreeDataList list = lists.get(l);
+            Vector3f offset = offsets.get(l);
             
-            //All four verts in a quad is at the same position.
-            for(int j = 0; j < 4; j++){
-                positions[pIt++] = data.x + center.x;
-                positions[pIt++] = data.y + center.y;
-                positions[pIt++] = data.z + center.z;
+            BoundingVolume treeBound = trees.get(l).getWorldBound();
+            Vector3f center = treeBound.getCenter();
+
+            float rad;
+            if(treeBound instanceof BoundingSphere){
+                rad = ((BoundingSphere)treeBound).getRadius();
+            } else {
+                rad = ((BoundingBox)treeBound).getExtent(null).length();
             }
-            
-            //Texcoords for each vert + the position relative to the quad center
-            //stored in texCoord2.
-            texCoords[tIt] = 0.f;
-            texCoords2[tIt++] = x0;
-            texCoords[tIt]=0.f;
-            texCoords2[tIt++] = y0;
-            texCoords2[tIt++] = data.rot;
-            
-            texCoords[tIt] = 1.f;
-            texCoords2[tIt++] = x1;
-            texCoords[tIt]=0.f;
-            texCoords2[tIt++] = y0;
-            texCoords2[tIt++] = data.rot;
-            
-            texCoords[tIt] = 0.f;  
-            texCoords2[tIt++] = x0;
-            texCoords[tIt]=1.f;
-            texCoords2[tIt++] = y1;
-            texCoords2[tIt++] = data.rot;
-            
-            texCoords[tIt] = 1.f;  
-            texCoords2[tIt++] = x1;
-            texCoords[tIt]=1.f;
-            texCoords2[tIt++] = y1;
-            texCoords2[tIt++] = data.rot;
+        
+            float[] xs = list.getXArray();
+            float[] ys = list.getYArray();
+            float[] zs = list.getZArray();
+            float[] scales = list.getScaleArray();
+            float[] rots = list.getRotArray();
+        
+            for(int i = 0; i < list.size(); i++){
+                //Position values
+                float scale = scales[i];
+                float rot = rots[i];
+                
+                float qRad = rad*scale;
+                maxRad = Math.max(maxRad, qRad);
+                //Left to right
+                float x0 = -qRad;
+                float x1 = qRad;
+                //Top to bottom
+                float y0 = qRad; 
+                float y1 = -qRad;
 
-            //Indices
-            int offset = i*4;
-            //First triangle
-            indices[iIt++] = 0 + offset;
-            indices[iIt++] = 2 + offset;
-            indices[iIt++] = 1 + offset;
-            //Second triangle
-            indices[iIt++] = 1 + offset; 
-            indices[iIt++] = 2 + offset;
-            indices[iIt++] = 3 + offset;
+                //The bound center is rotated like the tree geometry (see
+                //TreeGeometryGenerator.createTransforms).
+                float cos = FastMath.cos(rot);
+                float sin = FastMath.sin(rot);
+                float cx = (cos*center.x + sin*center.z)*scale;
+                float cz = (cos*center.z - sin*center.x)*scale;
+
+                // ******************** Adding vertices ********************** 
+
+                //All four verts in a quad is at the same position.
+                for(int j = 0; j < 4; j++){
+                    positions[pIt++] = offset.x + xs[i] + cx;
+                    positions[pIt++] = offset.y + ys[i] + center.y*scale;
+                    positions[pIt++] = offset.z + zs[i] + cz;
+                }
+
+                //Texcoords for each vert + the position relative to the quad center
+                //stored in texCoord2.
+                texCoords[tIt++] = 0.f;
+                texCoords[tIt++] = 0.f;
+                texCoords2[t2It++] = x0;
+                texCoords2[t2It++] = y0;
+                texCoords2[t2It++] = rot;
+
+                texCoords[tIt++] = 1.f;
+                texCoords[tIt++] = 0.f;
+                texCoords2[t2It++] = x1;
+                texCoords2[t2It++] = y0;
+                texCoords2[t2It++] = rot;
+
+                texCoords[tIt++] = 0.f;
+                texCoords[tIt++] = 1.f;
+                texCoords2[t2It++] = x0;
+                texCoords2[t2It++] = y1;
+                texCoords2[t2It++] = rot;
+
+                texCoords[tIt++] = 1.f;
+                texCoords[tIt++] = 1.f;
+                texCoords2[t2It++] = x1;
+                texCoords2[t2It++] = y1;
+                texCoords2[t2It++] = rot;
+            }
         }
         
         mesh.setBuffer(VertexBuffer.Type.Position, 3, positions);
         mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, texCoords);
         mesh.setBuffer(VertexBuffer.Type.TexCoord2, 3, texCoords2);
-        mesh.setBuffer(VertexBuffer.Type.Index, 1, indices);
+        //16 bit indices whenever possible.
+        if(numTrees*4 <= 65536){
+            mesh.setBuffer(VertexBuffer.Type.Index, 1, createShortIndices(numTrees));
+        } else {
+            mesh.setBuffer(VertexBuffer.Type.Index, 1, createIntIndices(numTrees));
+        }
         
-        //The mesh is now finished.
+        //The quads are expanded in the shader, so the bound is made
+        //from the tree positions and then padded with the radius.
         mesh.setBound(new BoundingBox());
         mesh.updateBound();
+        BoundingBox box = (BoundingBox) mesh.getBound();
+        box.setXExtent(box.getXExtent() + maxRad);
+        box.setYExtent(box.getYExtent() + maxRad);
+        box.setZExtent(box.getZExtent() + maxRad);
         mesh.updateCounts();
         mesh.setStatic();
         
@@ -149,4 +217,37 @@ public class TreeImpostorGenerator {
         geom.setQueueBucket(Bucket.Transparent);
         return geom;
     }
+    
+    protected static short[] createShortIndices(int numTrees){
+        short[] indices = new short[6*numTrees];
+        for(int i = 0, iIt = 0; i < numTrees; i++){
+            int offset = i*4;
+            //First triangle
+            indices[iIt++] = (short) (0 + offset);
+            indices[iIt++] = (short) (2 + offset);
+            indices[iIt++] = (short) (1 + offset);
+            //Second triangle
+            indices[iIt++] = (short) (1 + offset);
+            indices[iIt++] = (short) (2 + offset);
+            indices[iIt++] = (short) (3 + offset);
+        }
+        return indices;
+    }
+    
+    protected static int[] createIntIndices(int numTrees){
+        int[] indices = new int[6*numTrees];
+        for(int i = 0, iIt = 0; i < numTrees; i++){
+            int offset = i*4;
+            //First triangle
+            indices[iIt++] = 0 + offset;
+            indices[iIt++] = 2 + offset;
+            indices[iIt++] = 1 + offset;
+            //Second triangle
+            indices[iIt++] = 1 + offset;
+            indices[iIt++] = 2 + offset;
+            indices[iIt++] = 3 + offset;
+        }
+        return indices;
+    }
+    
 }//TreeImpostorGenerator